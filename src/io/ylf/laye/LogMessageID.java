@@ -75,6 +75,30 @@ public final class LogMessageID
    public static final LogMessageID ERROR_INVALID_IDENTIFIER_START = new LogMessageID(
          "Invalid Identifier Start",
          NEXT_CODE++);
+
+   public static final LogMessageID ERROR_UNEXPECTED_TOKEN = new LogMessageID(
+         "Unexpected Token",
+         NEXT_CODE++);
+
+   public static final LogMessageID ERROR_EXPECTED_TOKEN = new LogMessageID(
+         "Expected Token",
+         NEXT_CODE++);
+
+   public static final LogMessageID ERROR_INVALID_ASSIGNMENT = new LogMessageID(
+         "Invalid Assignment Target",
+         NEXT_CODE++);
+
+   public static final LogMessageID ERROR_UNSUPPORTED = new LogMessageID(
+         "Unsupported Syntax",
+         NEXT_CODE++);
+
+   public static final LogMessageID ERROR_JUMP_OUTSIDE_LOOP = new LogMessageID(
+         "Jump Outside Loop",
+         NEXT_CODE++);
+
+   public static final LogMessageID ERROR_UNDEFINED_NAME = new LogMessageID(
+         "Undefined Name",
+         NEXT_CODE++);
    
    // ===== Instance
    
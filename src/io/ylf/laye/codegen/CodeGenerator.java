@@ -0,0 +1,953 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.codegen;
+
+import static io.ylf.laye.LogMessageID.*;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import io.ylf.laye.log.DetailLogger;
+import io.ylf.laye.struct.Identifier;
+import io.ylf.laye.struct.Operator;
+import io.ylf.laye.symbol.SymbolAddress;
+import io.ylf.laye.symbol.SymbolTable;
+import io.ylf.laye.syntax.SyntaxTree;
+import io.ylf.laye.vm.ConstantPool;
+import io.ylf.laye.vm.FunctionPrototype;
+import io.ylf.laye.vm.Instruction;
+import io.ylf.laye.vm.KitPrototype;
+import io.ylf.laye.vm.LayeFloat;
+import io.ylf.laye.vm.LayeInt;
+import io.ylf.laye.vm.LayeObject;
+import io.ylf.laye.vm.LayeString;
+import net.fudev.faxlib.collections.List;
+
+/**
+ * Compiles syntax trees into kits for the {@link io.ylf.laye.vm.VirtualMachine}.
+ * 
+ * Code is generated in two passes over the tree. The first resolves every name with a
+ * {@link SymbolTable}, which finds which locals need cells. The second emits the
+ * instructions, once that is known.
+ * 
+ * A function whose body is an expression returns its value, any other function returns
+ * <code>null</code> unless it returns something else.
+ * 
+ * The named functions of a block are defined before anything in it is resolved, so that
+ * they can call each other no matter which comes first. Names that are read but never defined
+ * or assigned anywhere in the module are errors.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class CodeGenerator
+{
+   private static final IdentityHashMap<Operator, Integer> BINARY_OPCODES =
+         new IdentityHashMap<>();
+   
+   static
+   {
+      BINARY_OPCODES.put(Operator.PLUS, Instruction.ADD);
+      BINARY_OPCODES.put(Operator.MINUS, Instruction.SUB);
+      BINARY_OPCODES.put(Operator.TIMES, Instruction.MUL);
+      BINARY_OPCODES.put(Operator.DIVIDE, Instruction.DIV);
+      BINARY_OPCODES.put(Operator.INT_DIVIDE, Instruction.IDIV);
+      BINARY_OPCODES.put(Operator.MODULO, Instruction.MOD);
+      BINARY_OPCODES.put(Operator.POWER, Instruction.POW);
+      BINARY_OPCODES.put(Operator.AND, Instruction.BAND);
+      BINARY_OPCODES.put(Operator.OR, Instruction.BOR);
+      BINARY_OPCODES.put(Operator.XOR_COMPL, Instruction.BXOR);
+      BINARY_OPCODES.put(Operator.LSHIFT, Instruction.SHL);
+      BINARY_OPCODES.put(Operator.RSHIFT, Instruction.SHR);
+      BINARY_OPCODES.put(Operator.URSHIFT, Instruction.USHR);
+      BINARY_OPCODES.put(Operator.EQUALTO, Instruction.EQ);
+      BINARY_OPCODES.put(Operator.NEQUALTO, Instruction.NE);
+      BINARY_OPCODES.put(Operator.LESS, Instruction.LT);
+      BINARY_OPCODES.put(Operator.LESSEQ, Instruction.LE);
+      BINARY_OPCODES.put(Operator.GREATER, Instruction.GT);
+      BINARY_OPCODES.put(Operator.GREATEREQ, Instruction.GE);
+      BINARY_OPCODES.put(Operator.COMP3, Instruction.CMP3);
+      BINARY_OPCODES.put(Operator.CONCAT, Instruction.CONCAT);
+   }
+   
+   private static final class Loop
+   {
+      final Loop enclosing;
+      /** The code index continuing jumps to, or -1 until it's known. */
+      int continueTarget = -1;
+      final List<Integer> continueJumps = new List<Integer>();
+      final List<Integer> breakJumps = new List<Integer>();
+      
+      Loop(Loop enclosing)
+      {
+         this.enclosing = enclosing;
+      }
+   }
+   
+   /**
+    * The code of a function while it's generated.
+    */
+   private static final class Function
+   {
+      final Function enclosing;
+      
+      int[] code = new int[32];
+      int count = 0;
+      int stackSize = 0;
+      int maxStackSize = 0;
+      
+      final List<FunctionPrototype> functions = new List<FunctionPrototype>();
+      final List<Operator> operators = new List<Operator>();
+      
+      Loop loop = null;
+      
+      Function(Function enclosing)
+      {
+         this.enclosing = enclosing;
+      }
+   }
+   
+   private final DetailLogger logger;
+   private final ConstantPool constants;
+   
+   private SyntaxTree tree = null;
+   private SymbolTable table = null;
+   
+   // Found by the first pass, for each node.
+   private SymbolAddress[] addresses = null;
+   private SymbolTable.FunctionLayout[] layouts = null;
+   // The named functions defined at the start of their block, rather than where they are.
+   private boolean[] declaredEarly = null;
+   
+   private Function function = null;
+   
+   private boolean fusing = true;
+   
+   /**
+    * @param logger
+    * @param constants The pool literals are added to. Ideally this is the pool the tokens
+    *           were lexed with, which already holds them.
+    */
+   public CodeGenerator(DetailLogger logger, ConstantPool constants)
+   {
+      this.logger = logger;
+      this.constants = constants;
+   }
+   
+   /**
+    * Sets whether pairs of instructions are fused into superinstructions, see
+    * {@link InstructionFuser}. They are by default.
+    * @param fusing
+    */
+   public void setFusing(boolean fusing)
+   {
+      this.fusing = fusing;
+   }
+   
+   public boolean isFusing()
+   {
+      return fusing;
+   }
+   
+   public KitPrototype generate(SyntaxTree tree)
+   {
+      assert(tree.getKind(tree.getRoot()) == SyntaxTree.Kind.MODULE);
+      this.tree = tree;
+      this.table = new SymbolTable();
+      this.addresses = new SymbolAddress[tree.size()];
+      this.layouts = new SymbolTable.FunctionLayout[tree.size()];
+      this.declaredEarly = new boolean[tree.size()];
+      
+      final int root = tree.getRoot();
+      for (int node = tree.getFirstChild(root); node != SyntaxTree.NONE;
+            node = tree.getNextSibling(node))
+      {
+         resolveStatement(node);
+      }
+      checkUndefinedGlobals();
+      
+      function = new Function(null);
+      for (int node = tree.getFirstChild(root); node != SyntaxTree.NONE;
+            node = tree.getNextSibling(node))
+      {
+         emitStatement(node);
+      }
+      emit(Instruction.make(Instruction.LOAD_NULL), 1);
+      emit(Instruction.make(Instruction.RETURN), -1);
+      final FunctionPrototype body = finish(null, 0, 0, new int[0]);
+      
+      final String[] globalNames = new String[table.getGlobalCount()];
+      for (int i = 0; i < globalNames.length; i++)
+      {
+         globalNames[i] = table.getGlobalName(i).image;
+      }
+      final KitPrototype result = new KitPrototype(body, globalNames, constants.toArray());
+      
+      this.tree = null;
+      this.table = null;
+      this.addresses = null;
+      this.layouts = null;
+      this.declaredEarly = null;
+      this.function = null;
+      return result;
+   }
+   
+   /**
+    * Reports the first read of each global that's never defined or assigned, which would
+    * always be <code>null</code>.
+    */
+   private void checkUndefinedGlobals()
+   {
+      final boolean[] reported = new boolean[table.getGlobalCount()];
+      for (int node = 0; node < addresses.length; node++)
+      {
+         final SymbolAddress address = addresses[node];
+         if (address != null && address.kind == SymbolAddress.Kind.GLOBAL &&
+             !table.isGlobalDefined(address.index) && !reported[address.index])
+         {
+            reported[address.index] = true;
+            logger.logErrorf(tree.getLocation(node), ERROR_UNDEFINED_NAME,
+                  "%s is not defined.\n", table.getGlobalName(address.index).image);
+         }
+      }
+   }
+   
+   /**
+    * A node is a statement if it doesn't produce a value. Anonymous functions are
+    * expressions, named ones are statements which define their name.
+    */
+   private boolean isStatement(int node)
+   {
+      switch (tree.getKind(node))
+      {
+         case BLOCK:
+         case VAR:
+         case IF:
+         case WHILE:
+         case ITER:
+         case EACH:
+         case RETURN:
+         case YIELD:
+         case BREAK:
+         case CONTINUE:
+         case IMPORT:
+         case ASSIGN:
+            return true;
+         case FUNCTION:
+            return tree.getData(node) != null;
+         default:
+            return false;
+      }
+   }
+   
+   private void unsupported(int node)
+   {
+      logger.logErrorf(tree.getLocation(node), ERROR_UNSUPPORTED,
+            "%s is not supported by the virtual machine yet.\n", tree.getKind(node));
+   }
+   
+   // ===== Resolution
+   
+   private void resolveStatement(int node)
+   {
+      switch (tree.getKind(node))
+      {
+         case BLOCK:
+         {
+            table.beginScope();
+            for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               if (tree.getKind(child) == SyntaxTree.Kind.FUNCTION && tree.getData(child) != null)
+               {
+                  defineFunction(child);
+                  declaredEarly[child] = true;
+               }
+            }
+            for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               resolveStatement(child);
+            }
+            table.endScope();
+         } break;
+         case VAR:
+         {
+            for (int declaration = tree.getFirstChild(node); declaration != SyntaxTree.NONE;
+                  declaration = tree.getNextSibling(declaration))
+            {
+               final int value = tree.getFirstChild(declaration);
+               if (value != SyntaxTree.NONE)
+               {
+                  resolveExpression(value);
+               }
+               final Identifier name = (Identifier) tree.getData(declaration);
+               if (name != null)
+               {
+                  addresses[declaration] = table.define(name);
+               }
+            }
+         } break;
+         case FUNCTION:
+         {
+            if (tree.getData(node) != null && !declaredEarly[node])
+            {
+               defineFunction(node);
+            }
+            resolveFunction(node);
+         } break;
+         case ITER:
+         case EACH:
+         {
+            int child = tree.getFirstChild(node);
+            // The start, end and step, or the collection.
+            for (; tree.getNextSibling(child) != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               resolveExpression(child);
+            }
+            table.beginScope();
+            final Identifier name = (Identifier) tree.getData(node);
+            if (name != null)
+            {
+               addresses[node] = table.define(name);
+            }
+            resolveStatement(child);
+            table.endScope();
+         } break;
+         case IMPORT:
+         {
+            for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               addresses[child] = table.define((Identifier) tree.getData(child));
+            }
+         } break;
+         case ASSIGN:
+         {
+            final int target = tree.getFirstChild(node);
+            resolveExpression(tree.getNextSibling(target));
+            if (tree.getKind(target) == SyntaxTree.Kind.NAME)
+            {
+               addresses[target] = table.resolveAssignment((Identifier) tree.getData(target));
+            }
+            else
+            {
+               resolveExpression(target);
+            }
+         } break;
+         case IF:
+         case WHILE:
+         {
+            final int condition = tree.getFirstChild(node);
+            resolveExpression(condition);
+            for (int child = tree.getNextSibling(condition); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               resolveStatement(child);
+            }
+         } break;
+         default:
+            resolveExpression(node);
+            break;
+      }
+   }
+   
+   private void resolveExpression(int node)
+   {
+      switch (tree.getKind(node))
+      {
+         case NAME:
+            addresses[node] = table.resolve((Identifier) tree.getData(node));
+            break;
+         case FUNCTION:
+            resolveFunction(node);
+            break;
+         case FIELD:
+            // The field name isn't resolved.
+            resolveExpression(tree.getFirstChild(node));
+            break;
+         default:
+         {
+            for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               resolveExpression(child);
+            }
+         } break;
+      }
+   }
+   
+   private void defineFunction(int node)
+   {
+      final Identifier name = (Identifier) tree.getData(node);
+      addresses[node] = table.define(name);
+      if (addresses[node].kind == SymbolAddress.Kind.LOCAL)
+      {
+         // It's stored after its closure is created, so a function which captures itself or
+         // is captured by a function before it needs to be captured as a cell.
+         table.resolveAssignment(name);
+      }
+   }
+   
+   private void resolveFunction(int node)
+   {
+      table.beginFunction();
+      final int parameters = tree.getFirstChild(node);
+      for (int parameter = tree.getFirstChild(parameters); parameter != SyntaxTree.NONE;
+            parameter = tree.getNextSibling(parameter))
+      {
+         addresses[parameter] = table.define((Identifier) tree.getData(parameter));
+      }
+      resolveStatement(tree.getNextSibling(parameters));
+      layouts[node] = table.endFunction();
+   }
+   
+   // ===== Emission
+   
+   /**
+    * @param insn
+    * @param stackChange How many values the instruction pushes, less how many it pops.
+    * @return The index of the instruction.
+    */
+   private int emit(int insn, int stackChange)
+   {
+      final Function function = this.function;
+      if (function.count == function.code.length)
+      {
+         function.code = Arrays.copyOf(function.code, function.count * 2);
+      }
+      function.stackSize += stackChange;
+      assert(function.stackSize >= 0);
+      function.maxStackSize = Math.max(function.maxStackSize, function.stackSize);
+      function.code[function.count] = insn;
+      return function.count++;
+   }
+   
+   /**
+    * Emits a jump with a target that's set later by {@link #patchJump(int, int)}.
+    */
+   private int emitJump(int opcode, int stackChange)
+   {
+      return emit(Instruction.makeJump(opcode, 0), stackChange);
+   }
+   
+   private void patchJump(int jump, int target)
+   {
+      final int[] code = function.code;
+      code[jump] = Instruction.makeJump(Instruction.getOpcode(code[jump]), target - (jump + 1));
+   }
+   
+   private void emitJumpTo(int opcode, int target, int stackChange)
+   {
+      final int jump = emitJump(opcode, stackChange);
+      patchJump(jump, target);
+   }
+   
+   private void emitConstant(LayeObject value)
+   {
+      int index = constants.indexOf(value);
+      if (index < 0)
+      {
+         if (value instanceof LayeInt)
+         {
+            index = constants.addInt(((LayeInt) value).value);
+         }
+         else if (value instanceof LayeFloat)
+         {
+            index = constants.addFloat(((LayeFloat) value).value);
+         }
+         else
+         {
+            index = constants.addString(((LayeString) value).value);
+         }
+      }
+      emit(Instruction.make(Instruction.LOAD_CONST, index), 1);
+   }
+   
+   private int getOperatorIndex(Operator operator)
+   {
+      final List<Operator> operators = function.operators;
+      for (int i = 0; i < operators.size(); i++)
+      {
+         if (operators.get(i) == operator)
+         {
+            return i;
+         }
+      }
+      operators.append(operator);
+      return operators.size() - 1;
+   }
+   
+   private void emitLoad(SymbolAddress address)
+   {
+      switch (address.kind)
+      {
+         case LOCAL:
+            emit(Instruction.make(address.symbol.needsCell() ? Instruction.LOAD_CELL
+                  : Instruction.LOAD_LOCAL, address.index), 1);
+            break;
+         case UPVALUE:
+            emit(Instruction.make(address.symbol.needsCell() ? Instruction.LOAD_UPVALUE_CELL
+                  : Instruction.LOAD_UPVALUE, address.index), 1);
+            break;
+         default:
+            emit(Instruction.make(Instruction.LOAD_GLOBAL, address.index), 1);
+            break;
+      }
+   }
+   
+   /**
+    * Stores the value on top of the stack.
+    * @param address
+    * @param isDefinition If this defines a local, which creates its cell if it needs one.
+    */
+   private void emitStore(SymbolAddress address, boolean isDefinition)
+   {
+      switch (address.kind)
+      {
+         case LOCAL:
+         {
+            final int opcode;
+            if (!address.symbol.needsCell())
+            {
+               opcode = Instruction.STORE_LOCAL;
+            }
+            else
+            {
+               opcode = isDefinition ? Instruction.NEW_CELL : Instruction.STORE_CELL;
+            }
+            emit(Instruction.make(opcode, address.index), -1);
+         } break;
+         case UPVALUE:
+            // Only upvalues that are assigned are stored to, which are all cells.
+            assert(address.symbol.needsCell());
+            emit(Instruction.make(Instruction.STORE_UPVALUE_CELL, address.index), -1);
+            break;
+         default:
+            emit(Instruction.make(Instruction.STORE_GLOBAL, address.index), -1);
+            break;
+      }
+   }
+   
+   private void emitStatement(int node)
+   {
+      switch (tree.getKind(node))
+      {
+         case BLOCK:
+         {
+            // Functions defined early start out null, and their cells exist before any
+            // closure in the block can capture them.
+            for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               if (declaredEarly[child] && addresses[child].kind == SymbolAddress.Kind.LOCAL)
+               {
+                  emit(Instruction.make(Instruction.LOAD_NULL), 1);
+                  emitStore(addresses[child], true);
+               }
+            }
+            for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE;
+                  child = tree.getNextSibling(child))
+            {
+               emitStatement(child);
+            }
+         } break;
+         case VAR:
+         {
+            for (int declaration = tree.getFirstChild(node); declaration != SyntaxTree.NONE;
+                  declaration = tree.getNextSibling(declaration))
+            {
+               if (addresses[declaration] == null)
+               {
+                  continue;
+               }
+               final int value = tree.getFirstChild(declaration);
+               if (value != SyntaxTree.NONE)
+               {
+                  emitExpression(value);
+               }
+               else
+               {
+                  emit(Instruction.make(Instruction.LOAD_NULL), 1);
+               }
+               emitStore(addresses[declaration], true);
+            }
+         } break;
+         case FUNCTION:
+         {
+            final SymbolAddress address = addresses[node];
+            if (address == null)
+            {
+               emitFunction(node);
+               emit(Instruction.make(Instruction.POP), -1);
+            }
+            else if (address.kind == SymbolAddress.Kind.LOCAL && declaredEarly[node])
+            {
+               emitFunction(node);
+               emitStore(address, false);
+            }
+            else if (address.kind == SymbolAddress.Kind.LOCAL && address.symbol.needsCell())
+            {
+               // The cell has to exist before the closure captures it.
+               emit(Instruction.make(Instruction.LOAD_NULL), 1);
+               emitStore(address, true);
+               emitFunction(node);
+               emitStore(address, false);
+            }
+            else
+            {
+               emitFunction(node);
+               emitStore(address, true);
+            }
+         } break;
+         case IF:
+         {
+            final int condition = tree.getFirstChild(node);
+            final int body = tree.getNextSibling(condition);
+            final int otherwise = tree.getNextSibling(body);
+            emitExpression(condition);
+            final int skipBody = emitJump(Instruction.JUMP_IF_FALSE, -1);
+            emitStatement(body);
+            if (otherwise == SyntaxTree.NONE)
+            {
+               patchJump(skipBody, function.count);
+            }
+            else
+            {
+               final int skipOtherwise = emitJump(Instruction.JUMP, 0);
+               patchJump(skipBody, function.count);
+               emitStatement(otherwise);
+               patchJump(skipOtherwise, function.count);
+            }
+         } break;
+         case WHILE:
+         {
+            final int condition = tree.getFirstChild(node);
+            final Loop loop = beginLoop();
+            loop.continueTarget = function.count;
+            emitExpression(condition);
+            final int exit = emitJump(Instruction.JUMP_IF_FALSE, -1);
+            emitStatement(tree.getNextSibling(condition));
+            emitJumpTo(Instruction.JUMP, loop.continueTarget, 0);
+            patchJump(exit, function.count);
+            endLoop(loop, function.count);
+         } break;
+         case ITER:
+         {
+            final int start = tree.getFirstChild(node);
+            final int end = tree.getNextSibling(start);
+            int body = tree.getNextSibling(end);
+            emitExpression(start);
+            emitExpression(end);
+            if (tree.getNextSibling(body) != SyntaxTree.NONE)
+            {
+               emitExpression(body);
+               body = tree.getNextSibling(body);
+            }
+            else
+            {
+               emitConstant(constants.internInt(1));
+            }
+            emit(Instruction.make(Instruction.ITER_PREP), 0);
+            
+            final Loop loop = beginLoop();
+            final int top = function.count;
+            final int exit = emitJump(Instruction.ITER_TEST, 0);
+            emit(Instruction.make(Instruction.DUP), 1);
+            emitStore(addresses[node], true);
+            emitStatement(body);
+            loop.continueTarget = function.count;
+            emit(Instruction.make(Instruction.ITER_STEP), 0);
+            emitJumpTo(Instruction.JUMP, top, 0);
+            final int after = function.count;
+            patchJump(exit, after);
+            endLoop(loop, after);
+            for (int i = 0; i < 3; i++)
+            {
+               emit(Instruction.make(Instruction.POP), -1);
+            }
+         } break;
+         case RETURN:
+         {
+            final int value = tree.getFirstChild(node);
+            if (value != SyntaxTree.NONE)
+            {
+               emitExpression(value);
+            }
+            else
+            {
+               emit(Instruction.make(Instruction.LOAD_NULL), 1);
+            }
+            emit(Instruction.make(Instruction.RETURN), -1);
+         } break;
+         case BREAK:
+         case CONTINUE:
+         {
+            final Loop loop = function.loop;
+            if (loop == null)
+            {
+               logger.logErrorf(tree.getLocation(node), ERROR_JUMP_OUTSIDE_LOOP,
+                     "%s is only allowed in a loop.\n",
+                     tree.getKind(node) == SyntaxTree.Kind.BREAK ? "break" : "cont");
+            }
+            else if (tree.getKind(node) == SyntaxTree.Kind.BREAK)
+            {
+               loop.breakJumps.append(emitJump(Instruction.JUMP, 0));
+            }
+            else if (loop.continueTarget >= 0)
+            {
+               emitJumpTo(Instruction.JUMP, loop.continueTarget, 0);
+            }
+            else
+            {
+               loop.continueJumps.append(emitJump(Instruction.JUMP, 0));
+            }
+         } break;
+         case IMPORT:
+            // Kits can't be loaded yet, imported names are globals which are null.
+            break;
+         case ASSIGN:
+         {
+            final int target = tree.getFirstChild(node);
+            if (tree.getKind(target) != SyntaxTree.Kind.NAME)
+            {
+               if (tree.getKind(target) != SyntaxTree.Kind.ERROR)
+               {
+                  unsupported(target);
+               }
+               break;
+            }
+            emitExpression(tree.getNextSibling(target));
+            emitStore(addresses[target], false);
+         } break;
+         case EACH:
+         case YIELD:
+            unsupported(node);
+            break;
+         default:
+            emitExpression(node);
+            emit(Instruction.make(Instruction.POP), -1);
+            break;
+      }
+   }
+   
+   private Loop beginLoop()
+   {
+      final Loop loop = new Loop(function.loop);
+      function.loop = loop;
+      return loop;
+   }
+   
+   private void endLoop(Loop loop, int breakTarget)
+   {
+      for (int jump : loop.breakJumps)
+      {
+         patchJump(jump, breakTarget);
+      }
+      for (int jump : loop.continueJumps)
+      {
+         patchJump(jump, loop.continueTarget);
+      }
+      function.loop = loop.enclosing;
+   }
+   
+   private void emitExpression(int node)
+   {
+      switch (tree.getKind(node))
+      {
+         case INT_LITERAL:
+         case FLOAT_LITERAL:
+         case STRING_LITERAL:
+            emitConstant((LayeObject) tree.getData(node));
+            break;
+         case TRUE:
+            emit(Instruction.make(Instruction.LOAD_TRUE), 1);
+            break;
+         case FALSE:
+            emit(Instruction.make(Instruction.LOAD_FALSE), 1);
+            break;
+         case NULL:
+            emit(Instruction.make(Instruction.LOAD_NULL), 1);
+            break;
+         case NAME:
+            emitLoad(addresses[node]);
+            break;
+         case FUNCTION:
+            emitFunction(node);
+            break;
+         case PREFIX:
+         {
+            final Operator operator = (Operator) tree.getData(node);
+            emitExpression(tree.getFirstChild(node));
+            if (operator == Operator.MINUS)
+            {
+               emit(Instruction.make(Instruction.NEG), 0);
+            }
+            else if (operator == Operator.XOR_COMPL)
+            {
+               emit(Instruction.make(Instruction.BNOT), 0);
+            }
+            else
+            {
+               emit(Instruction.make(Instruction.UNARY_OP, getOperatorIndex(operator)), 0);
+            }
+         } break;
+         case INFIX:
+         {
+            final Operator operator = (Operator) tree.getData(node);
+            final int left = tree.getFirstChild(node);
+            emitExpression(left);
+            emitExpression(tree.getNextSibling(left));
+            final Integer opcode = BINARY_OPCODES.get(operator);
+            if (opcode != null)
+            {
+               emit(Instruction.make(opcode), -1);
+            }
+            else
+            {
+               emit(Instruction.make(Instruction.BINARY_OP, getOperatorIndex(operator)), -1);
+            }
+         } break;
+         case AND:
+         case OR:
+         {
+            final int left = tree.getFirstChild(node);
+            emitExpression(left);
+            emit(Instruction.make(Instruction.DUP), 1);
+            // The left value is the result if it decides it.
+            final int skip = emitJump(tree.getKind(node) == SyntaxTree.Kind.AND
+                  ? Instruction.JUMP_IF_FALSE : Instruction.JUMP_IF_TRUE, -1);
+            emit(Instruction.make(Instruction.POP), -1);
+            emitExpression(tree.getNextSibling(left));
+            patchJump(skip, function.count);
+         } break;
+         case XOR:
+         {
+            final int left = tree.getFirstChild(node);
+            emitExpression(left);
+            emitExpression(tree.getNextSibling(left));
+            emit(Instruction.make(Instruction.XOR), -1);
+         } break;
+         case NOT:
+            emitExpression(tree.getFirstChild(node));
+            emit(Instruction.make(Instruction.NOT), 0);
+            break;
+         case CALL:
+         {
+            final int callee = tree.getFirstChild(node);
+            emitExpression(callee);
+            int argumentCount = 0;
+            for (int argument = tree.getNextSibling(callee); argument != SyntaxTree.NONE;
+                  argument = tree.getNextSibling(argument))
+            {
+               emitExpression(argument);
+               argumentCount++;
+            }
+            emit(Instruction.make(Instruction.CALL, argumentCount), -argumentCount);
+         } break;
+         case ERROR:
+            // Already reported by the parser.
+            emit(Instruction.make(Instruction.LOAD_NULL), 1);
+            break;
+         default:
+            unsupported(node);
+            emit(Instruction.make(Instruction.LOAD_NULL), 1);
+            break;
+      }
+   }
+   
+   /**
+    * Emits the creation of a closure of the given function.
+    */
+   private void emitFunction(int node)
+   {
+      final SymbolTable.FunctionLayout layout = layouts[node];
+      final int parameters = tree.getFirstChild(node);
+      final int body = tree.getNextSibling(parameters);
+      
+      final Function enclosing = function;
+      function = new Function(enclosing);
+      
+      int parameterCount = 0;
+      for (int parameter = tree.getFirstChild(parameters); parameter != SyntaxTree.NONE;
+            parameter = tree.getNextSibling(parameter))
+      {
+         final SymbolAddress address = addresses[parameter];
+         if (address.symbol.needsCell() && address.index == parameterCount)
+         {
+            emit(Instruction.make(Instruction.LOAD_LOCAL, address.index), 1);
+            emitStore(address, true);
+         }
+         parameterCount++;
+      }
+      
+      if (isStatement(body))
+      {
+         emitStatement(body);
+         emit(Instruction.make(Instruction.LOAD_NULL), 1);
+      }
+      else
+      {
+         emitExpression(body);
+      }
+      emit(Instruction.make(Instruction.RETURN), -1);
+      
+      final int[] upvalues = new int[layout.getUpvalueCount()];
+      for (int i = 0; i < upvalues.length; i++)
+      {
+         final SymbolTable.Upvalue upvalue = layout.getUpvalue(i);
+         upvalues[i] = upvalue.index << 1 | (upvalue.isLocal ? 1 : 0);
+      }
+      final Identifier name = (Identifier) tree.getData(node);
+      final FunctionPrototype prototype = finish(name == null ? null : name.image,
+            parameterCount, layout.frameSize, upvalues);
+      
+      function = enclosing;
+      function.functions.append(prototype);
+      emit(Instruction.make(Instruction.CLOSURE, function.functions.size() - 1), 1);
+   }
+   
+   private FunctionPrototype finish(String name, int parameterCount, int frameSize,
+         int[] upvalues)
+   {
+      final Function function = this.function;
+      final FunctionPrototype[] functions = new FunctionPrototype[function.functions.size()];
+      for (int i = 0; i < functions.length; i++)
+      {
+         functions[i] = function.functions.get(i);
+      }
+      final Operator[] operators = new Operator[function.operators.size()];
+      for (int i = 0; i < operators.length; i++)
+      {
+         operators[i] = function.operators.get(i);
+      }
+      int[] code = Arrays.copyOf(function.code, function.count);
+      if (fusing)
+      {
+         code = InstructionFuser.fuse(code);
+      }
+      return new FunctionPrototype(name, code,
+            parameterCount, frameSize, function.maxStackSize, functions, upvalues, operators);
+   }
+}
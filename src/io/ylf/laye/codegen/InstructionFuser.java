@@ -0,0 +1,188 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.codegen;
+
+import java.util.Arrays;
+
+import io.ylf.laye.vm.Instruction;
+
+/**
+ * Rewrites pairs of instructions that often run together into single superinstructions, so
+ * that the virtual machine dispatches fewer instructions.
+ * 
+ * The pairs were chosen with {@link OpcodeStatistics} over the interpreter benchmark's
+ * programs and the kits in the repository. These were the most frequent pairs once weighted
+ * by loop depth, far ahead of the rest:
+ * <ul>
+ * <li>LOAD_LOCAL, LOAD_CONST and LOAD_LOCAL, LOAD_LOCAL, the operands of most arithmetic
+ * and comparisons.</li>
+ * <li>ADD, STORE_LOCAL, accumulating into a local.</li>
+ * <li>STORE_LOCAL, LOAD_LOCAL, from one statement to the next.</li>
+ * <li>DUP, STORE_LOCAL and ITER_STEP, JUMP, which every iteration of an <code>iter</code>
+ * loop runs.</li>
+ * </ul>
+ * 
+ * Pairs are fused from first to last. A pair is only fused if its second instruction isn't
+ * jumped to and its first doesn't jump, and if both of their operands fit.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class InstructionFuser
+{
+   /** Each pair of opcodes, and the superinstruction it fuses into. */
+   private static final int[][] FUSIONS =
+   {
+      { Instruction.LOAD_LOCAL, Instruction.LOAD_CONST, Instruction.LOAD_LOCAL_CONST },
+      { Instruction.LOAD_LOCAL, Instruction.LOAD_LOCAL, Instruction.LOAD_LOCAL_LOCAL },
+      { Instruction.STORE_LOCAL, Instruction.LOAD_LOCAL, Instruction.STORE_LOAD_LOCAL },
+      { Instruction.ADD, Instruction.STORE_LOCAL, Instruction.ADD_STORE_LOCAL },
+      { Instruction.DUP, Instruction.STORE_LOCAL, Instruction.DUP_STORE_LOCAL },
+      { Instruction.ITER_STEP, Instruction.JUMP, Instruction.ITER_STEP_JUMP },
+   };
+   
+   private static final int N = Instruction.OPCODE_COUNT;
+   
+   /** The superinstruction of each pair of opcodes, or -1. */
+   private static final int[] FUSED = new int[N * N];
+   
+   static
+   {
+      Arrays.fill(FUSED, -1);
+      for (int[] fusion : FUSIONS)
+      {
+         FUSED[fusion[0] * N + fusion[1]] = fusion[2];
+      }
+   }
+   
+   /**
+    * @param code
+    * @return The given code with its pairs fused, or the given code if there were none.
+    */
+   public static int[] fuse(int[] code)
+   {
+      final boolean[] isTarget = OpcodeStatistics.findJumpTargets(code);
+      
+      final int[] result = new int[code.length];
+      // The index in the result of each instruction, or of the one it was fused into.
+      final int[] indices = new int[code.length + 1];
+      // The target in the code of each jump in the result.
+      final int[] targets = new int[code.length];
+      int count = 0;
+      
+      for (int pc = 0; pc < code.length; pc++)
+      {
+         final int insn = code[pc];
+         final int opcode = Instruction.getOpcode(insn);
+         indices[pc] = count;
+         
+         if (pc + 1 < code.length && !isTarget[pc + 1] && !Instruction.isJump(opcode))
+         {
+            final int next = code[pc + 1];
+            final int fused = fuse(insn, next);
+            if (fused != -1)
+            {
+               if (Instruction.isJump(Instruction.getOpcode(next)))
+               {
+                  targets[count] = pc + 2 + Instruction.getSA(next);
+               }
+               indices[pc + 1] = count;
+               result[count++] = fused;
+               pc++;
+               continue;
+            }
+         }
+         
+         if (Instruction.isJump(opcode))
+         {
+            targets[count] = pc + 1 + Instruction.getSA(insn);
+         }
+         result[count++] = insn;
+      }
+      indices[code.length] = count;
+      
+      if (count == code.length)
+      {
+         return code;
+      }
+      
+      final int[] fused = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         final int insn = result[i];
+         final int opcode = Instruction.getOpcode(insn);
+         fused[i] = Instruction.isJump(opcode)
+               ? Instruction.makeJump(opcode, indices[targets[i]] - (i + 1)) : insn;
+      }
+      return fused;
+   }
+   
+   /**
+    * @return The superinstruction doing the work of the given pair, or -1 if they can't be
+    *         fused. Jumps are left without an offset.
+    */
+   private static int fuse(int first, int second)
+   {
+      final int firstOpcode = Instruction.getOpcode(first);
+      final int secondOpcode = Instruction.getOpcode(second);
+      final int opcode = FUSED[firstOpcode * N + secondOpcode];
+      if (opcode == -1)
+      {
+         return -1;
+      }
+      if (Instruction.isJump(opcode))
+      {
+         return Instruction.makeJump(opcode, 0);
+      }
+      final boolean firstHasA = Instruction.hasA(firstOpcode);
+      final boolean secondHasA = Instruction.hasA(secondOpcode);
+      if (firstHasA && secondHasA)
+      {
+         final int b = Instruction.getA(first), c = Instruction.getA(second);
+         if (b > Instruction.MAX_B || c > Instruction.MAX_B)
+         {
+            return -1;
+         }
+         return Instruction.make(opcode, b, c);
+      }
+      if (firstHasA)
+      {
+         return Instruction.make(opcode, Instruction.getA(first));
+      }
+      if (secondHasA)
+      {
+         final int a = Instruction.getA(second);
+         if (Instruction.hasBC(opcode))
+         {
+            // The superinstruction can be quickened, and the machine keeps its own count in C.
+            return a > Instruction.MAX_B ? -1 : Instruction.make(opcode, a, 0);
+         }
+         return Instruction.make(opcode, a);
+      }
+      return Instruction.make(opcode);
+   }
+   
+   private InstructionFuser()
+   {
+   }
+}
@@ -0,0 +1,233 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.codegen;
+
+import io.ylf.laye.vm.FunctionPrototype;
+import io.ylf.laye.vm.Instruction;
+import io.ylf.laye.vm.KitPrototype;
+
+/**
+ * Counts how often sequences of opcodes appear in compiled code, to find which sequences are
+ * worth fusing into superinstructions.
+ * 
+ * Only sequences that always run from start to end are counted: none of their instructions
+ * but the first is jumped to, and none but the last jumps or returns.
+ * 
+ * Code in loops runs more often than code outside of them, so each appearance counts
+ * {@link #LOOP_WEIGHT} times as much for each loop it's in. A loop is the code from the
+ * target of a backward jump to the jump.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class OpcodeStatistics
+{
+   public static final int MAX_LENGTH = 3;
+   
+   public static final long LOOP_WEIGHT = 10;
+   
+   private static final int N = Instruction.OPCODE_COUNT;
+   
+   /** The counts of the sequences of each length, indexed by their opcodes in base N. */
+   private final long[][] counts = new long[MAX_LENGTH + 1][];
+   
+   public OpcodeStatistics()
+   {
+      for (int length = 1, size = N; length <= MAX_LENGTH; length++, size *= N)
+      {
+         counts[length] = new long[size];
+      }
+   }
+   
+   public void add(KitPrototype kit)
+   {
+      add(kit.body);
+   }
+   
+   /**
+    * Counts the sequences in the given function and the functions nested in it.
+    * @param prototype
+    */
+   public void add(FunctionPrototype prototype)
+   {
+      final int[] code = prototype.code;
+      final boolean[] isTarget = findJumpTargets(code);
+      final long[] weights = getWeights(code);
+      for (int start = 0; start < code.length; start++)
+      {
+         int key = 0;
+         for (int length = 1; length <= MAX_LENGTH && start + length <= code.length; length++)
+         {
+            final int pc = start + length - 1;
+            if (length > 1 && (isTarget[pc] || endsBlock(code[pc - 1])))
+            {
+               break;
+            }
+            key = key * N + Instruction.getOpcode(code[pc]);
+            counts[length][key] += weights[start];
+         }
+      }
+      for (FunctionPrototype function : prototype.functions)
+      {
+         add(function);
+      }
+   }
+   
+   /**
+    * @param code
+    * @return Whether each instruction of the given code is jumped to.
+    */
+   public static boolean[] findJumpTargets(int[] code)
+   {
+      final boolean[] result = new boolean[code.length + 1];
+      for (int pc = 0; pc < code.length; pc++)
+      {
+         if (Instruction.isJump(Instruction.getOpcode(code[pc])))
+         {
+            result[pc + 1 + Instruction.getSA(code[pc])] = true;
+         }
+      }
+      return result;
+   }
+   
+   /**
+    * @return How much each instruction of the given code counts, by the loops it's in.
+    */
+   private static long[] getWeights(int[] code)
+   {
+      final int[] depths = new int[code.length];
+      for (int pc = 0; pc < code.length; pc++)
+      {
+         final int offset = Instruction.getSA(code[pc]);
+         if (Instruction.isJump(Instruction.getOpcode(code[pc])) && offset < 0)
+         {
+            for (int i = pc + 1 + offset; i <= pc; i++)
+            {
+               depths[i]++;
+            }
+         }
+      }
+      final long[] result = new long[code.length];
+      for (int pc = 0; pc < code.length; pc++)
+      {
+         long weight = 1;
+         for (int i = 0; i < depths[pc]; i++)
+         {
+            weight *= LOOP_WEIGHT;
+         }
+         result[pc] = weight;
+      }
+      return result;
+   }
+   
+   private static boolean endsBlock(int insn)
+   {
+      final int opcode = Instruction.getOpcode(insn);
+      return Instruction.isJump(opcode) || opcode == Instruction.RETURN;
+   }
+   
+   /**
+    * @param opcodes
+    * @return The weighted number of times the given sequence of opcodes appeared.
+    */
+   public long getCount(int... opcodes)
+   {
+      assert(opcodes.length >= 1 && opcodes.length <= MAX_LENGTH);
+      int key = 0;
+      for (int opcode : opcodes)
+      {
+         key = key * N + opcode;
+      }
+      return counts[opcodes.length][key];
+   }
+   
+   /**
+    * @param length
+    * @param limit
+    * @return Up to the given number of the most frequent sequences of the given length, most
+    *         frequent first.
+    */
+   public int[][] getMostFrequent(int length, int limit)
+   {
+      final long[] lengthCounts = counts[length];
+      int found = 0;
+      final int[] keys = new int[limit];
+      for (int key = 0; key < lengthCounts.length; key++)
+      {
+         if (lengthCounts[key] == 0)
+         {
+            continue;
+         }
+         // Insert into the sorted keys, dropping the least frequent if they're full.
+         int i = Math.min(found, limit - 1);
+         if (found == limit && lengthCounts[keys[i]] >= lengthCounts[key])
+         {
+            continue;
+         }
+         while (i > 0 && lengthCounts[keys[i - 1]] < lengthCounts[key])
+         {
+            keys[i] = keys[i - 1];
+            i--;
+         }
+         keys[i] = key;
+         found = Math.min(found + 1, limit);
+      }
+      final int[][] result = new int[found][length];
+      for (int i = 0; i < found; i++)
+      {
+         for (int j = length - 1, key = keys[i]; j >= 0; j--, key /= N)
+         {
+            result[i][j] = key % N;
+         }
+      }
+      return result;
+   }
+   
+   /**
+    * @param limit
+    * @return The most frequent sequences of each length, with their counts, one per line.
+    */
+   public String toString(int limit)
+   {
+      final StringBuilder result = new StringBuilder();
+      for (int length = 2; length <= MAX_LENGTH; length++)
+      {
+         for (int[] sequence : getMostFrequent(length, limit))
+         {
+            result.append(String.format("%8d ", getCount(sequence)));
+            for (int opcode : sequence)
+            {
+               result.append(' ').append(Instruction.getName(opcode));
+            }
+            result.append('\n');
+         }
+      }
+      return result.toString();
+   }
+   
+   @Override
+   public String toString()
+   {
+      return toString(10);
+   }
+}
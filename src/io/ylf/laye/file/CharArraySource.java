@@ -0,0 +1,67 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.file;
+
+/**
+ * A character source backed by an in-memory character array.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class CharArraySource implements CharacterSource
+{
+   public static CharArraySource fromString(String text)
+   {
+      assert(text != null);
+      return new CharArraySource(text.toCharArray(), text.length());
+   }
+   
+   private final char[] chars;
+   private final int length;
+   
+   public CharArraySource(char[] chars, int length)
+   {
+      assert(chars != null);
+      assert(length >= 0 && length <= chars.length);
+      this.chars = chars;
+      this.length = length;
+   }
+   
+   @Override
+   public char[] getCharacters()
+   {
+      return chars;
+   }
+   
+   @Override
+   public int length()
+   {
+      return length;
+   }
+   
+   @Override
+   public String toString()
+   {
+      return new String(chars, 0, length);
+   }
+}
@@ -0,0 +1,156 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.file;
+
+import java.util.Arrays;
+
+/**
+ * The start offsets of every line in a source, used to turn character offsets into lines and
+ * columns.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class LineIndex
+{
+   public static LineIndex build(CharacterSource source)
+   {
+      final char[] chars = source.getCharacters();
+      final int length = source.length();
+      
+      int[] starts = new int[Math.max(16, length / 32)];
+      int count = 1;
+      // starts[0] is the first line, which always starts at 0.
+      for (int i = 0; i < length; i++)
+      {
+         if (chars[i] == '\n')
+         {
+            if (count == starts.length)
+            {
+               starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count++] = i + 1;
+         }
+      }
+      
+      return new LineIndex(Arrays.copyOf(starts, count));
+   }
+   
+   private final int[] lineStarts;
+   
+   private LineIndex(int[] lineStarts)
+   {
+      this.lineStarts = lineStarts;
+   }
+   
+   /**
+    * Creates the index of the source this one was built for after a range of it is replaced.
+    * Only the inserted text is scanned, the other line starts are copied from this index.
+    * @param offset The offset of the first replaced character.
+    * @param removedLength The number of characters replaced.
+    * @param inserted The text that replaces them.
+    * @return
+    */
+   public LineIndex edit(int offset, int removedLength, CharSequence inserted)
+   {
+      assert(offset >= 0 && removedLength >= 0);
+      final int insertedLength = inserted.length();
+      final int delta = insertedLength - removedLength;
+      
+      // Lines starting up to the offset stay, those starting after a removed line feed go.
+      final int kept = getLine(offset);
+      final int moved = lineStarts.length - getLine(offset + removedLength);
+      int added = 0;
+      for (int i = 0; i < insertedLength; i++)
+      {
+         if (inserted.charAt(i) == '\n')
+         {
+            added++;
+         }
+      }
+      
+      final int[] starts = Arrays.copyOf(lineStarts, kept + added + moved);
+      int count = kept;
+      for (int i = 0; i < insertedLength; i++)
+      {
+         if (inserted.charAt(i) == '\n')
+         {
+            starts[count++] = offset + i + 1;
+         }
+      }
+      for (int i = lineStarts.length - moved; i < lineStarts.length; i++)
+      {
+         starts[count++] = lineStarts[i] + delta;
+      }
+      return new LineIndex(starts);
+   }
+   
+   public int getLineCount()
+   {
+      return lineStarts.length;
+   }
+   
+   /**
+    * @param line The line, 1-based.
+    * @return The offset of the first character of the given line.
+    */
+   public int getLineStart(int line)
+   {
+      assert(line >= 1 && line <= lineStarts.length);
+      return lineStarts[line - 1];
+   }
+   
+   /**
+    * @param offset A character offset, 0-based.
+    * @return The line containing the given offset, 1-based.
+    */
+   public int getLine(int offset)
+   {
+      assert(offset >= 0);
+      int low = 0, high = lineStarts.length - 1;
+      while (low < high)
+      {
+         final int mid = (low + high + 1) >>> 1;
+         if (lineStarts[mid] <= offset)
+         {
+            low = mid;
+         }
+         else
+         {
+            high = mid - 1;
+         }
+      }
+      return low + 1;
+   }
+   
+   /**
+    * Unlike the column counted by the lexer, a carriage return inside a line still counts as
+    * a column here.
+    * @param offset A character offset, 0-based.
+    * @return The column of the given offset within its line, 1-based.
+    */
+   public int getColumn(int offset)
+   {
+      return offset - lineStarts[getLine(offset) - 1] + 1;
+   }
+}
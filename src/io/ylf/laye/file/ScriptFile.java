@@ -25,8 +25,15 @@ package io.ylf.laye.file;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * @author Sekai Kyoretsuna
@@ -47,6 +54,8 @@ public class ScriptFile
    // TODO(sekai): enums? I don't like having a bool here.
    private final boolean isResource;
    
+   private volatile LineIndex lineIndex = null;
+   
    private ScriptFile(String path, boolean isResource)
    {
       this.path = path;
@@ -61,6 +70,103 @@ public class ScriptFile
       }
       return new FileInputStream(new File(path));
    }
+   
+   /**
+    * Reads the entire contents of this file at once. Files on disk are memory mapped, resources
+    * are read in bulk into a single array.
+    * @return A buffer holding all bytes of this file.
+    * @throws IOException
+    */
+   public ByteBuffer readBytes() throws IOException
+   {
+      if (isResource)
+      {
+         try (InputStream input = read())
+         {
+            if (input == null)
+            {
+               throw new FileNotFoundException(path);
+            }
+            return readFully(input);
+         }
+      }
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+      {
+         final long size = channel.size();
+         if (size > Integer.MAX_VALUE)
+         {
+            throw new IOException("File is too large: " + path);
+         }
+         return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+   }
+   
+   /**
+    * Reads and decodes the entire contents of this file as UTF-8.
+    * @return
+    * @throws IOException
+    */
+   public CharacterSource readSource() throws IOException
+   {
+      return Utf8Decoder.decode(readBytes());
+   }
+   
+   /**
+    * Builds the line index of this file from the given source, replacing any existing one.
+    * This should be called with the source that offsets into this file refer to.
+    * @param source
+    */
+   public void indexLines(CharacterSource source)
+   {
+      lineIndex = LineIndex.build(source);
+   }
+   
+   /**
+    * Replaces the line index of this file, such as with one updated for an edit.
+    * @param index
+    */
+   public void setLineIndex(LineIndex index)
+   {
+      lineIndex = index;
+   }
+   
+   /**
+    * Returns the line index of this file, reading the file to build it if it hasn't been
+    * built yet.
+    * @return
+    */
+   public LineIndex getLineIndex()
+   {
+      LineIndex result = lineIndex;
+      if (result == null)
+      {
+         try
+         {
+            indexLines(readSource());
+         }
+         catch (IOException e)
+         {
+            throw new UncheckedIOException(e);
+         }
+         result = lineIndex;
+      }
+      return result;
+   }
+   
+   private static ByteBuffer readFully(InputStream input) throws IOException
+   {
+      byte[] buffer = new byte[Math.max(input.available(), 8192)];
+      int length = 0, count;
+      while ((count = input.read(buffer, length, buffer.length - length)) != -1)
+      {
+         length += count;
+         if (length == buffer.length)
+         {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+         }
+      }
+      return ByteBuffer.wrap(buffer, 0, length);
+   }
 
    @Override
    public int hashCode()
@@ -0,0 +1,120 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.file;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes UTF-8 encoded source bytes in one pass.
+ * 
+ * Laye sources are almost always plain ASCII, so bytes are copied straight into the result
+ * until the first non-ASCII byte is found. Only the remainder is handed to a real UTF-8
+ * decoder. Malformed input is replaced rather than reported.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class Utf8Decoder
+{
+   /**
+    * Decodes the remaining bytes of the given buffer. The buffer's position is not modified.
+    * A leading byte order mark is skipped.
+    * @param bytes
+    * @return
+    */
+   public static CharArraySource decode(ByteBuffer bytes)
+   {
+      assert(bytes != null);
+      
+      int index = bytes.position();
+      final int limit = bytes.limit();
+      
+      if (limit - index >= 3 && bytes.get(index) == (byte) 0xEF &&
+            bytes.get(index + 1) == (byte) 0xBB && bytes.get(index + 2) == (byte) 0xBF)
+      {
+         index += 3;
+      }
+      
+      // UTF-8 never produces more UTF-16 units than it has bytes, so this never overflows.
+      final char[] chars = new char[limit - index];
+      int count = 0;
+      
+      if (bytes.hasArray())
+      {
+         final byte[] array = bytes.array();
+         final int arrayOffset = bytes.arrayOffset();
+         for (; index < limit; index++)
+         {
+            final byte b = array[arrayOffset + index];
+            if (b < 0)
+            {
+               break;
+            }
+            chars[count++] = (char) b;
+         }
+      }
+      else
+      {
+         for (; index < limit; index++)
+         {
+            final byte b = bytes.get(index);
+            if (b < 0)
+            {
+               break;
+            }
+            chars[count++] = (char) b;
+         }
+      }
+      
+      if (index < limit)
+      {
+         count = decodeRemaining(bytes, index, chars, count);
+      }
+      
+      return new CharArraySource(chars, count);
+   }
+   
+   private static int decodeRemaining(ByteBuffer bytes, int index, char[] chars, int count)
+   {
+      final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      
+      final ByteBuffer in = bytes.duplicate();
+      in.position(index);
+      
+      final CharBuffer out = CharBuffer.wrap(chars, count, chars.length - count);
+      decoder.decode(in, out, true);
+      decoder.flush(out);
+      
+      return out.position();
+   }
+   
+   private Utf8Decoder()
+   {
+   }
+}
@@ -0,0 +1,109 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import io.ylf.laye.struct.Identifier;
+import io.ylf.laye.struct.Operator;
+
+/**
+ * Character classes used by the lexer, as bit flags.
+ * 
+ * The classes of all ASCII characters are looked up in a table built once from the normal
+ * predicates, so the lexer tests a single table entry instead of calling each predicate in turn.
+ * Other characters take a slow path through the same predicates.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+final class CharacterClass
+{
+   public static final int WHITESPACE = 0x01;
+   public static final int OPERATOR = 0x02;
+   public static final int DIGIT = 0x04;
+   public static final int IDENTIFIER_START = 0x08;
+   public static final int IDENTIFIER_PART = 0x10;
+   public static final int LETTER_OR_DIGIT = 0x20;
+   public static final int HEXADECIMAL = 0x40;
+   
+   private static final byte[] ASCII = new byte[128];
+   
+   static
+   {
+      for (char c = 0; c < ASCII.length; c++)
+      {
+         ASCII[c] = (byte) compute(c);
+      }
+   }
+   
+   private static int compute(char c)
+   {
+      int result = 0;
+      if (Character.isWhitespace(c))
+      {
+         result |= WHITESPACE;
+      }
+      if (Operator.isOperatorChar(c))
+      {
+         result |= OPERATOR;
+      }
+      if (Character.isDigit(c))
+      {
+         result |= DIGIT;
+      }
+      if (Identifier.isIdentifierStart(c))
+      {
+         result |= IDENTIFIER_START;
+      }
+      if (Identifier.isIdentifierPart(c))
+      {
+         result |= IDENTIFIER_PART;
+      }
+      if (Character.isLetterOrDigit(c))
+      {
+         result |= LETTER_OR_DIGIT;
+      }
+      if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))
+      {
+         result |= HEXADECIMAL;
+      }
+      return result;
+   }
+   
+   /**
+    * @param c
+    * @return All classes the given character belongs to.
+    */
+   public static int of(char c)
+   {
+      return c < 128 ? ASCII[c] : compute(c);
+   }
+   
+   public static boolean is(char c, int classes)
+   {
+      return (of(c) & classes) != 0;
+   }
+   
+   private CharacterClass()
+   {
+   }
+}
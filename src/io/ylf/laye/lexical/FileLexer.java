@@ -24,127 +24,630 @@
 package io.ylf.laye.lexical;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static io.ylf.laye.LogMessageID.*;
 
+import io.ylf.laye.file.CharacterSource;
 import io.ylf.laye.file.ScriptFile;
+import io.ylf.laye.file.Utf8Decoder;
 import io.ylf.laye.log.DetailLogger;
-import io.ylf.laye.struct.Identifier;
 import io.ylf.laye.struct.Keyword;
 import io.ylf.laye.struct.Operator;
-import io.ylf.laye.vm.LayeFloat;
-import io.ylf.laye.vm.LayeInt;
-import io.ylf.laye.vm.LayeString;
+import io.ylf.laye.vm.ConstantPool;
 
 /**
  * @author Sekai Kyoretsuna
  */
-public class FileLexer
+public class FileLexer implements TokenSource
 {
    /**
-    * @author Sekai Kyoretsuna
+    * Lexes all of the given files using the common fork/join pool.
+    * @see #getAllTokens(DetailLogger, Collection, ForkJoinPool)
     */
-   private static interface CharacterMatcher
+   public static Map<ScriptFile, TokenStream> getAllTokens(DetailLogger logger,
+         Collection<ScriptFile> files) throws IOException
    {
-      boolean apply(char c);
+      return getAllTokens(logger, files, ForkJoinPool.commonPool());
    }
    
-   private static boolean isHexadecimalCharacter(char c)
+   /**
+    * Lexes all of the given files in parallel, one task per file. Each task gets its own
+    * lexer, all of them logging to the given logger.
+    * @param logger
+    * @param files
+    * @param pool
+    * @return The tokens of each file, in the order the files were given.
+    * @throws IOException If any of the files could not be read.
+    */
+   public static Map<ScriptFile, TokenStream> getAllTokens(DetailLogger logger,
+         Collection<ScriptFile> files, ForkJoinPool pool) throws IOException
    {
-      return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+      return getAllTokens(logger, new ConstantPool(), files, pool);
    }
    
-   private static boolean isBinaryCharacter(char c)
+   /**
+    * Lexes all of the given files in parallel, one task per file. Each task gets its own
+    * lexer, all of them logging to the given logger and adding literals to the given constant
+    * pool. Lexers aren't kept in the pool's threads, so nothing outlives the call.
+    * @param logger
+    * @param constants
+    * @param files
+    * @param pool
+    * @return The tokens of each file, in the order the files were given.
+    * @throws IOException If any of the files could not be read.
+    */
+   public static Map<ScriptFile, TokenStream> getAllTokens(DetailLogger logger,
+         ConstantPool constants, Collection<ScriptFile> files, ForkJoinPool pool)
+         throws IOException
    {
-      return c == '0' || c == '1';
+      final ArrayList<ForkJoinTask<TokenStream>> tasks = new ArrayList<>(files.size());
+      for (final ScriptFile file : files)
+      {
+         final Callable<TokenStream> task = () -> new FileLexer(logger, constants).getTokens(file);
+         tasks.add(pool.submit(task));
+      }
+      
+      final Map<ScriptFile, TokenStream> result = new LinkedHashMap<>();
+      int index = 0;
+      for (final ScriptFile file : files)
+      {
+         try
+         {
+            result.put(file, tasks.get(index++).get());
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while lexing " + file.path, e);
+         }
+         catch (ExecutionException e)
+         {
+            if (e.getCause() instanceof IOException)
+            {
+               throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+         }
+      }
+      return result;
    }
    
-   private static boolean isOctalCharacter(char c)
+   /**
+    * @return The value of the given digit in radices up to 16, or 16 if it isn't one.
+    */
+   private static int digitValue(char c)
    {
-      return c >= '0' && c <= '7';
+      if (c >= '0' && c <= '9')
+      {
+         return c - '0';
+      }
+      if (c >= 'a' && c <= 'f')
+      {
+         return c - 'a' + 10;
+      }
+      if (c >= 'A' && c <= 'F')
+      {
+         return c - 'A' + 10;
+      }
+      return 16;
    }
 
    private final DetailLogger logger;
+   private final ConstantPool constants;
    
-   private InputStream input = null;
    private ScriptFile file = null;
    
-   private StringBuilder builder = new StringBuilder();
+   private char[] chars = null;
+   private int length = 0;
+   private int position = 0;
+   
+   // Characters of the current token which can't be taken from the source as they are.
+   private char[] builder = new char[64];
+   private int builderLength = 0;
+   private final IdentifierTable identifiers = new IdentifierTable();
+   private final NumberConstants numbers;
+   private final StringConstants strings;
    private char currentChar = '\u0000';
    
    private int line = 1, column = 0;
    private boolean eof;
    
+   private boolean lazyLocations = false;
+   
+   private TokenCache tokenCache = null;
+   
+   // The last lexed token, kept in fields so that it can be stored without allocating a Token.
+   private Token.Type tokenType;
+   private Object tokenData;
+   private int tokenOffset, tokenLine, tokenColumn;
+   
+   // The value of the integer digits read by lexIntegerDigits.
+   private long integerValue;
+   private boolean integerOverflow;
+   private int integerDigits;
+   
+   /**
+    * Creates a lexer with a constant pool of its own.
+    * @param logger
+    */
    public FileLexer(DetailLogger logger)
+   {
+      this(logger, new ConstantPool());
+   }
+   
+   /**
+    * @param logger
+    * @param constants The pool the constants of all literals are added to.
+    */
+   public FileLexer(DetailLogger logger, ConstantPool constants)
    {
       this.logger = logger;
+      this.constants = constants;
+      this.numbers = new NumberConstants(constants);
+      this.strings = new StringConstants(constants);
+   }
+   
+   public ConstantPool getConstants()
+   {
+      return constants;
+   }
+   
+   /**
+    * When enabled, the lexer doesn't count lines and columns. Tokens only record their offset,
+    * and the file's line index is built up front so that lines and columns can be looked up
+    * when a location is printed.
+    * @param lazyLocations
+    */
+   public void setLazyLocations(boolean lazyLocations)
+   {
+      this.lazyLocations = lazyLocations;
+   }
+   
+   public boolean hasLazyLocations()
+   {
+      return lazyLocations;
+   }
+   
+   /**
+    * Sets the cache {@link #getTokens(ScriptFile)} and {@link #getTokenBuffer(ScriptFile)} look
+    * files up in before lexing them, and store their tokens in after. Files lexed with errors
+    * or warnings are not stored. Problems with the cache itself never make lexing fail.
+    * @param tokenCache The cache to use, or <code>null</code> to always lex.
+    */
+   public void setTokenCache(TokenCache tokenCache)
+   {
+      this.tokenCache = tokenCache;
+   }
+   
+   public TokenCache getTokenCache()
+   {
+      return tokenCache;
    }
    
    public TokenStream getTokens(ScriptFile file) throws IOException
    {
-      this.file = file;
-      this.input = file.read();
+      if (tokenCache == null)
+      {
+         return getTokens(file, file.readSource());
+      }
       
-      TokenStream result = new TokenStream(logger);
+      final ByteBuffer bytes = file.readBytes();
+      final String key = TokenCache.getKey(bytes);
       
-      readChar();
+      final TokenBuffer cached = tokenCache.load(file, key, constants);
+      if (cached != null)
+      {
+         // A stream holds Token objects, so they have to be built here.
+         final TokenStream result = new TokenStream(logger);
+         for (int i = 0; i < cached.size(); i++)
+         {
+            result.append(cached.get(i));
+         }
+         return result;
+      }
+      
+      // The logger may be shared with other lexers, so this can only err towards not storing.
+      final int errorCount = logger.getErrorCount();
+      final int warningCount = logger.getWarningCount();
+      
+      final TokenStream result = getTokens(file, Utf8Decoder.decode(bytes));
+      
+      if (logger.getErrorCount() == errorCount && logger.getWarningCount() == warningCount)
+      {
+         final TokenBuffer tokens = new TokenBuffer(file, lazyLocations);
+         for (final Token token : result)
+         {
+            tokens.append(token);
+         }
+         tokenCache.store(key, tokens);
+      }
+      return result;
+   }
+   
+   /**
+    * Lexes the given characters, using the file only for token locations.
+    * @param file
+    * @param source
+    * @return
+    */
+   public TokenStream getTokens(ScriptFile file, CharacterSource source)
+   {
+      begin(file, source);
+      
+      TokenStream result = new TokenStream(logger);
       
       Token token;
-      while ((token = lex()) != null)
+      while ((token = nextToken()) != null)
       {
          result.append(token);
       }
       
-      input.close();
+      return result;
+   }
+   
+   /**
+    * Lexes the given file into a compact token buffer. On a cache hit the returned buffer is
+    * read-only and reads its tokens from the cache entry directly.
+    * @param file
+    * @return
+    * @throws IOException If the file could not be read.
+    */
+   public TokenBuffer getTokenBuffer(ScriptFile file) throws IOException
+   {
+      if (tokenCache == null)
+      {
+         return getTokenBuffer(file, file.readSource());
+      }
+      
+      final ByteBuffer bytes = file.readBytes();
+      final String key = TokenCache.getKey(bytes);
+      
+      final TokenBuffer cached = tokenCache.load(file, key, constants);
+      if (cached != null)
+      {
+         return cached;
+      }
+      
+      final int errorCount = logger.getErrorCount();
+      final int warningCount = logger.getWarningCount();
+      
+      final TokenBuffer result = getTokenBuffer(file, Utf8Decoder.decode(bytes));
+      
+      if (logger.getErrorCount() == errorCount && logger.getWarningCount() == warningCount)
+      {
+         tokenCache.store(key, result);
+      }
+      return result;
+   }
+   
+   /**
+    * Lexes the given characters into a compact token buffer. No Token or Location objects
+    * are created for the tokens.
+    * @param file
+    * @param source
+    * @return
+    */
+   public TokenBuffer getTokenBuffer(ScriptFile file, CharacterSource source)
+   {
+      begin(file, source);
+      
+      final TokenBuffer result = new TokenBuffer(file, lazyLocations);
+      while (lex())
+      {
+         result.append(tokenType, tokenData, tokenOffset, tokenLine, tokenColumn);
+      }
+      result.trimToSize();
+      
+      chars = null;
       
       return result;
    }
    
+   public LazyTokenStream getLazyTokens(ScriptFile file) throws IOException
+   {
+      return getLazyTokens(file, file.readSource(), LazyTokenStream.DEFAULT_LOOKAHEAD);
+   }
+   
+   /**
+    * Creates a token stream which lexes the given characters only as tokens are requested.
+    * This lexer must not be used for anything else until the returned stream is over.
+    * @param file
+    * @param source
+    * @param lookahead The largest offset that will be passed to {@link LazyTokenStream#peek(int)}.
+    * @return
+    */
+   public LazyTokenStream getLazyTokens(ScriptFile file, CharacterSource source, int lookahead)
+   {
+      begin(file, source);
+      return new LazyTokenStream(this, lookahead);
+   }
+   
+   public TokenPipe getPipedTokens(ScriptFile file) throws IOException
+   {
+      return getPipedTokens(file, file.readSource(), new TokenPipe());
+   }
+   
+   /**
+    * Lexes the given characters on a new thread, putting the tokens into the given pipe as
+    * they are lexed. The calling thread can take them from the pipe, usually through a
+    * {@link LazyTokenStream}, while the rest are lexed. The lexer thread stops early if the
+    * pipe is cancelled.
+    * 
+    * This lexer must not be used for anything else until the pipe is over.
+    * @param file
+    * @param source
+    * @param pipe
+    * @return The given pipe.
+    */
+   public TokenPipe getPipedTokens(ScriptFile file, CharacterSource source, TokenPipe pipe)
+   {
+      final Thread thread = new Thread(() ->
+      {
+         try
+         {
+            begin(file, source);
+            Token token;
+            while (!pipe.isCancelled() && (token = nextToken()) != null)
+            {
+               pipe.put(token);
+            }
+            pipe.close();
+         }
+         catch (Throwable t)
+         {
+            pipe.fail(t);
+         }
+      }, "Laye lexer: " + file.path);
+      thread.setDaemon(true);
+      thread.start();
+      return pipe;
+   }
+   
+   /**
+    * Prepares this lexer to produce tokens for the given characters through
+    * {@link #nextToken()}.
+    * @param file
+    * @param source
+    */
+   public void begin(ScriptFile file, CharacterSource source)
+   {
+      if (lazyLocations)
+      {
+         file.indexLines(source);
+      }
+      start(file, source);
+   }
+   
+   private void start(ScriptFile file, CharacterSource source)
+   {
+      this.file = file;
+      this.chars = source.getCharacters();
+      this.length = source.length();
+      this.position = 0;
+      this.line = 1;
+      this.column = 0;
+      this.eof = false;
+      
+      readChar();
+   }
+   
+   /**
+    * Like {@link #begin(ScriptFile, CharacterSource)}, but starts lexing at the given offset.
+    * The offset must be the start of a token, or a position between tokens.
+    * @param file
+    * @param source
+    * @param offset
+    * @param line The line of the character at the offset.
+    * @param column The column of the character at the offset.
+    */
+   public void beginAt(ScriptFile file, CharacterSource source, int offset, int line, int column)
+   {
+      assert(offset >= 0 && offset <= source.length());
+      this.file = file;
+      this.chars = source.getCharacters();
+      this.length = source.length();
+      this.position = offset;
+      this.line = line;
+      this.column = column;
+      this.eof = false;
+      
+      if (position < length)
+      {
+         currentChar = chars[position++];
+      }
+      else
+      {
+         eof = true;
+         currentChar = '\u0000';
+      }
+   }
+   
+   /**
+    * Updates the tokens of a file after an edit, lexing only the part of the source the edit
+    * can affect.
+    * 
+    * Lexing restarts at the last token that starts before the edit. Once a token past the
+    * inserted text starts exactly where a previous token started (after the edit's shift), and
+    * in the same column, the rest of the source is unchanged and so lexes the same as before.
+    * The chunks of the previous tokens before the restart and after that token are shared
+    * with the result, those after it only getting new deltas, so the cost of an edit doesn't
+    * depend on the size of the file.
+    * 
+    * With lazy locations, the file's line index is updated for the edit as well, so the
+    * previous tokens' locations must not be used anymore.
+    * 
+    * Errors and warnings are only reported for the part that is lexed again.
+    * @param previous The tokens of the source before the edit, lexed with the same kind of
+    *        locations this lexer uses.
+    * @param source The source after the edit was applied.
+    * @param edit
+    * @return The tokens of the edited source.
+    */
+   public TokenRope relex(TokenRope previous, CharacterSource source, TextEdit edit)
+   {
+      if (previous.hasLazyLocations() != lazyLocations)
+      {
+         throw new IllegalArgumentException("Cannot relex tokens with a different kind of " +
+               "locations than this lexer's.");
+      }
+      
+      final ScriptFile file = previous.file;
+      final int count = previous.size();
+      final int delta = edit.getLengthChange();
+      final int insertedEnd = edit.offset + edit.insertedText.length();
+      
+      if (lazyLocations)
+      {
+         file.setLineIndex(file.getLineIndex().edit(edit.offset, edit.removedLength,
+                                                    edit.insertedText));
+      }
+      
+      // The new tokens replace whole chunks, so the rest of the first chunk is copied.
+      final int restart = previous.lastTokenStartingBefore(edit.offset);
+      final int from = restart < 0 ? 0 : previous.getChunkStart(restart);
+      final TokenBuffer tokens = new TokenBuffer(file, lazyLocations);
+      if (restart < 0)
+      {
+         start(file, source);
+      }
+      else
+      {
+         previous.copyTo(tokens, from, restart, 0, 0);
+         beginAt(file, source, previous.getOffset(restart), previous.getLine(restart),
+                 previous.getColumn(restart));
+      }
+      
+      // Previous tokens before this one can never be matched again.
+      int old = Math.max(restart, 0);
+      
+      while (lex())
+      {
+         if (tokenOffset >= insertedEnd)
+         {
+            while (old < count && previous.getOffset(old) + delta < tokenOffset)
+            {
+               old++;
+            }
+            // Reused tokens keep their columns, so only a token in the same column will do.
+            if (old < count && previous.getOffset(old) + delta == tokenOffset &&
+                (lazyLocations || previous.getColumn(old) == tokenColumn))
+            {
+               // Back in sync, the rest is just moved.
+               chars = null;
+               final int lineDelta = lazyLocations ? 0 : tokenLine - previous.getLine(old);
+               final int to = previous.getChunkEnd(old);
+               previous.copyTo(tokens, old, to, delta, lineDelta);
+               tokens.trimToSize();
+               return previous.replace(from, to, tokens, delta, lineDelta);
+            }
+         }
+         tokens.append(tokenType, tokenData, tokenOffset, tokenLine, tokenColumn);
+      }
+      chars = null;
+      
+      tokens.trimToSize();
+      return previous.replace(from, count, tokens, delta, 0);
+   }
+   
+   @Override
+   public Token nextToken()
+   {
+      if (chars == null)
+      {
+         return null;
+      }
+      if (!lex())
+      {
+         // Done with this source, don't hold on to it.
+         chars = null;
+         return null;
+      }
+      return new Token(tokenType, tokenData, getTokenLocation());
+   }
+   
+   private void markTokenStart()
+   {
+      tokenOffset = position - 1;
+      tokenLine = line;
+      tokenColumn = column;
+   }
+   
+   private boolean setToken(Token.Type type)
+   {
+      return setToken(type, type.image);
+   }
+   
+   private boolean setToken(Token.Type type, Object data)
+   {
+      tokenType = type;
+      tokenData = data;
+      return true;
+   }
+   
+   private Location getTokenLocation()
+   {
+      if (lazyLocations)
+      {
+         return new Location(file, tokenOffset);
+      }
+      return new Location(file, tokenOffset, tokenLine, tokenColumn);
+   }
+   
    private Location getLocation()
    {
-      return new Location(file, line, column);
+      final int offset = eof ? position : position - 1;
+      if (lazyLocations)
+      {
+         return new Location(file, offset);
+      }
+      return new Location(file, offset, line, column);
    }
    
    private String getTempString()
    {
-      String result = builder.toString();
-      builder.setLength(0);
-      builder.trimToSize();
+      String result = new String(builder, 0, builderLength);
+      builderLength = 0;
       return result;
    }
    
    private boolean putChar()
    {
-      builder.append(currentChar);
+      putChar(currentChar);
       return readChar();
    }
    
    private void putChar(char c)
    {
-      builder.append(c);
+      if (builderLength == builder.length)
+      {
+         builder = Arrays.copyOf(builder, builderLength * 2);
+      }
+      builder[builderLength++] = c;
    }
    
    private boolean readChar()
    {
-      int next;
-      try
-      {
-         next = input.read();
-      }
-      catch (IOException e)
+      if (position >= length)
       {
          eof = true;
          currentChar = '\u0000';
          return false;
       }
-      if (next == -1)
+      currentChar = chars[position++];
+      if (lazyLocations)
       {
-         eof = true;
-         currentChar = '\u0000';
-         return false;
+         return true;
       }
-      currentChar = (char) next;
       if (currentChar == '\n')
       {
          line++;
@@ -164,60 +667,61 @@ public class FileLexer
       return true;
    }
    
-   private Token lex()
+   private boolean lex()
    {
       while (!eof)
       {
-         if (Character.isWhitespace(currentChar))
+         final int classes = CharacterClass.of(currentChar);
+         if ((classes & CharacterClass.WHITESPACE) != 0)
          {
             readChar();
             continue;
          }
-         final Location location = getLocation();
+         markTokenStart();
          switch (currentChar)
          {
             case '#':
                lexOutLineComment();
-               return lex();
+               continue;
             case '(':
                readChar();
-               return new Token(Token.Type.OPEN_BRACE, location);
+               return setToken(Token.Type.OPEN_BRACE);
             case ')':
                readChar();
-               return new Token(Token.Type.CLOSE_BRACE, location);
+               return setToken(Token.Type.CLOSE_BRACE);
             case '[':
                readChar();
-               return new Token(Token.Type.OPEN_SQUARE_BRACE, location);
+               return setToken(Token.Type.OPEN_SQUARE_BRACE);
             case ']':
                readChar();
-               return new Token(Token.Type.CLOSE_SQUARE_BRACE, location);
+               return setToken(Token.Type.CLOSE_SQUARE_BRACE);
             case '{':
                readChar();
-               return new Token(Token.Type.OPEN_CURLY_BRACE, location);
+               return setToken(Token.Type.OPEN_CURLY_BRACE);
             case '}':
                readChar();
-               return new Token(Token.Type.CLOSE_CURLY_BRACE, location);
+               return setToken(Token.Type.CLOSE_CURLY_BRACE);
             case ';':
                readChar();
-               return new Token(Token.Type.SEMI_COLON, location);
+               return setToken(Token.Type.SEMI_COLON);
             case ':':
                readChar();
-               return new Token(Token.Type.COLON, location);
+               return setToken(Token.Type.COLON);
             case ',':
                readChar();
-               return new Token(Token.Type.COMMA, location);
+               return setToken(Token.Type.COMMA);
             case '.':
                readChar();
-               return new Token(Token.Type.DOT, location);
+               return setToken(Token.Type.DOT);
             case '\'':
             case '"':
                return lexStringLiteral();
             default:
-               if (Operator.isOperatorChar(currentChar))
+               if ((classes & CharacterClass.OPERATOR) != 0)
                {
                   return lexOperatorToken();
                }
-               if (Character.isDigit(currentChar))
+               if ((classes & CharacterClass.DIGIT) != 0)
                {
                   return lexNumericToken();
                }
@@ -225,23 +729,61 @@ public class FileLexer
          }
       }
       
-      return null;
+      return false;
    }
    
+   /**
+    * Skips from the current '#' to the end of its line, leaving the line feed as the current
+    * character, or to the end of the source.
+    */
    private void lexOutLineComment()
    {
-      // Nom all the chars until the end of a line.
-      do
+      // Nothing in a comment affects anything but the column, which the line feed resets.
+      final char[] chars = this.chars;
+      int index = position;
+      while (index < length && chars[index] != '\n')
       {
-         readChar();
+         index++;
+      }
+      if (index == length)
+      {
+         column += index - position;
+         position = index;
+         eof = true;
+         currentChar = '\u0000';
+         return;
       }
-      while (currentChar != '\n');
+      position = index + 1;
+      currentChar = '\n';
+      line++;
+      column = 0;
    }
    
-   private Token lexStringLiteral()
+   private boolean lexStringLiteral()
    {
-      final Location location = getLocation();
       final char quoteChar = currentChar;
+      
+      // Most strings have no escapes or control characters, those are found in place.
+      final int start = position;
+      int index = start;
+      int hash = 0;
+      char c;
+      while (index < length && (c = chars[index]) != quoteChar && c != '\\' && c >= ' ')
+      {
+         hash = 31 * hash + c;
+         index++;
+      }
+      if (index < length && chars[index] == quoteChar)
+      {
+         // Every character up to the closing quote takes a column.
+         column += index + 1 - start;
+         position = index + 1;
+         // Read closing quote
+         readChar();
+         return setToken(Token.Type.STRING_LITERAL,
+               strings.get(chars, start, index - start, hash));
+      }
+      
       // Read quote
       readChar();
       while (currentChar != quoteChar && !eof)
@@ -257,15 +799,21 @@ public class FileLexer
       }
       if (currentChar != quoteChar)
       {
-         logger.logError(location, ERROR_UNFINISHED_STRING, "Unfinished string.");
+         logger.logError(getTokenLocation(), ERROR_UNFINISHED_STRING, "Unfinished string.");
       }
       else
       {
          // Read quote
          readChar();
       }
-      String result = getTempString();
-      return new Token(Token.Type.STRING_LITERAL, new LayeString(result), location);
+      hash = 0;
+      for (int i = 0; i < builderLength; i++)
+      {
+         hash = 31 * hash + builder[i];
+      }
+      final int resultLength = builderLength;
+      builderLength = 0;
+      return setToken(Token.Type.STRING_LITERAL, strings.get(builder, 0, resultLength, hash));
    }
    
    private char lexEscapedCharacter()
@@ -325,129 +873,223 @@ public class FileLexer
       }
    }
    
-   private Token lexOperatorToken()
+   private boolean lexOperatorToken()
    {
-      final Location location = getLocation();
       do
       {
          putChar();
       }
-      while (Operator.isOperatorChar(currentChar));
+      while (CharacterClass.is(currentChar, CharacterClass.OPERATOR));
       String image = getTempString();
       if (image.equals("="))
       {
-         return new Token(Token.Type.ASSIGN, location);
+         return setToken(Token.Type.ASSIGN);
       }
-      return new Token(Token.Type.OPERATOR, Operator.get(image), location);
+      return setToken(Token.Type.OPERATOR, Operator.get(image));
    }
    
-   private char lexIntegerDigits(CharacterMatcher matcher)
+   /**
+    * Reads digits of the given radix, and underscores, accumulating their value into
+    * {@link #integerValue}.
+    * @return The last character read, or the current character if none were read.
+    */
+   private char lexIntegerDigits(int radix)
    {
       char lastChar = currentChar;
-      while ((matcher.apply(currentChar) || currentChar == '_') && !eof)
+      int digit;
+      while (!eof && ((digit = digitValue(currentChar)) < radix || currentChar == '_'))
       {
          lastChar = currentChar;
          if (currentChar != '_')
          {
-            putChar();
-         }
-         else
-         {
-            readChar();
+            integerDigits++;
+            if (integerValue > (Long.MAX_VALUE - digit) / radix)
+            {
+               integerOverflow = true;
+            }
+            else if (!integerOverflow)
+            {
+               integerValue = integerValue * radix + digit;
+            }
          }
+         readChar();
       }
       return lastChar;
    }
    
-   private Token lexNumericToken()
+   private boolean lexNumericToken()
    {
-      final Location location = getLocation();
-      // TODO(sekai): this only handles ints. Needs fp and sci-note.
-
+      final int start = tokenOffset;
+      
       char lastChar = currentChar;
       
       boolean isInteger = true;
-      int iRadix = 10;
+      boolean isMalformed = false;
+      int radix = 10;
+      
+      integerValue = 0;
+      integerOverflow = false;
+      integerDigits = 0;
+      
+      // The decimal value as significand * 10^exponent, for floating point values.
+      long significand = 0;
+      int significantDigits = 0;
+      int exponent = 0;
+      boolean isTruncated = false;
       
       // FIXME(sekai): Needs more '_' error checking.
       
       if (currentChar == '0')
       {
-         // read '0'
+         // read '0', which is a digit itself unless a radix prefix follows.
          readChar();
+         integerDigits = 1;
          switch (currentChar)
          {
             case 'x': case 'X': // hexadecimal
             {
-               iRadix = 16;
+               radix = 16;
+               integerDigits = 0;
                readChar();
-               lastChar = lexIntegerDigits(FileLexer::isHexadecimalCharacter);
+               lastChar = lexIntegerDigits(radix);
             } break;
             case 'b': case 'B': // binary
             {
-               iRadix = 2;
+               radix = 2;
+               integerDigits = 0;
                readChar();
-               lastChar = lexIntegerDigits(FileLexer::isBinaryCharacter);
+               lastChar = lexIntegerDigits(radix);
             } break;
-            default: // octal
+            case '.': case 'e': case 'E': // decimal, continued below
+               break;
+            default:
             {
-               iRadix = 8;
-               lastChar = lexIntegerDigits(FileLexer::isOctalCharacter);
+               // Only digits after the '0' make it octal, a bare "0" is decimal.
+               if (CharacterClass.is(currentChar, CharacterClass.DIGIT) || currentChar == '_')
+               {
+                  radix = 8;
+                  lastChar = lexIntegerDigits(radix);
+               }
             } break;
          }
       }
-      else
+      
+      if (radix == 10)
       {
-         while ((Character.isDigit(currentChar) || currentChar == '_' ||
+         // 0: whole part, 1: fraction, 2: exponent
+         int part = 0;
+         boolean isExponentNegative = false;
+         boolean hasExponentDigits = false;
+         int exponentValue = 0;
+         
+         while ((CharacterClass.is(currentChar, CharacterClass.DIGIT) || currentChar == '_' ||
                 currentChar == '.' || currentChar == 'e' || currentChar == 'E') && !eof)
          {
             lastChar = currentChar;
-            // TODO(sekai): This looks like it can be put into a switch/case.
-            if (currentChar == '.')
-            {
-               isInteger = false; // now it's floating point
-            }
-            else if (currentChar == 'e' || currentChar == 'E')
+            switch (currentChar)
             {
-               putChar();
-               if (currentChar == '-')
+               case '.':
                {
-                  putChar();
-               }
-               continue;
-            }
-            else if (currentChar == '_')
-            {
-               readChar();
-               continue;
+                  isInteger = false; // now it's floating point
+                  isMalformed |= part != 0;
+                  part = 1;
+                  readChar();
+               } break;
+               case 'e': case 'E':
+               {
+                  isInteger = false;
+                  isMalformed |= part == 2;
+                  part = 2;
+                  readChar();
+                  if (currentChar == '-' || currentChar == '+')
+                  {
+                     isExponentNegative = currentChar == '-';
+                     readChar();
+                  }
+               } break;
+               case '_':
+                  readChar();
+                  break;
+               default:
+               {
+                  final int digit = currentChar <= '9' ?
+                        currentChar - '0' : Character.digit(currentChar, 10);
+                  readChar();
+                  if (part == 2)
+                  {
+                     hasExponentDigits = true;
+                     // Anything this large is out of range anyway.
+                     exponentValue = Math.min(exponentValue * 10 + digit, 100000);
+                     break;
+                  }
+                  if (part == 0)
+                  {
+                     integerDigits++;
+                     if (integerValue > (Long.MAX_VALUE - digit) / 10)
+                     {
+                        integerOverflow = true;
+                     }
+                     else if (!integerOverflow)
+                     {
+                        integerValue = integerValue * 10 + digit;
+                     }
+                  }
+                  if (significand == 0 && digit == 0)
+                  {
+                     // Leading zeros aren't significant.
+                     if (part == 1)
+                     {
+                        exponent--;
+                     }
+                  }
+                  else if (significantDigits < 19)
+                  {
+                     significand = significand * 10 + digit;
+                     significantDigits++;
+                     if (part == 1)
+                     {
+                        exponent--;
+                     }
+                  }
+                  else
+                  {
+                     isTruncated = true;
+                     if (part == 0)
+                     {
+                        exponent++;
+                     }
+                  }
+               } break;
             }
-            putChar();
          }
+         
+         isMalformed |= part == 2 && !hasExponentDigits;
+         exponent += isExponentNegative ? -exponentValue : exponentValue;
       }
       
+      final int end = eof ? position : position - 1;
+      
       if (lastChar == '_')
       {
-         logger.logError(location, ERROR_UNDERSCORE_IN_NUMBER, "Numbers cannot end with '_'.");
+         logger.logError(getTokenLocation(), ERROR_UNDERSCORE_IN_NUMBER, "Numbers cannot end with '_'.");
       }
       
       if (currentChar == 'f' || currentChar == 'F')
       {
          if (!isInteger)
          {
-            logger.logWarningf(location, WARNING_FLOAT_DECOR,
+            logger.logWarningf(getTokenLocation(), WARNING_FLOAT_DECOR,
                   "'%c' was used on an already floating-point value, "
                   + "this is unnecessary.", currentChar);
          }
          readChar();
          isInteger = false;
       }
-
-      String result = getTempString();
       
       // FIXME(sekai): Here, identifiers are now valid. (1.0fIDENT will lex), fix plz.
       
       boolean hadTrailingCharacters = false;
-      while (!eof && Character.isLetterOrDigit(currentChar))
+      while (!eof && CharacterClass.is(currentChar, CharacterClass.LETTER_OR_DIGIT))
       {
          hadTrailingCharacters = true;
          putChar();
@@ -455,75 +1097,118 @@ public class FileLexer
       
       if (hadTrailingCharacters)
       {
-         logger.logErrorf(location, ERROR_TRAILING_CHARS_IN_NUMBER,
+         logger.logErrorf(getTokenLocation(), ERROR_TRAILING_CHARS_IN_NUMBER,
                "Unexpected characters \"%s\" at the end of a number.\n",
                getTempString());
       }
       
       if (lastChar == '.' || currentChar == '.')
       {
-         logger.logErrorf(location, ERROR_DOT_AFTER_NUMBER,
-               "Illegal '.' at end of a number.\n",
-               getTempString());
+         logger.logError(getTokenLocation(), ERROR_DOT_AFTER_NUMBER,
+               "Illegal '.' at end of a number.");
          if (currentChar == '.')
          {
             readChar();
          }
       }
       
-      try
+      String error = null;
+      if (isMalformed)
       {
+         error = "malformed number";
+      }
+      else if (integerDigits == 0 && radix != 10)
+      {
+         error = "no digits";
+      }
+      else if (integerOverflow && (isInteger || radix != 10))
+      {
+         error = "number is too large";
+      }
+      
+      if (error != null)
+      {
+         logger.logError(getTokenLocation(), ERROR_NUMBER_FORMAT, "Number format: " + error);
          if (isInteger)
          {
-            return new Token(Token.Type.INT_LITERAL, 
-                             LayeInt.valueOf(Long.parseLong(result, iRadix)), 
-                             location);
+            return setToken(Token.Type.INT_LITERAL, numbers.getInt(0L));
          }
          else
          {
-            return new Token(Token.Type.FLOAT_LITERAL,
-                             new LayeFloat(Double.parseDouble(result)), 
-                             location);
+            return setToken(Token.Type.FLOAT_LITERAL, numbers.getFloat(0D));
          }
       }
-      catch (NumberFormatException e)
+      
+      if (isInteger)
       {
-         logger.logError(location, ERROR_NUMBER_FORMAT,
-                         "Number format: " + e.getMessage());
-         if (isInteger)
-         {
-            return new Token(Token.Type.INT_LITERAL, LayeInt.valueOf(0L), location);
-         }
-         else
+         return setToken(Token.Type.INT_LITERAL, numbers.getInt(integerValue));
+      }
+      if (radix != 10)
+      {
+         return setToken(Token.Type.FLOAT_LITERAL, numbers.getFloat(integerValue));
+      }
+      
+      double value = isTruncated ? Double.NaN : FloatParser.toDouble(significand, exponent);
+      if (Double.isNaN(value))
+      {
+         value = parseDouble(start, end);
+      }
+      return setToken(Token.Type.FLOAT_LITERAL, numbers.getFloat(value));
+   }
+   
+   /**
+    * The slow path for floating point literals, parsing the characters of the literal itself.
+    */
+   private double parseDouble(int start, int end)
+   {
+      for (int i = start; i < end; i++)
+      {
+         if (chars[i] != '_')
          {
-            return new Token(Token.Type.FLOAT_LITERAL, new LayeFloat(0D), location);
+            putChar(chars[i]);
          }
       }
+      final String image = getTempString();
+      try
+      {
+         return Double.parseDouble(image);
+      }
+      catch (NumberFormatException e)
+      {
+         logger.logError(getTokenLocation(), ERROR_NUMBER_FORMAT,
+                         "Number format: " + e.getMessage());
+         return 0D;
+      }
    }
    
-   private Token lexOtherTokens()
+   private boolean lexOtherTokens()
    {
-      final Location location = getLocation();
-      if (!Identifier.isIdentifierStart(currentChar))
+      if (!CharacterClass.is(currentChar, CharacterClass.IDENTIFIER_START))
       {
-         logger.logErrorf(location, ERROR_INVALID_IDENTIFIER_START,
+         logger.logErrorf(getTokenLocation(), ERROR_INVALID_IDENTIFIER_START,
                "token '%c' is not a valid identifier start.\n", currentChar);
-         return null;
+         return false;
       }
+      // Scan the image in place, hashing it the same way String does as we go.
+      final int start = position - 1;
+      int hash = 0;
       do
       {
-         putChar();
+         hash = 31 * hash + currentChar;
+         readChar();
       }
-      while (!eof && Identifier.isIdentifierPart(currentChar));
-      String image = getTempString();
-      if (image.equals("_"))
+      while (!eof && CharacterClass.is(currentChar, CharacterClass.IDENTIFIER_PART));
+      final int imageLength = (eof ? position : position - 1) - start;
+      
+      if (imageLength == 1 && chars[start] == '_')
       {
-         return new Token(Token.Type.WILDCARD, location);
+         return setToken(Token.Type.WILDCARD);
       }
-      else if (Keyword.exists(image))
+      final Keyword keyword = Keyword.get(chars, start, imageLength, hash);
+      if (keyword != null)
       {
-         return new Token(Token.Type.KEYWORD, Keyword.get(image), location);
+         return setToken(Token.Type.KEYWORD, keyword);
       }
-      return new Token(Token.Type.IDENTIFIER, Identifier.get(image), location);
+      return setToken(Token.Type.IDENTIFIER, identifiers.get(chars, start, imageLength, hash));
    }
 }
@@ -0,0 +1,187 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import java.math.BigInteger;
+
+/**
+ * Converts a decimal significand and exponent to the nearest double, without going through a
+ * string.
+ * 
+ * Small values are converted exactly with a single floating point multiplication or division.
+ * Everything else uses the Eisel-Lemire algorithm, which gives the correctly rounded result or
+ * reports that it can't, in which case the caller has to fall back to
+ * {@link Double#parseDouble(String)}.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+final class FloatParser
+{
+   private static final double[] EXACT_POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+   };
+   
+   private static final long MAX_EXACT_SIGNIFICAND = 1L << 53;
+   
+   /**
+    * 128 bit approximations of powers of ten, rounded down, built the first time they're needed.
+    */
+   private static final class PowersOfTen
+   {
+      static final int MIN_EXPONENT = -348;
+      static final int MAX_EXPONENT = 347;
+      
+      static final long[] HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+      static final long[] LOW = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+      
+      static
+      {
+         final BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+         for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++)
+         {
+            BigInteger value;
+            if (exponent >= 0)
+            {
+               value = BigInteger.TEN.pow(exponent);
+               final int shift = 128 - value.bitLength();
+               value = shift >= 0 ? value.shiftLeft(shift) : value.shiftRight(-shift);
+            }
+            else
+            {
+               final BigInteger divisor = BigInteger.TEN.pow(-exponent);
+               value = BigInteger.ONE.shiftLeft(127 + divisor.bitLength()).divide(divisor);
+            }
+            assert(value.bitLength() == 128);
+            HIGH[exponent - MIN_EXPONENT] = value.shiftRight(64).longValue();
+            LOW[exponent - MIN_EXPONENT] = value.and(mask).longValue();
+         }
+      }
+   }
+   
+   /**
+    * @param significand The decimal digits, as an unsigned value.
+    * @param exponent The power of ten to multiply the significand by.
+    * @return The correctly rounded value, or NaN if it couldn't be determined here.
+    */
+   public static double toDouble(long significand, int exponent)
+   {
+      if (significand == 0)
+      {
+         return 0.0;
+      }
+      if (significand >= 0 && significand <= MAX_EXACT_SIGNIFICAND &&
+            exponent >= -22 && exponent <= 22)
+      {
+         // Both operands are exact, so the single rounding gives the right answer.
+         if (exponent >= 0)
+         {
+            return significand * EXACT_POWERS_OF_TEN[exponent];
+         }
+         return significand / EXACT_POWERS_OF_TEN[-exponent];
+      }
+      return eiselLemire(significand, exponent);
+   }
+   
+   private static double eiselLemire(long significand, int exponent)
+   {
+      if (exponent < PowersOfTen.MIN_EXPONENT || exponent > PowersOfTen.MAX_EXPONENT)
+      {
+         return Double.NaN;
+      }
+      final int index = exponent - PowersOfTen.MIN_EXPONENT;
+      
+      // Normalize the significand so its top bit is set.
+      final int leadingZeros = Long.numberOfLeadingZeros(significand);
+      final long man = significand << leadingZeros;
+      // floor(log2(10) * exponent) plus the bias, adjusted for the normalization.
+      long exponent2 = ((217706L * exponent) >> 16) + 64 + 1023 - leadingZeros;
+      
+      long high = multiplyHigh(man, PowersOfTen.HIGH[index]);
+      long low = man * PowersOfTen.HIGH[index];
+      
+      if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + man, man) < 0)
+      {
+         // The truncated power may have lost something that matters, use the low 64 bits too.
+         final long wideHigh = multiplyHigh(man, PowersOfTen.LOW[index]);
+         final long wideLow = man * PowersOfTen.LOW[index];
+         long mergedHigh = high;
+         final long mergedLow = low + wideHigh;
+         if (Long.compareUnsigned(mergedLow, low) < 0)
+         {
+            mergedHigh++;
+         }
+         if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0 &&
+               Long.compareUnsigned(wideLow + man, man) < 0)
+         {
+            return Double.NaN;
+         }
+         high = mergedHigh;
+         low = mergedLow;
+      }
+      
+      // Shift down to 54 bits.
+      final long msb = high >>> 63;
+      long mantissa = high >>> (msb + 9);
+      exponent2 -= 1 ^ msb;
+      
+      // Exactly halfway between two doubles, can't tell which way to round.
+      if (low == 0 && (high & 0x1FF) == 0 && (mantissa & 3) == 1)
+      {
+         return Double.NaN;
+      }
+      
+      // Round to 53 bits.
+      mantissa += mantissa & 1;
+      mantissa >>>= 1;
+      if ((mantissa >>> 53) > 0)
+      {
+         mantissa >>>= 1;
+         exponent2++;
+      }
+      
+      // Subnormal, infinite or NaN results are left to the slow path.
+      if (exponent2 <= 0 || exponent2 >= 0x7FF)
+      {
+         return Double.NaN;
+      }
+      return Double.longBitsToDouble((exponent2 << 52) | (mantissa & 0x000FFFFFFFFFFFFFL));
+   }
+   
+   /**
+    * @return The high 64 bits of the unsigned 128 bit product of the arguments.
+    */
+   private static long multiplyHigh(long x, long y)
+   {
+      final long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+      final long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+      final long p00 = x0 * y0, p01 = x0 * y1, p10 = x1 * y0, p11 = x1 * y1;
+      final long middle = p10 + (p00 >>> 32) + (p01 & 0xFFFFFFFFL);
+      return p11 + (middle >>> 32) + (p01 >>> 32);
+   }
+   
+   private FloatParser()
+   {
+   }
+}
@@ -0,0 +1,117 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import io.ylf.laye.struct.Identifier;
+
+/**
+ * Finds identifiers from ranges of source characters, so that a string is only created the
+ * first time a lexer sees an identifier.
+ * 
+ * This is an open addressed table in front of {@link Identifier#get(String)}. It belongs to a
+ * single lexer and isn't thread safe.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+final class IdentifierTable
+{
+   private Identifier[] identifiers = new Identifier[256];
+   private int[] hashes = new int[256];
+   private int count = 0;
+   
+   /**
+    * @param chars
+    * @param offset
+    * @param length
+    * @param hash The hash of the characters, computed the same way as {@link String#hashCode()}.
+    * @return The identifier with the given image.
+    */
+   public Identifier get(char[] chars, int offset, int length, int hash)
+   {
+      final int mask = identifiers.length - 1;
+      int slot = mix(hash) & mask;
+      Identifier identifier;
+      while ((identifier = identifiers[slot]) != null)
+      {
+         if (hashes[slot] == hash && matches(identifier.image, chars, offset, length))
+         {
+            return identifier;
+         }
+         slot = (slot + 1) & mask;
+      }
+      
+      identifier = Identifier.get(new String(chars, offset, length));
+      identifiers[slot] = identifier;
+      hashes[slot] = hash;
+      if (++count * 2 > identifiers.length)
+      {
+         grow();
+      }
+      return identifier;
+   }
+   
+   private static boolean matches(String image, char[] chars, int offset, int length)
+   {
+      if (image.length() != length)
+      {
+         return false;
+      }
+      for (int i = 0; i < length; i++)
+      {
+         if (image.charAt(i) != chars[offset + i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   private static int mix(int hash)
+   {
+      // String hashes of short identifiers are poor in the low bits, spread the high bits down.
+      return hash ^ (hash >>> 16) ^ (hash >>> 7);
+   }
+   
+   private void grow()
+   {
+      final Identifier[] oldIdentifiers = identifiers;
+      final int[] oldHashes = hashes;
+      identifiers = new Identifier[oldIdentifiers.length * 2];
+      hashes = new int[oldHashes.length * 2];
+      final int mask = identifiers.length - 1;
+      for (int i = 0; i < oldIdentifiers.length; i++)
+      {
+         if (oldIdentifiers[i] != null)
+         {
+            int slot = mix(oldHashes[i]) & mask;
+            while (identifiers[slot] != null)
+            {
+               slot = (slot + 1) & mask;
+            }
+            identifiers[slot] = oldIdentifiers[i];
+            hashes[slot] = oldHashes[i];
+         }
+      }
+   }
+}
@@ -0,0 +1,134 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+/**
+ * A token stream which pulls tokens from its source only as they are needed.
+ * 
+ * Only a bounded window of tokens is ever kept, starting at the current token. Memory use
+ * therefore does not grow with the size of the source, but tokens cannot be revisited and
+ * {@link #peek(int)} cannot look further ahead than the lookahead given at construction.
+ * 
+ * Reading past the end of the stream returns <code>null</code>.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public class LazyTokenStream implements TokenCursor
+{
+   public static final int DEFAULT_LOOKAHEAD = 8;
+   
+   private final TokenSource source;
+   
+   private final Token[] buffer;
+   private final int mask;
+   
+   /**
+    * The absolute index of the current token.
+    */
+   private long head = 0;
+   
+   /**
+    * The number of buffered tokens, starting at the current token.
+    */
+   private int count = 0;
+   
+   private boolean exhausted = false;
+   
+   public LazyTokenStream(TokenSource source)
+   {
+      this(source, DEFAULT_LOOKAHEAD);
+   }
+   
+   /**
+    * @param source
+    * @param lookahead The largest offset that can be passed to {@link #peek(int)}.
+    */
+   public LazyTokenStream(TokenSource source, int lookahead)
+   {
+      assert(source != null);
+      if (lookahead < 0 || lookahead >= (1 << 30))
+      {
+         throw new IllegalArgumentException("lookahead: " + lookahead);
+      }
+      this.source = source;
+      // Round up to a power of two so positions wrap with a mask.
+      final int capacity = Integer.highestOneBit(Math.max(lookahead, 1)) << 1;
+      this.buffer = new Token[capacity];
+      this.mask = capacity - 1;
+   }
+   
+   /**
+    * Makes sure the token at the given offset is buffered, if the source has one.
+    */
+   private void fill(int offset)
+   {
+      while (count <= offset && !exhausted)
+      {
+         final Token token = source.nextToken();
+         if (token == null)
+         {
+            exhausted = true;
+            break;
+         }
+         buffer[(int) (head + count) & mask] = token;
+         count++;
+      }
+   }
+   
+   @Override
+   public boolean isOver()
+   {
+      fill(0);
+      return count == 0;
+   }
+   
+   @Override
+   public Token current()
+   {
+      return peek(0);
+   }
+   
+   @Override
+   public void next()
+   {
+      fill(0);
+      if (count > 0)
+      {
+         buffer[(int) head & mask] = null;
+         head++;
+         count--;
+      }
+   }
+   
+   @Override
+   public Token peek(int offset)
+   {
+      if (offset < 0 || offset > mask)
+      {
+         throw new IllegalArgumentException("Cannot peek " + offset + " tokens ahead.");
+      }
+      fill(offset);
+      return offset < count ? buffer[(int) (head + offset) & mask] : null;
+   }
+}
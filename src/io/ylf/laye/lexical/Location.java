@@ -23,6 +23,7 @@
  */
 package io.ylf.laye.lexical;
 
+import io.ylf.laye.file.LineIndex;
 import io.ylf.laye.file.ScriptFile;
 
 /**
@@ -36,40 +37,98 @@ public class Location
    public final ScriptFile file;
    
    /**
-    * The line in the file, 1-based.
+    * The character offset in the file, 0-based, or -1 if it isn't known.
     */
-   public final int line;
+   public final int offset;
    
    /**
-    * The column in the file, 1-based.
+    * The line in the file, 1-based, or 0 until it is resolved from the offset.
     */
-   public final int column;
+   private int line;
+   
+   /**
+    * The column in the file, 1-based, or 0 until it is resolved from the offset.
+    */
+   private int column;
    
    public Location(ScriptFile file, int line, int column)
+   {
+      this(file, -1, line, column);
+   }
+   
+   public Location(ScriptFile file, int offset, int line, int column)
    {
       this.file = file;
+      this.offset = offset;
       this.line = line;
       this.column = column;
       
       assert(file != null);
+      assert(offset >= -1);
       assert(line >= 1);
       assert(column >= 1);
    }
    
-   @Override
-   public String toString()
+   /**
+    * Creates a location from only an offset. The line and column are looked up in the file's
+    * line index the first time they are needed.
+    * @param file
+    * @param offset
+    */
+   public Location(ScriptFile file, int offset)
    {
-      StringBuilder result = new StringBuilder();
+      this.file = file;
+      this.offset = offset;
       
-      result.append(file.path);
-      if (line >= 0)
+      assert(file != null);
+      assert(offset >= 0);
+   }
+   
+   private void resolve()
+   {
+      final LineIndex index = file.getLineIndex();
+      // Other threads may race us here, but they only ever write the same values. Each getter
+      // checks its own field, so a half resolved location is never seen.
+      line = index.getLine(offset);
+      column = index.getColumn(offset);
+   }
+   
+   /**
+    * @return The line in the file, 1-based.
+    */
+   public int getLine()
+   {
+      int result = line;
+      if (result == 0)
       {
-         result.append(" line ").append(line);
+         resolve();
+         result = line;
       }
-      if (column >= 0)
+      return result;
+   }
+   
+   /**
+    * @return The column in the file, 1-based.
+    */
+   public int getColumn()
+   {
+      int result = column;
+      if (result == 0)
       {
-         result.append(" column ").append(column);
+         resolve();
+         result = column;
       }
+      return result;
+   }
+   
+   @Override
+   public String toString()
+   {
+      StringBuilder result = new StringBuilder();
+      
+      result.append(file.path);
+      result.append(" line ").append(getLine());
+      result.append(" column ").append(getColumn());
       
       return result.toString();
    }
@@ -79,9 +138,9 @@ public class Location
    {
       final int prime = 31;
       int result = 1;
-      result = prime * result + column;
+      result = prime * result + getColumn();
       result = prime * result + ((file == null) ? 0 : file.hashCode());
-      result = prime * result + line;
+      result = prime * result + getLine();
       return result;
    }
 
@@ -101,7 +160,7 @@ public class Location
          return false;
       }
       Location other = (Location) obj;
-      if (column != other.column)
+      if (getColumn() != other.getColumn())
       {
          return false;
       }
@@ -116,7 +175,7 @@ public class Location
       {
          return false;
       }
-      if (line != other.line)
+      if (getLine() != other.getLine())
       {
          return false;
       }
@@ -0,0 +1,134 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import io.ylf.laye.vm.ConstantPool;
+import io.ylf.laye.vm.LayeFloat;
+import io.ylf.laye.vm.LayeInt;
+import io.ylf.laye.vm.LayeObject;
+
+/**
+ * Finds the constants of numeric literals for a lexer. Values the lexer has seen before are
+ * found here without touching the shared constant pool.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+final class NumberConstants
+{
+   /**
+    * An open addressed map from 64 bit keys to constants.
+    */
+   private static final class Table
+   {
+      private long[] keys = new long[64];
+      private LayeObject[] values = new LayeObject[64];
+      private int count = 0;
+      
+      LayeObject get(long key)
+      {
+         final int mask = keys.length - 1;
+         for (int slot = mix(key) & mask; values[slot] != null; slot = (slot + 1) & mask)
+         {
+            if (keys[slot] == key)
+            {
+               return values[slot];
+            }
+         }
+         return null;
+      }
+      
+      void put(long key, LayeObject value)
+      {
+         if ((count + 1) * 2 > keys.length)
+         {
+            grow();
+         }
+         final int mask = keys.length - 1;
+         int slot = mix(key) & mask;
+         while (values[slot] != null)
+         {
+            slot = (slot + 1) & mask;
+         }
+         keys[slot] = key;
+         values[slot] = value;
+         count++;
+      }
+      
+      private void grow()
+      {
+         final long[] oldKeys = keys;
+         final LayeObject[] oldValues = values;
+         keys = new long[oldKeys.length * 2];
+         values = new LayeObject[oldValues.length * 2];
+         count = 0;
+         for (int i = 0; i < oldKeys.length; i++)
+         {
+            if (oldValues[i] != null)
+            {
+               put(oldKeys[i], oldValues[i]);
+            }
+         }
+      }
+      
+      private static int mix(long key)
+      {
+         key *= 0x9E3779B97F4A7C15L;
+         return (int) (key ^ (key >>> 32));
+      }
+   }
+   
+   private final ConstantPool constants;
+   
+   private final Table ints = new Table();
+   private final Table floats = new Table();
+   
+   public NumberConstants(ConstantPool constants)
+   {
+      this.constants = constants;
+   }
+   
+   public LayeInt getInt(long value)
+   {
+      LayeInt result = (LayeInt) ints.get(value);
+      if (result == null)
+      {
+         result = constants.internInt(value);
+         ints.put(value, result);
+      }
+      return result;
+   }
+   
+   public LayeFloat getFloat(double value)
+   {
+      // Raw bits keep 0.0 and -0.0 apart.
+      final long bits = Double.doubleToRawLongBits(value);
+      LayeFloat result = (LayeFloat) floats.get(bits);
+      if (result == null)
+      {
+         result = constants.internFloat(value);
+         floats.put(bits, result);
+      }
+      return result;
+   }
+}
@@ -0,0 +1,124 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import io.ylf.laye.vm.ConstantPool;
+import io.ylf.laye.vm.LayeString;
+
+/**
+ * Finds the constants of string literals from ranges of source characters, so that a string
+ * is only created the first time a lexer sees a literal.
+ * 
+ * This is an open addressed table in front of {@link ConstantPool#internString(String)}. It
+ * belongs to a single lexer and isn't thread safe.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+final class StringConstants
+{
+   private final ConstantPool constants;
+   
+   private LayeString[] strings = new LayeString[256];
+   private int[] hashes = new int[256];
+   private int count = 0;
+   
+   public StringConstants(ConstantPool constants)
+   {
+      this.constants = constants;
+   }
+   
+   /**
+    * @param chars
+    * @param offset
+    * @param length
+    * @param hash The hash of the characters, computed the same way as {@link String#hashCode()}.
+    * @return The string constant with the given characters.
+    */
+   public LayeString get(char[] chars, int offset, int length, int hash)
+   {
+      final int mask = strings.length - 1;
+      int slot = mix(hash) & mask;
+      LayeString string;
+      while ((string = strings[slot]) != null)
+      {
+         if (hashes[slot] == hash && matches(string.value, chars, offset, length))
+         {
+            return string;
+         }
+         slot = (slot + 1) & mask;
+      }
+      
+      string = constants.internString(new String(chars, offset, length));
+      strings[slot] = string;
+      hashes[slot] = hash;
+      if (++count * 2 > strings.length)
+      {
+         grow();
+      }
+      return string;
+   }
+   
+   private static boolean matches(String value, char[] chars, int offset, int length)
+   {
+      if (value.length() != length)
+      {
+         return false;
+      }
+      for (int i = 0; i < length; i++)
+      {
+         if (value.charAt(i) != chars[offset + i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   private static int mix(int hash)
+   {
+      return hash ^ (hash >>> 16) ^ (hash >>> 7);
+   }
+   
+   private void grow()
+   {
+      final LayeString[] oldStrings = strings;
+      final int[] oldHashes = hashes;
+      strings = new LayeString[oldStrings.length * 2];
+      hashes = new int[oldHashes.length * 2];
+      final int mask = strings.length - 1;
+      for (int i = 0; i < oldStrings.length; i++)
+      {
+         if (oldStrings[i] != null)
+         {
+            int slot = mix(oldHashes[i]) & mask;
+            while (strings[slot] != null)
+            {
+               slot = (slot + 1) & mask;
+            }
+            strings[slot] = oldStrings[i];
+            hashes[slot] = oldHashes[i];
+         }
+      }
+   }
+}
@@ -0,0 +1,97 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import io.ylf.laye.file.CharArraySource;
+import io.ylf.laye.file.CharacterSource;
+
+/**
+ * A single replacement of a range of characters in a source.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class TextEdit
+{
+   /**
+    * The offset of the first replaced character, 0-based.
+    */
+   public final int offset;
+   
+   /**
+    * The number of characters removed at the offset.
+    */
+   public final int removedLength;
+   
+   /**
+    * The text inserted at the offset, in place of the removed characters.
+    */
+   public final String insertedText;
+   
+   public TextEdit(int offset, int removedLength, String insertedText)
+   {
+      if (offset < 0 || removedLength < 0 || insertedText == null)
+      {
+         throw new IllegalArgumentException("Invalid edit.");
+      }
+      this.offset = offset;
+      this.removedLength = removedLength;
+      this.insertedText = insertedText;
+   }
+   
+   /**
+    * @return How much the length of a source changes when this edit is applied.
+    */
+   public int getLengthChange()
+   {
+      return insertedText.length() - removedLength;
+   }
+   
+   /**
+    * Creates a copy of the given source with this edit applied.
+    * @param source
+    * @return
+    */
+   public CharArraySource apply(CharacterSource source)
+   {
+      final int length = source.length();
+      if (offset + removedLength > length)
+      {
+         throw new IllegalArgumentException("Edit is out of range of the source.");
+      }
+      final char[] chars = source.getCharacters();
+      final char[] result = new char[length + getLengthChange()];
+      final int inserted = insertedText.length();
+      System.arraycopy(chars, 0, result, 0, offset);
+      insertedText.getChars(0, inserted, result, offset);
+      System.arraycopy(chars, offset + removedLength, result, offset + inserted,
+                       length - offset - removedLength);
+      return new CharArraySource(result, result.length);
+   }
+   
+   @Override
+   public String toString()
+   {
+      return "TextEdit(" + offset + ", " + removedLength + ", \"" + insertedText + "\")";
+   }
+}
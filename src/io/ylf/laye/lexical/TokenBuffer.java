@@ -0,0 +1,487 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import io.ylf.laye.file.ScriptFile;
+
+/**
+ * Stores tokens as parallel primitive arrays instead of as Token objects.
+ * 
+ * Each token takes a type ordinal, a source offset, a line, a column and an index into a
+ * payload table, about 17 bytes in total. Payloads are the same objects a {@link Token} would
+ * hold as its data, stored once per distinct object: interned identifiers, keywords and
+ * operators, and the images of fixed tokens, share a single entry.
+ * 
+ * With lazy locations, lines and columns are not stored at all. They are looked up in the
+ * file's line index when asked for.
+ * 
+ * A buffer can also read its columns straight out of a byte buffer, such as a memory mapped
+ * {@link TokenCache} entry, instead of arrays. Such a buffer is read-only.
+ * 
+ * Tokens can be read field by field, by index or relative to the current position, without
+ * allocating anything: these accessors are the flyweight view of a token. Only
+ * {@link #get(int)}, {@link #current()}, {@link #peek(int)} and the location accessors build
+ * objects, for code that needs a Token or a Location.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class TokenBuffer implements TokenCursor
+{
+   private static final Token.Type[] TYPES = Token.Type.values();
+   
+   private static final int INITIAL_CAPACITY = 64;
+   
+   public final ScriptFile file;
+   
+   private byte[] types = new byte[INITIAL_CAPACITY];
+   private int[] offsets = new int[INITIAL_CAPACITY];
+   // Both are null for lazy locations.
+   private int[] lines = new int[INITIAL_CAPACITY];
+   private int[] columns = new int[INITIAL_CAPACITY];
+   private int[] payloads = new int[INITIAL_CAPACITY];
+   private int size = 0;
+   
+   private final boolean lazyLocations;
+   
+   // Set instead of the arrays when the columns are read from a byte buffer, along with the
+   // absolute position of each column in it.
+   private ByteBuffer mapped = null;
+   private int typesStart, offsetsStart, linesStart, columnsStart, payloadsStart;
+   
+   private Object[] payloadTable = new Object[16];
+   private int payloadCount = 0;
+   /**
+    * Finds the payload index of data while tokens are being added, dropped once trimmed.
+    */
+   private IdentityHashMap<Object, Integer> payloadIndices = new IdentityHashMap<>();
+   
+   private int internalStreamOffset = 0;
+   
+   public TokenBuffer(ScriptFile file)
+   {
+      this(file, false);
+   }
+   
+   /**
+    * @param file
+    * @param lazyLocations If <code>true</code>, only offsets are stored for tokens.
+    */
+   public TokenBuffer(ScriptFile file, boolean lazyLocations)
+   {
+      this.file = file;
+      this.lazyLocations = lazyLocations;
+      if (lazyLocations)
+      {
+         lines = null;
+         columns = null;
+      }
+   }
+   
+   /**
+    * Creates a read-only buffer whose columns are read from the given bytes, as written by
+    * {@link #writeColumns(ByteBuffer)}, starting at its current position. The bytes must have
+    * the order they were written in, and stay unchanged for as long as the buffer is used.
+    * @param file
+    * @param bytes
+    * @param size The number of tokens.
+    * @param lazyLocations Whether lines and columns were left out.
+    * @param payloadTable The payloads the tokens' payload indices refer to.
+    * @return The buffer, or <code>null</code> if the bytes remaining don't match the size.
+    */
+   static TokenBuffer map(ScriptFile file, ByteBuffer bytes, int size, boolean lazyLocations,
+         Object[] payloadTable)
+   {
+      final TokenBuffer result = new TokenBuffer(file, lazyLocations);
+      if (size < 0 || bytes.remaining() != result.getColumnsSize(size))
+      {
+         return null;
+      }
+      result.types = null;
+      result.offsets = null;
+      result.lines = null;
+      result.columns = null;
+      result.payloads = null;
+      result.payloadIndices = null;
+      result.payloadTable = payloadTable;
+      result.payloadCount = payloadTable.length;
+      result.size = size;
+      
+      result.mapped = bytes;
+      result.typesStart = bytes.position();
+      result.offsetsStart = result.typesStart + (int) align(size);
+      result.linesStart = result.offsetsStart + size * 4;
+      result.columnsStart = result.linesStart + size * 4;
+      result.payloadsStart = lazyLocations ? result.linesStart : result.columnsStart + size * 4;
+      
+      // Payload indices are checked once here so that reading them later can't fail.
+      for (int i = 0; i < size; i++)
+      {
+         final int payload = result.getPayloadIndex(i);
+         if (payload < 0 || payload >= payloadTable.length || result.getTypeOrdinal(i) < 0
+             || result.getTypeOrdinal(i) >= TYPES.length)
+         {
+            return null;
+         }
+      }
+      return result;
+   }
+   
+   private static long align(int size)
+   {
+      return (size + 3L) & ~3L;
+   }
+   
+   public boolean hasLazyLocations()
+   {
+      return lazyLocations;
+   }
+   
+   public void append(Token.Type type, Object data, int offset, int line, int column)
+   {
+      assert(type != null && data != null);
+      if (mapped != null)
+      {
+         throw new IllegalStateException("Cannot append to a mapped token buffer.");
+      }
+      if (size == types.length)
+      {
+         grow();
+      }
+      types[size] = (byte) type.ordinal();
+      offsets[size] = offset;
+      if (lines != null)
+      {
+         lines[size] = line;
+         columns[size] = column;
+      }
+      payloads[size] = getPayloadIndex(data);
+      size++;
+   }
+   
+   /**
+    * Appends a token for a buffer with lazy locations.
+    */
+   public void append(Token.Type type, Object data, int offset)
+   {
+      assert(lazyLocations);
+      append(type, data, offset, 0, 0);
+   }
+   
+   public void append(Token token)
+   {
+      final Location location = token.location;
+      if (lazyLocations)
+      {
+         append(token.type, token.data, location.offset);
+      }
+      else
+      {
+         append(token.type, token.data, location.offset, location.getLine(),
+                location.getColumn());
+      }
+   }
+   
+   private void grow()
+   {
+      final int capacity = Math.max(size * 2, INITIAL_CAPACITY);
+      types = Arrays.copyOf(types, capacity);
+      offsets = Arrays.copyOf(offsets, capacity);
+      if (lines != null)
+      {
+         lines = Arrays.copyOf(lines, capacity);
+         columns = Arrays.copyOf(columns, capacity);
+      }
+      payloads = Arrays.copyOf(payloads, capacity);
+   }
+   
+   private int getPayloadIndex(Object data)
+   {
+      if (payloadIndices == null)
+      {
+         payloadIndices = new IdentityHashMap<>();
+         for (int i = 0; i < payloadCount; i++)
+         {
+            payloadIndices.put(payloadTable[i], i);
+         }
+      }
+      final Integer index = payloadIndices.get(data);
+      if (index != null)
+      {
+         return index;
+      }
+      if (payloadCount == payloadTable.length)
+      {
+         payloadTable = Arrays.copyOf(payloadTable, Math.max(payloadCount * 2, 16));
+      }
+      payloadTable[payloadCount] = data;
+      payloadIndices.put(data, payloadCount);
+      return payloadCount++;
+   }
+   
+   /**
+    * Releases unused capacity and lookup structures, once no more tokens will be added.
+    */
+   public void trimToSize()
+   {
+      if (mapped != null)
+      {
+         return;
+      }
+      types = Arrays.copyOf(types, size);
+      offsets = Arrays.copyOf(offsets, size);
+      if (lines != null)
+      {
+         lines = Arrays.copyOf(lines, size);
+         columns = Arrays.copyOf(columns, size);
+      }
+      payloads = Arrays.copyOf(payloads, size);
+      payloadTable = Arrays.copyOf(payloadTable, payloadCount);
+      payloadIndices = null;
+   }
+   
+   public int size()
+   {
+      return size;
+   }
+   
+   int getPayloadCount()
+   {
+      return payloadCount;
+   }
+   
+   Object getPayload(int payloadIndex)
+   {
+      assert(payloadIndex >= 0 && payloadIndex < payloadCount);
+      return payloadTable[payloadIndex];
+   }
+   
+   /**
+    * @return The number of bytes {@link #writeColumns(ByteBuffer)} writes.
+    */
+   int getColumnsSize()
+   {
+      return (int) getColumnsSize(size);
+   }
+   
+   private long getColumnsSize(int size)
+   {
+      return align(size) + size * 4L * (lazyLocations ? 2 : 4);
+   }
+   
+   /**
+    * Writes the type, offset, line, column and payload index of every token, one column
+    * after the other, in the layout {@link #map} reads. Lines and columns are left out for
+    * lazy locations.
+    * @param target
+    */
+   void writeColumns(ByteBuffer target)
+   {
+      for (int i = 0; i < size; i++)
+      {
+         target.put((byte) getTypeOrdinal(i));
+      }
+      for (int i = size; i < align(size); i++)
+      {
+         target.put((byte) 0);
+      }
+      for (int i = 0; i < size; i++)
+      {
+         target.putInt(getOffset(i));
+      }
+      if (!lazyLocations)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            target.putInt(getLine(i));
+         }
+         for (int i = 0; i < size; i++)
+         {
+            target.putInt(getColumn(i));
+         }
+      }
+      for (int i = 0; i < size; i++)
+      {
+         target.putInt(getPayloadIndex(i));
+      }
+   }
+   
+   // ===== Index accessors
+   
+   private int getTypeOrdinal(int index)
+   {
+      return mapped == null ? types[index] : mapped.get(typesStart + index);
+   }
+   
+   public Token.Type getType(int index)
+   {
+      assert(index >= 0 && index < size);
+      return TYPES[getTypeOrdinal(index)];
+   }
+   
+   public Object getData(int index)
+   {
+      return payloadTable[getPayloadIndex(index)];
+   }
+   
+   /**
+    * @return The index of the token's data in the payload table. Tokens with the same data
+    *         object have the same payload index.
+    */
+   public int getPayloadIndex(int index)
+   {
+      assert(index >= 0 && index < size);
+      return mapped == null ? payloads[index] : mapped.getInt(payloadsStart + index * 4);
+   }
+   
+   public int getOffset(int index)
+   {
+      assert(index >= 0 && index < size);
+      return mapped == null ? offsets[index] : mapped.getInt(offsetsStart + index * 4);
+   }
+   
+   public int getLine(int index)
+   {
+      assert(index >= 0 && index < size);
+      if (lazyLocations)
+      {
+         return file.getLineIndex().getLine(getOffset(index));
+      }
+      return mapped == null ? lines[index] : mapped.getInt(linesStart + index * 4);
+   }
+   
+   public int getColumn(int index)
+   {
+      assert(index >= 0 && index < size);
+      if (lazyLocations)
+      {
+         return file.getLineIndex().getColumn(getOffset(index));
+      }
+      return mapped == null ? columns[index] : mapped.getInt(columnsStart + index * 4);
+   }
+   
+   public Location getLocation(int index)
+   {
+      if (lazyLocations)
+      {
+         return new Location(file, getOffset(index));
+      }
+      return new Location(file, getOffset(index), getLine(index), getColumn(index));
+   }
+   
+   public Token get(int index)
+   {
+      return new Token(getType(index), getData(index), getLocation(index));
+   }
+   
+   // ===== Stream access
+   
+   public void reset()
+   {
+      internalStreamOffset = 0;
+   }
+   
+   /**
+    * @return The index of the current token.
+    */
+   public int position()
+   {
+      return internalStreamOffset;
+   }
+   
+   @Override
+   public boolean isOver()
+   {
+      return internalStreamOffset >= size;
+   }
+   
+   /**
+    * Builds a Token for the current token. Prefer the field accessors, which don't allocate.
+    */
+   @Override
+   public Token current()
+   {
+      return get(internalStreamOffset);
+   }
+   
+   @Override
+   public void next()
+   {
+      internalStreamOffset++;
+   }
+   
+   /**
+    * Builds a Token for the token at the given offset. Prefer the field accessors, which don't
+    * allocate.
+    */
+   @Override
+   public Token peek(int offset)
+   {
+      return get(internalStreamOffset + offset);
+   }
+   
+   @Override
+   public Token.Type currentType()
+   {
+      return peekType(0);
+   }
+   
+   @Override
+   public Object currentData()
+   {
+      return getData(internalStreamOffset);
+   }
+   
+   @Override
+   public int currentOffset()
+   {
+      return getOffset(internalStreamOffset);
+   }
+   
+   @Override
+   public Location currentLocation()
+   {
+      return getLocation(internalStreamOffset);
+   }
+   
+   @Override
+   public Token.Type peekType(int offset)
+   {
+      final int index = internalStreamOffset + offset;
+      return index < size ? TYPES[getTypeOrdinal(index)] : null;
+   }
+   
+   public Object peekData(int offset)
+   {
+      return getData(internalStreamOffset + offset);
+   }
+   
+   public int peekOffset(int offset)
+   {
+      return getOffset(internalStreamOffset + offset);
+   }
+}
@@ -0,0 +1,387 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import io.ylf.laye.file.ScriptFile;
+import io.ylf.laye.struct.Identifier;
+import io.ylf.laye.struct.Keyword;
+import io.ylf.laye.struct.Operator;
+import io.ylf.laye.vm.ConstantPool;
+import io.ylf.laye.vm.LayeFloat;
+import io.ylf.laye.vm.LayeInt;
+import io.ylf.laye.vm.LayeString;
+
+/**
+ * Keeps the tokens of previously lexed sources in a directory, one file per distinct source.
+ * 
+ * Entries are named after the SHA-256 hash of the source bytes, so an entry is found again
+ * for unchanged contents no matter which path they are read from, and an edited file simply
+ * misses. An entry holds a table of the distinct token payloads (identifier, keyword and
+ * operator images, fixed token images and literal constants) followed by the columns of a
+ * {@link TokenBuffer}. Entries are memory mapped when read, and the returned buffer reads its
+ * tokens straight from the mapping: a hit only builds the payload table. Entries are written
+ * in the platform's byte order, so an entry from a platform with the other order misses.
+ * 
+ * The cache never makes lexing fail. Any problem reading an entry, including a damaged one,
+ * is a miss, and a problem writing one only means it isn't stored.
+ * 
+ * Only tokens lexed without errors or warnings should be stored, since a hit doesn't report
+ * anything.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class TokenCache
+{
+   private static final int MAGIC = 0x4C54434B; // "LTCK"
+   private static final int VERSION = 2;
+   
+   private static final int FLAG_LAZY_LOCATIONS = 1;
+   
+   private static final String EXTENSION = ".tokens";
+   
+   // magic, version, flags, payload count
+   private static final int HEADER_SIZE = 4 + 4 + 4 + 4;
+   
+   private static final Token.Type[] TYPES = Token.Type.values();
+   
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+   
+   /**
+    * @param bytes
+    * @return The key of the given source in any cache. The buffer's position is not modified.
+    */
+   public static String getKey(ByteBuffer bytes)
+   {
+      final MessageDigest digest;
+      try
+      {
+         digest = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         // Every Java platform is required to support SHA-256.
+         throw new AssertionError(e);
+      }
+      digest.update(bytes.duplicate());
+      final byte[] hash = digest.digest();
+      final char[] result = new char[hash.length * 2];
+      for (int i = 0; i < hash.length; i++)
+      {
+         result[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+         result[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+      }
+      return new String(result);
+   }
+   
+   public final Path directory;
+   
+   public TokenCache(Path directory)
+   {
+      this.directory = directory;
+   }
+   
+   private Path getEntryPath(String key)
+   {
+      return directory.resolve(key + EXTENSION);
+   }
+   
+   /**
+    * Reads the tokens stored for the given key.
+    * @param file The file the tokens' locations will refer to.
+    * @param key
+    * @param constants The pool to add the constants of literals to.
+    * @return A read-only buffer of the stored tokens, or <code>null</code> if there is no
+    *         usable entry for the key or it couldn't be read.
+    */
+   public TokenBuffer load(ScriptFile file, String key, ConstantPool constants)
+   {
+      final ByteBuffer buffer;
+      try (FileChannel channel = FileChannel.open(getEntryPath(key), StandardOpenOption.READ))
+      {
+         final long size = channel.size();
+         if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+         {
+            return null;
+         }
+         buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      catch (IOException | SecurityException e)
+      {
+         return null;
+      }
+      
+      try
+      {
+         return read(file, buffer.order(ByteOrder.nativeOrder()), constants);
+      }
+      catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+            | NegativeArraySizeException e)
+      {
+         // A truncated or otherwise damaged entry is the same as no entry, it'll be replaced.
+         return null;
+      }
+   }
+   
+   private static TokenBuffer read(ScriptFile file, ByteBuffer buffer, ConstantPool constants)
+   {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+      {
+         return null;
+      }
+      final int flags = buffer.getInt();
+      
+      final int payloadCount = buffer.getInt();
+      if (payloadCount > buffer.remaining())
+      {
+         return null;
+      }
+      final Object[] payloads = new Object[payloadCount];
+      for (int i = 0; i < payloadCount; i++)
+      {
+         payloads[i] = readPayload(buffer, constants);
+      }
+      
+      buffer.position(align(buffer.position()));
+      final int tokenCount = buffer.getInt();
+      return TokenBuffer.map(file, buffer, tokenCount, (flags & FLAG_LAZY_LOCATIONS) != 0,
+                             payloads);
+   }
+   
+   private static int align(int position)
+   {
+      return (position + 3) & ~3;
+   }
+   
+   private static Object readPayload(ByteBuffer buffer, ConstantPool constants)
+   {
+      final Token.Type kind = TYPES[buffer.get()];
+      if (kind.image != null)
+      {
+         return kind.image;
+      }
+      switch (kind)
+      {
+         case INT_LITERAL:
+            return constants.internInt(buffer.getLong());
+         case FLOAT_LITERAL:
+            return constants.internFloat(Double.longBitsToDouble(buffer.getLong()));
+         default:
+            break;
+      }
+      
+      final char[] chars = new char[buffer.getInt()];
+      buffer.asCharBuffer().get(chars);
+      buffer.position(buffer.position() + chars.length * 2);
+      final String image = new String(chars);
+      
+      switch (kind)
+      {
+         case IDENTIFIER:
+            return Identifier.get(image);
+         case KEYWORD:
+         {
+            final Keyword keyword = Keyword.get(image);
+            if (keyword == null)
+            {
+               throw new IllegalArgumentException("Unknown keyword " + image);
+            }
+            return keyword;
+         }
+         case OPERATOR:
+            return Operator.get(image);
+         case STRING_LITERAL:
+            return constants.internString(image);
+         default:
+            throw new IllegalArgumentException("Unexpected payload kind " + kind);
+      }
+   }
+   
+   /**
+    * Stores tokens under the given key, replacing any existing entry. The entry is written to
+    * a temporary file first, so concurrent readers never see a partial entry.
+    * @param key
+    * @param tokens
+    * @return <code>true</code> if the entry was stored, <code>false</code> if it couldn't be
+    *         written, for example because the directory is read-only or the disk is full.
+    */
+   public boolean store(String key, TokenBuffer tokens)
+   {
+      final ByteBuffer buffer = write(tokens);
+      
+      Path temp = null;
+      try
+      {
+         Files.createDirectories(directory);
+         temp = Files.createTempFile(directory, key, ".tmp");
+         try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+         {
+            while (buffer.hasRemaining())
+            {
+               channel.write(buffer);
+            }
+         }
+         try
+         {
+            Files.move(temp, getEntryPath(key), StandardCopyOption.ATOMIC_MOVE);
+         }
+         catch (AtomicMoveNotSupportedException e)
+         {
+            Files.move(temp, getEntryPath(key), StandardCopyOption.REPLACE_EXISTING);
+         }
+         temp = null;
+         return true;
+      }
+      catch (IOException | SecurityException e)
+      {
+         return false;
+      }
+      finally
+      {
+         if (temp != null)
+         {
+            try
+            {
+               Files.deleteIfExists(temp);
+            }
+            catch (IOException | SecurityException e)
+            {
+               // Nothing else can be done about it, a stray temporary file is harmless.
+            }
+         }
+      }
+   }
+   
+   private static ByteBuffer write(TokenBuffer tokens)
+   {
+      // Payloads only say which kind of token they belong to through the tokens using them.
+      final int payloadCount = tokens.getPayloadCount();
+      final Token.Type[] kinds = new Token.Type[payloadCount];
+      for (int i = 0; i < tokens.size(); i++)
+      {
+         kinds[tokens.getPayloadIndex(i)] = tokens.getType(i);
+      }
+      
+      int size = HEADER_SIZE;
+      for (int i = 0; i < payloadCount; i++)
+      {
+         size += getPayloadSize(kinds[i], tokens.getPayload(i));
+      }
+      size = align(size) + 4 + tokens.getColumnsSize();
+      
+      final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(tokens.hasLazyLocations() ? FLAG_LAZY_LOCATIONS : 0);
+      
+      buffer.putInt(payloadCount);
+      for (int i = 0; i < payloadCount; i++)
+      {
+         writePayload(buffer, kinds[i], tokens.getPayload(i));
+      }
+      while (buffer.position() != align(buffer.position()))
+      {
+         buffer.put((byte) 0);
+      }
+      
+      buffer.putInt(tokens.size());
+      tokens.writeColumns(buffer);
+      
+      assert(!buffer.hasRemaining());
+      buffer.flip();
+      return buffer;
+   }
+   
+   private static int getPayloadSize(Token.Type kind, Object payload)
+   {
+      if (kind.image != null)
+      {
+         return 1;
+      }
+      switch (kind)
+      {
+         case INT_LITERAL:
+         case FLOAT_LITERAL:
+            return 1 + 8;
+         default:
+            return 1 + 4 + getImage(kind, payload).length() * 2;
+      }
+   }
+   
+   private static void writePayload(ByteBuffer buffer, Token.Type kind, Object payload)
+   {
+      buffer.put((byte) kind.ordinal());
+      if (kind.image != null)
+      {
+         return;
+      }
+      switch (kind)
+      {
+         case INT_LITERAL:
+            buffer.putLong(((LayeInt) payload).value);
+            break;
+         case FLOAT_LITERAL:
+            buffer.putLong(Double.doubleToRawLongBits(((LayeFloat) payload).value));
+            break;
+         default:
+         {
+            final String image = getImage(kind, payload);
+            buffer.putInt(image.length());
+            for (int i = 0; i < image.length(); i++)
+            {
+               buffer.putChar(image.charAt(i));
+            }
+         } break;
+      }
+   }
+   
+   private static String getImage(Token.Type kind, Object payload)
+   {
+      switch (kind)
+      {
+         case IDENTIFIER:
+            return ((Identifier) payload).image;
+         case KEYWORD:
+            return ((Keyword) payload).image;
+         case OPERATOR:
+            return ((Operator) payload).image;
+         case STRING_LITERAL:
+            return ((LayeString) payload).value;
+         default:
+            throw new IllegalArgumentException("Unexpected token type " + kind);
+      }
+   }
+}
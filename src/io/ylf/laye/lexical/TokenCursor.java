@@ -0,0 +1,93 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+/**
+ * Sequential access to tokens with a limited amount of lookahead.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public interface TokenCursor
+{
+   /**
+    * @return <code>true</code> if there are no tokens left to read.
+    */
+   boolean isOver();
+   
+   /**
+    * @return The token at the current position.
+    */
+   Token current();
+   
+   /**
+    * Advances to the next token.
+    */
+   void next();
+   
+   /**
+    * @param offset The offset from the current position.
+    * @return The token at the given offset from the current position.
+    */
+   Token peek(int offset);
+   
+   // The fields of tokens can be read one at a time, which cursors that don't store Token
+   // objects do without allocating. These read them from the Token by default.
+   
+   /**
+    * @return The type of the current token, or <code>null</code> if there are none left.
+    */
+   default Token.Type currentType()
+   {
+      return peekType(0);
+   }
+   
+   default Object currentData()
+   {
+      return current().data;
+   }
+   
+   /**
+    * @return The character offset of the current token in its file.
+    */
+   default int currentOffset()
+   {
+      return current().location.offset;
+   }
+   
+   default Location currentLocation()
+   {
+      return current().location;
+   }
+   
+   /**
+    * @param offset The offset from the current position.
+    * @return The type of the token at the given offset from the current position, or
+    *         <code>null</code> if it's past the end.
+    */
+   default Token.Type peekType(int offset)
+   {
+      final Token token = peek(offset);
+      return token == null ? null : token.type;
+   }
+}
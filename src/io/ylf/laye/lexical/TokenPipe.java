@@ -0,0 +1,293 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Passes tokens from a lexer on one thread to a consumer on another.
+ * 
+ * Tokens are passed in batches through a bounded ring, which only one thread may put into and
+ * only one other thread may take from. Neither side takes a lock. The producer waits while the
+ * ring is full, so it never gets more than the ring's capacity ahead of the consumer, and the
+ * consumer waits while it's empty.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class TokenPipe implements TokenSource
+{
+   public static final int DEFAULT_BATCH_SIZE = 512;
+   public static final int DEFAULT_CAPACITY = 64;
+   
+   /**
+    * How many times a side checks again before it starts parking.
+    */
+   private static final int SPIN_LIMIT = 128;
+   /**
+    * Parking is timed so a side that misses being unparked still gets to check again.
+    */
+   private static final long PARK_NANOS = 50_000L;
+   
+   private static final Token[] END = new Token[0];
+   
+   private final Token[][] batches;
+   private final int mask;
+   private final int batchSize;
+   
+   /**
+    * The number of batches taken. Only written by the consumer.
+    */
+   private final AtomicLong head = new AtomicLong();
+   /**
+    * The number of batches put. Only written by the producer.
+    */
+   private final AtomicLong tail = new AtomicLong();
+   
+   private volatile Thread producer = null;
+   private volatile Thread consumer = null;
+   private volatile Throwable failure = null;
+   private volatile boolean cancelled = false;
+   
+   // ===== Producer state
+   
+   private Token[] putBatch;
+   private int putCount = 0;
+   /** The last value of head read by the producer. */
+   private long cachedHead = 0;
+   
+   // ===== Consumer state
+   
+   private Token[] takeBatch = null;
+   private int takeIndex = 0;
+   /** The last value of tail read by the consumer. */
+   private long cachedTail = 0;
+   
+   public TokenPipe()
+   {
+      this(DEFAULT_BATCH_SIZE, DEFAULT_CAPACITY);
+   }
+   
+   /**
+    * @param batchSize The number of tokens passed at a time.
+    * @param capacity The number of batches the producer can be ahead by.
+    */
+   public TokenPipe(int batchSize, int capacity)
+   {
+      if (batchSize <= 0)
+      {
+         throw new IllegalArgumentException("batchSize: " + batchSize);
+      }
+      if (capacity <= 0 || capacity >= (1 << 30))
+      {
+         throw new IllegalArgumentException("capacity: " + capacity);
+      }
+      // Round up to a power of two so positions wrap with a mask.
+      final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+      this.batches = new Token[size][];
+      this.mask = batches.length - 1;
+      this.batchSize = batchSize;
+      this.putBatch = new Token[batchSize];
+   }
+   
+   // ===== Producer
+   
+   /**
+    * Puts a token, waiting if the consumer is too far behind.
+    * Must only be called from the producer's thread.
+    * @param token
+    */
+   public void put(Token token)
+   {
+      assert(token != null);
+      putBatch[putCount++] = token;
+      if (putCount == batchSize)
+      {
+         publish(putBatch);
+         putBatch = new Token[batchSize];
+         putCount = 0;
+      }
+   }
+   
+   /**
+    * Passes on any tokens put so far and ends the pipe.
+    * Must only be called from the producer's thread.
+    */
+   public void close()
+   {
+      if (putCount > 0)
+      {
+         final Token[] last = new Token[putCount];
+         System.arraycopy(putBatch, 0, last, 0, putCount);
+         publish(last);
+      }
+      putBatch = null;
+      putCount = 0;
+      publish(END);
+   }
+   
+   /**
+    * Ends the pipe because the producer failed. The consumer throws when it reaches the
+    * failure.
+    * Must only be called from the producer's thread.
+    * @param cause
+    */
+   public void fail(Throwable cause)
+   {
+      failure = cause;
+      publish(END);
+   }
+   
+   /**
+    * @return <code>true</code> if the consumer has stopped taking tokens, in which case the
+    *         producer can stop putting them.
+    */
+   public boolean isCancelled()
+   {
+      return cancelled;
+   }
+   
+   private void publish(Token[] batch)
+   {
+      final long position = tail.get();
+      if (position - cachedHead > mask)
+      {
+         cachedHead = head.get();
+         if (position - cachedHead > mask)
+         {
+            producer = Thread.currentThread();
+            int spins = 0;
+            while (position - (cachedHead = head.get()) > mask)
+            {
+               if (cancelled)
+               {
+                  producer = null;
+                  return;
+               }
+               if (++spins < SPIN_LIMIT)
+               {
+                  Thread.yield();
+               }
+               else
+               {
+                  LockSupport.parkNanos(this, PARK_NANOS);
+               }
+            }
+            producer = null;
+         }
+      }
+      batches[(int) position & mask] = batch;
+      tail.lazySet(position + 1);
+      final Thread waiting = consumer;
+      if (waiting != null)
+      {
+         LockSupport.unpark(waiting);
+      }
+   }
+   
+   // ===== Consumer
+   
+   /**
+    * Takes the next token, waiting for the producer if there is none yet.
+    * Must only be called from the consumer's thread.
+    * @return The next token, or <code>null</code> if the pipe has ended.
+    * @throws IllegalStateException If the producer failed.
+    */
+   @Override
+   public Token nextToken()
+   {
+      if (takeBatch == null || takeIndex == takeBatch.length)
+      {
+         if (takeBatch == END || !take())
+         {
+            return null;
+         }
+      }
+      return takeBatch[takeIndex++];
+   }
+   
+   /**
+    * Stops taking tokens, letting a producer that is waiting go.
+    * Must only be called from the consumer's thread.
+    */
+   public void cancel()
+   {
+      cancelled = true;
+      takeBatch = END;
+      takeIndex = 0;
+      final Thread waiting = producer;
+      if (waiting != null)
+      {
+         LockSupport.unpark(waiting);
+      }
+   }
+   
+   private boolean take()
+   {
+      final long position = head.get();
+      if (position == cachedTail)
+      {
+         cachedTail = tail.get();
+         if (position == cachedTail)
+         {
+            consumer = Thread.currentThread();
+            int spins = 0;
+            while (position == (cachedTail = tail.get()))
+            {
+               if (++spins < SPIN_LIMIT)
+               {
+                  Thread.yield();
+               }
+               else
+               {
+                  LockSupport.parkNanos(this, PARK_NANOS);
+               }
+            }
+            consumer = null;
+         }
+      }
+      final int index = (int) position & mask;
+      final Token[] batch = batches[index];
+      batches[index] = null;
+      head.lazySet(position + 1);
+      final Thread waiting = producer;
+      if (waiting != null)
+      {
+         LockSupport.unpark(waiting);
+      }
+      
+      takeBatch = batch;
+      takeIndex = 0;
+      if (batch == END)
+      {
+         final Throwable cause = failure;
+         if (cause != null)
+         {
+            throw new IllegalStateException("The token producer failed.", cause);
+         }
+         return false;
+      }
+      return true;
+   }
+}
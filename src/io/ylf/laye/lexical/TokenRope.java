@@ -0,0 +1,409 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.lexical;
+
+import java.util.Arrays;
+
+import io.ylf.laye.file.ScriptFile;
+
+/**
+ * The tokens of a file as a sequence of chunks, each a range of a {@link TokenBuffer} read
+ * with an offset and a line added to every token in it.
+ * 
+ * Ropes are never modified: {@link #replace} returns a new rope that shares every chunk
+ * outside the replaced range with this one, so only the replaced range costs anything. This
+ * is what lets {@link FileLexer#relex(TokenRope, io.ylf.laye.file.CharacterSource, TextEdit)}
+ * update the tokens after an edit without touching the tokens before or after it: the ones
+ * after it are moved by changing the deltas of their chunks. Columns are never shifted, so
+ * only tokens on a later line than an edit can be reused with a different line.
+ * 
+ * Like {@link TokenBuffer}, tokens are read field by field without allocating. The stream
+ * position is the only state that changes, so a rope should only be read by one thread.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class TokenRope implements TokenCursor
+{
+   /**
+    * The number of tokens in each chunk of a new rope. Chunks made by {@link #replace} hold up
+    * to twice as many.
+    */
+   private static final int CHUNK_SIZE = 1024;
+   
+   public final ScriptFile file;
+   private final boolean lazyLocations;
+   
+   // The chunks, as parallel arrays. Chunk i holds the tokens of buffers[i] starting at
+   // froms[i], and is at indices starts[i] up to starts[i + 1] of the rope.
+   private final TokenBuffer[] buffers;
+   private final int[] froms;
+   private final int[] starts;
+   private final int[] offsetDeltas;
+   private final int[] lineDeltas;
+   private final int chunkCount;
+   
+   // The chunk of the last token read, which the next one is almost always in.
+   private int lastChunk = 0;
+   
+   private int internalStreamOffset = 0;
+   
+   /**
+    * Creates a rope of the tokens in the given buffer, which must not be modified afterwards.
+    * @param tokens
+    */
+   public TokenRope(TokenBuffer tokens)
+   {
+      this.file = tokens.file;
+      this.lazyLocations = tokens.hasLazyLocations();
+      
+      final int count = Math.max((tokens.size() + CHUNK_SIZE - 1) / CHUNK_SIZE, 1);
+      buffers = new TokenBuffer[count];
+      froms = new int[count];
+      starts = new int[count + 1];
+      offsetDeltas = new int[count];
+      lineDeltas = new int[count];
+      chunkCount = count;
+      for (int i = 0; i < count; i++)
+      {
+         buffers[i] = tokens;
+         froms[i] = starts[i] = i * CHUNK_SIZE;
+      }
+      starts[count] = tokens.size();
+   }
+   
+   private TokenRope(ScriptFile file, boolean lazyLocations, TokenBuffer[] buffers, int[] froms,
+         int[] starts, int[] offsetDeltas, int[] lineDeltas, int chunkCount)
+   {
+      this.file = file;
+      this.lazyLocations = lazyLocations;
+      this.buffers = buffers;
+      this.froms = froms;
+      this.starts = starts;
+      this.offsetDeltas = offsetDeltas;
+      this.lineDeltas = lineDeltas;
+      this.chunkCount = chunkCount;
+   }
+   
+   public boolean hasLazyLocations()
+   {
+      return lazyLocations;
+   }
+   
+   public int size()
+   {
+      return starts[chunkCount];
+   }
+   
+   // ===== Chunks
+   
+   private int getChunk(int index)
+   {
+      int chunk = lastChunk;
+      if (index >= starts[chunk] && index < starts[chunk + 1])
+      {
+         return chunk;
+      }
+      int low = 0, high = chunkCount - 1;
+      while (low < high)
+      {
+         final int mid = (low + high + 1) >>> 1;
+         if (starts[mid] <= index)
+         {
+            low = mid;
+         }
+         else
+         {
+            high = mid - 1;
+         }
+      }
+      return lastChunk = low;
+   }
+   
+   /**
+    * @return The index of the first token in the chunk holding the token at the given index,
+    *         or the size of the rope for the index just past the end.
+    */
+   int getChunkStart(int index)
+   {
+      return index == size() ? index : starts[getChunk(index)];
+   }
+   
+   /**
+    * @return The index just past the last token in the chunk holding the token at the given
+    *         index, or the size of the rope for the index just past the end.
+    */
+   int getChunkEnd(int index)
+   {
+      return index == size() ? index : starts[getChunk(index) + 1];
+   }
+   
+   /**
+    * Appends tokens of this rope to a buffer, with their offsets and lines shifted.
+    * @param target
+    * @param from The index of the first token to append.
+    * @param to The index just past the last token to append.
+    * @param offsetDelta
+    * @param lineDelta
+    */
+   void copyTo(TokenBuffer target, int from, int to, int offsetDelta, int lineDelta)
+   {
+      for (int i = from; i < to; i++)
+      {
+         if (lazyLocations)
+         {
+            target.append(getType(i), getData(i), getOffset(i) + offsetDelta);
+         }
+         else
+         {
+            target.append(getType(i), getData(i), getOffset(i) + offsetDelta,
+                          getLine(i) + lineDelta, getColumn(i));
+         }
+      }
+   }
+   
+   /**
+    * Creates a rope with the tokens from one chunk boundary up to another replaced by the
+    * tokens of a buffer, and the tokens after them shifted. The chunks before and after the
+    * replaced range are shared with this rope.
+    * @param from The index of the first replaced token, at the start of a chunk.
+    * @param to The index just past the last replaced token, at the end of a chunk.
+    * @param tokens The tokens to put in their place, which must not be modified afterwards.
+    * @param offsetDelta Added to the offsets of the tokens after the replaced range.
+    * @param lineDelta Added to the lines of the tokens after the replaced range.
+    * @return
+    */
+   TokenRope replace(int from, int to, TokenBuffer tokens, int offsetDelta, int lineDelta)
+   {
+      assert(from == getChunkStart(from) && to == getChunkStart(to));
+      assert(tokens.file == file && tokens.hasLazyLocations() == lazyLocations);
+      
+      final int first = from == size() ? chunkCount : getChunk(from);
+      final int last = to == size() ? chunkCount : getChunk(to);
+      
+      // Large replacements are split up so that no chunk is too large to copy on an edit.
+      int added = 0;
+      for (int remaining = tokens.size(); remaining > 0; remaining -= CHUNK_SIZE)
+      {
+         added++;
+         if (remaining < CHUNK_SIZE * 2)
+         {
+            break;
+         }
+      }
+      
+      final int count = first + added + chunkCount - last;
+      final TokenBuffer[] buffers = Arrays.copyOf(this.buffers, count);
+      final int[] froms = Arrays.copyOf(this.froms, count);
+      final int[] starts = Arrays.copyOf(this.starts, count + 1);
+      final int[] offsetDeltas = Arrays.copyOf(this.offsetDeltas, count);
+      final int[] lineDeltas = Arrays.copyOf(this.lineDeltas, count);
+      
+      int chunk = first;
+      for (int i = 0; i < added; i++, chunk++)
+      {
+         buffers[chunk] = tokens;
+         froms[chunk] = i * CHUNK_SIZE;
+         starts[chunk] = from + i * CHUNK_SIZE;
+         offsetDeltas[chunk] = 0;
+         lineDeltas[chunk] = 0;
+      }
+      final int indexDelta = from + tokens.size() - to;
+      for (int i = last; i < chunkCount; i++, chunk++)
+      {
+         buffers[chunk] = this.buffers[i];
+         froms[chunk] = this.froms[i];
+         starts[chunk] = this.starts[i] + indexDelta;
+         offsetDeltas[chunk] = this.offsetDeltas[i] + offsetDelta;
+         lineDeltas[chunk] = this.lineDeltas[i] + lineDelta;
+      }
+      starts[count] = size() + indexDelta;
+      
+      if (count == 0)
+      {
+         // Keep one empty chunk, so that every index up to the size is in a chunk.
+         return new TokenRope(tokens);
+      }
+      return new TokenRope(file, lazyLocations, buffers, froms, starts, offsetDeltas,
+                           lineDeltas, count);
+   }
+   
+   // ===== Index accessors
+   
+   public Token.Type getType(int index)
+   {
+      assert(index >= 0 && index < size());
+      final int chunk = getChunk(index);
+      return buffers[chunk].getType(froms[chunk] + index - starts[chunk]);
+   }
+   
+   public Object getData(int index)
+   {
+      assert(index >= 0 && index < size());
+      final int chunk = getChunk(index);
+      return buffers[chunk].getData(froms[chunk] + index - starts[chunk]);
+   }
+   
+   public int getOffset(int index)
+   {
+      assert(index >= 0 && index < size());
+      final int chunk = getChunk(index);
+      return buffers[chunk].getOffset(froms[chunk] + index - starts[chunk]) +
+            offsetDeltas[chunk];
+   }
+   
+   public int getLine(int index)
+   {
+      assert(index >= 0 && index < size());
+      if (lazyLocations)
+      {
+         return file.getLineIndex().getLine(getOffset(index));
+      }
+      final int chunk = getChunk(index);
+      return buffers[chunk].getLine(froms[chunk] + index - starts[chunk]) + lineDeltas[chunk];
+   }
+   
+   public int getColumn(int index)
+   {
+      assert(index >= 0 && index < size());
+      if (lazyLocations)
+      {
+         return file.getLineIndex().getColumn(getOffset(index));
+      }
+      final int chunk = getChunk(index);
+      return buffers[chunk].getColumn(froms[chunk] + index - starts[chunk]);
+   }
+   
+   public Location getLocation(int index)
+   {
+      if (lazyLocations)
+      {
+         return new Location(file, getOffset(index));
+      }
+      return new Location(file, getOffset(index), getLine(index), getColumn(index));
+   }
+   
+   public Token get(int index)
+   {
+      return new Token(getType(index), getData(index), getLocation(index));
+   }
+   
+   /**
+    * @return The index of the last token starting before the given offset, or -1 if none does.
+    */
+   public int lastTokenStartingBefore(int offset)
+   {
+      int low = 0, high = size() - 1, result = -1;
+      while (low <= high)
+      {
+         final int mid = (low + high) >>> 1;
+         if (getOffset(mid) < offset)
+         {
+            result = mid;
+            low = mid + 1;
+         }
+         else
+         {
+            high = mid - 1;
+         }
+      }
+      return result;
+   }
+   
+   // ===== Stream access
+   
+   public void reset()
+   {
+      internalStreamOffset = 0;
+   }
+   
+   /**
+    * @return The index of the current token.
+    */
+   public int position()
+   {
+      return internalStreamOffset;
+   }
+   
+   @Override
+   public boolean isOver()
+   {
+      return internalStreamOffset >= size();
+   }
+   
+   /**
+    * Builds a Token for the current token. Prefer the field accessors, which don't allocate.
+    */
+   @Override
+   public Token current()
+   {
+      return get(internalStreamOffset);
+   }
+   
+   @Override
+   public void next()
+   {
+      internalStreamOffset++;
+   }
+   
+   /**
+    * Builds a Token for the token at the given offset. Prefer the field accessors, which don't
+    * allocate.
+    */
+   @Override
+   public Token peek(int offset)
+   {
+      return get(internalStreamOffset + offset);
+   }
+   
+   @Override
+   public Token.Type currentType()
+   {
+      return peekType(0);
+   }
+   
+   @Override
+   public Object currentData()
+   {
+      return getData(internalStreamOffset);
+   }
+   
+   @Override
+   public int currentOffset()
+   {
+      return getOffset(internalStreamOffset);
+   }
+   
+   @Override
+   public Location currentLocation()
+   {
+      return getLocation(internalStreamOffset);
+   }
+   
+   @Override
+   public Token.Type peekType(int offset)
+   {
+      final int index = internalStreamOffset + offset;
+      return index < size() ? getType(index) : null;
+   }
+}
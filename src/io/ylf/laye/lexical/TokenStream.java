@@ -29,7 +29,7 @@ import net.fudev.faxlib.collections.List;
 /**
  * @author Sekai Kyoretsuna
  */
-public class TokenStream extends List<Token>
+public class TokenStream extends List<Token> implements TokenCursor
 {
    private int internalStreamOffset = 0;
    
@@ -45,23 +45,34 @@ public class TokenStream extends List<Token>
       internalStreamOffset = 0;
    }
    
+   @Override
    public boolean isOver()
    {
       return internalStreamOffset >= size();
    }
    
+   @Override
    public Token current()
    {
       return get(internalStreamOffset);
    }
    
+   @Override
    public void next()
    {
       internalStreamOffset++;
    }
    
+   @Override
    public Token peek(int offset)
    {
       return get(internalStreamOffset + offset);
    }
+   
+   @Override
+   public Token.Type peekType(int offset)
+   {
+      final int index = internalStreamOffset + offset;
+      return index < size() ? get(index).type : null;
+   }
 }
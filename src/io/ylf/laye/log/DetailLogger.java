@@ -29,6 +29,8 @@ import io.ylf.laye.LogMessageID;
 import io.ylf.laye.lexical.Location;
 
 /**
+ * Logging is synchronized, so one logger can be shared by threads lexing different files.
+ * 
  * @author Sekai Kyoretsuna
  */
 public class DetailLogger
@@ -51,22 +53,22 @@ public class DetailLogger
       this.err = err;
    }
    
-   public boolean hasErrors()
+   public synchronized boolean hasErrors()
    {
       return errorCount > 0;
    }
    
-   public int getErrorCount()
+   public synchronized int getErrorCount()
    {
       return errorCount;
    }
    
-   public boolean hasWarnings()
+   public synchronized boolean hasWarnings()
    {
       return warningCount > 0;
    }
    
-   public int getWarningCount()
+   public synchronized int getWarningCount()
    {
       return warningCount;
    }
@@ -81,7 +83,7 @@ public class DetailLogger
    /**
     * @param message
     */
-   public void log(String message)
+   public synchronized void log(String message)
    {
       out.println(message);
    }
@@ -90,7 +92,7 @@ public class DetailLogger
     * @param message
     * @param args
     */
-   public void logf(String format, Object... args)
+   public synchronized void logf(String format, Object... args)
    {
       out.printf(format, args);
    }
@@ -100,7 +102,7 @@ public class DetailLogger
     * @param location
     * @param message
     */
-   public void logWarning(Location location, LogMessageID id, String message)
+   public synchronized void logWarning(Location location, LogMessageID id, String message)
    {
       warningCount++;
       out.printf("[Warning:%d] ", id.id);
@@ -117,7 +119,7 @@ public class DetailLogger
     * @param message
     * @param args
     */
-   public void logWarningf(Location location, LogMessageID id, String format, Object... args)
+   public synchronized void logWarningf(Location location, LogMessageID id, String format, Object... args)
    {
       warningCount++;
       out.printf("[Warning:%d] ", id.id);
@@ -133,7 +135,7 @@ public class DetailLogger
     * @param location
     * @param message
     */
-   public void logError(Location location, LogMessageID id, String message)
+   public synchronized void logError(Location location, LogMessageID id, String message)
    {
       errorCount++;
       err.printf("[Error:%d] ", id.id);
@@ -150,7 +152,7 @@ public class DetailLogger
     * @param message
     * @param args
     */
-   public void logErrorf(Location location, LogMessageID id, String format, Object... args)
+   public synchronized void logErrorf(Location location, LogMessageID id, String format, Object... args)
    {
       errorCount++;
       err.printf("[Error:%d] ", id.id);
@@ -23,28 +23,122 @@
  */
 package io.ylf.laye.struct;
 
-import java.util.HashMap;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Identifiers are interned: there is at most one live identifier for each image, so they can
+ * be compared by identity.
+ * 
+ * The intern table only holds identifiers weakly. Once nothing else refers to an identifier it
+ * is dropped from the table, so a long running process doesn't keep every identifier it has
+ * ever seen.
+ * 
+ * Every live identifier has a small id, unique among live identifiers, which can be used to
+ * index arrays instead of hashing. Ids are reused once their identifier has been collected,
+ * so anything keyed by ids must keep its identifiers alive for as long as it uses them.
+ * 
  * @author Sekai Kyoretsuna
  */
 public final class Identifier
 {
-   private static final HashMap<String, Identifier> idents = new HashMap<>();
+   private static final class Entry extends WeakReference<Identifier>
+   {
+      final String image;
+      final int id;
+      
+      Entry(Identifier identifier, ReferenceQueue<Identifier> queue)
+      {
+         super(identifier, queue);
+         this.image = identifier.image;
+         this.id = identifier.id;
+      }
+   }
+   
+   private static final ConcurrentHashMap<String, Entry> idents = new ConcurrentHashMap<>();
+   private static final ReferenceQueue<Identifier> collected = new ReferenceQueue<>();
+   
+   // Guarded by idents, lookups of existing identifiers don't lock.
+   private static int[] freeIds = new int[16];
+   private static int freeIdCount = 0;
+   private static int idLimit = 0;
    
+   /**
+    * Returns the unique identifier with the given image. This is safe to call from multiple
+    * threads.
+    * @param image
+    * @return
+    */
    public static Identifier get(String image)
    {
       if (!isIdentifier(image))
       {
          return null;
       }
-      Identifier result = idents.get(image);
-      if (result == null)
+      final Entry entry = idents.get(image);
+      if (entry != null)
       {
-         result = new Identifier(image);
-         idents.put(image, result);
+         final Identifier result = entry.get();
+         if (result != null)
+         {
+            return result;
+         }
+      }
+      return intern(image);
+   }
+   
+   private static Identifier intern(String image)
+   {
+      synchronized (idents)
+      {
+         expungeCollected();
+         final Entry entry = idents.get(image);
+         Identifier result = entry == null ? null : entry.get();
+         if (result == null)
+         {
+            // A cleared entry that isn't queued yet is replaced here, its id is freed later.
+            result = new Identifier(image, allocateId());
+            idents.put(image, new Entry(result, collected));
+         }
+         return result;
+      }
+   }
+   
+   private static int allocateId()
+   {
+      if (freeIdCount > 0)
+      {
+         return freeIds[--freeIdCount];
+      }
+      return idLimit++;
+   }
+   
+   private static void expungeCollected()
+   {
+      Entry entry;
+      while ((entry = (Entry) collected.poll()) != null)
+      {
+         idents.remove(entry.image, entry);
+         if (freeIdCount == freeIds.length)
+         {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+         }
+         freeIds[freeIdCount++] = entry.id;
+      }
+   }
+   
+   /**
+    * @return A bound on the ids of live identifiers, all of them are less than it. Arrays of
+    *         this length can be indexed by any current identifier's id.
+    */
+   public static int getIdLimit()
+   {
+      synchronized (idents)
+      {
+         return idLimit;
       }
-      return result;
    }
    
    public static boolean isIdentifier(String image)
@@ -78,10 +172,15 @@ public final class Identifier
    }
    
    public final String image;
+   /**
+    * The dense id of this identifier, see {@link #getIdLimit()}.
+    */
+   public final int id;
    
-   private Identifier(String image)
+   private Identifier(String image, int id)
    {
       this.image = image;
+      this.id = id;
    }
    
    // ===== toString, hashCode, and equals
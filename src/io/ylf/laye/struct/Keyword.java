@@ -23,15 +23,67 @@
  */
 package io.ylf.laye.struct;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
  * @author Sekai Kyoretsuna
  */
-public class Keyword
+public enum Keyword
 {
+   AND(Keyword.STR_AND),
+   OR(Keyword.STR_OR),
+   XOR(Keyword.STR_XOR),
+   NOT(Keyword.STR_NOT),
+   TYPEOF(Keyword.STR_TYPEOF),
+   REF(Keyword.STR_REF),
+   DEREF(Keyword.STR_DEREF),
+
+   TRUE(Keyword.STR_TRUE),
+   FALSE(Keyword.STR_FALSE),
+   NULL(Keyword.STR_NULL),
+
+   IF(Keyword.STR_IF),
+   EL(Keyword.STR_EL),
+   ITER(Keyword.STR_ITER),
+   TO(Keyword.STR_TO),
+   BY(Keyword.STR_BY),
+   EACH(Keyword.STR_EACH),
+   IN(Keyword.STR_IN),
+   WHILE(Keyword.STR_WHILE),
+   TAKE(Keyword.STR_TAKE),
+   MATCH(Keyword.STR_MATCH),
+
+   EXIT(Keyword.STR_EXIT),
+   RET(Keyword.STR_RET),
+   CONT(Keyword.STR_CONT),
+   BREAK(Keyword.STR_BREAK),
+   RESUME(Keyword.STR_RESUME),
+   YIELD(Keyword.STR_YIELD),
+
+   VAR(Keyword.STR_VAR),
+   THIS(Keyword.STR_THIS),
+   SELF(Keyword.STR_SELF),
+   BASE(Keyword.STR_BASE),
+
+   FN(Keyword.STR_FN),
+   TYPE(Keyword.STR_TYPE),
+   USE(Keyword.STR_USE),
+   FROM(Keyword.STR_FROM),
+   IMPORT(Keyword.STR_IMPORT);
+   
+   // Only written to while the class is initialized, so concurrent lookups are safe.
    private static final HashMap<String, Keyword> keywords = new HashMap<String, Keyword>();
    
+   static
+   {
+      for (Keyword keyword : values())
+      {
+         assert(!keywords.containsKey(keyword.image));
+         keywords.put(keyword.image, keyword);
+      }
+   }
+   
    public static final String STR_AND = "and";
    public static final String STR_OR = "or";
    public static final String STR_XOR = "xor";
@@ -73,46 +125,74 @@ public class Keyword
    public static final String STR_FROM = "from";
    public static final String STR_IMPORT = "import";
    
-   public static final Keyword AND = new Keyword(STR_AND);
-   public static final Keyword OR = new Keyword(STR_OR);
-   public static final Keyword XOR = new Keyword(STR_XOR);
-   public static final Keyword NOT = new Keyword(STR_NOT);
-   public static final Keyword TYPEOF = new Keyword(STR_TYPEOF);
-   public static final Keyword REF = new Keyword(STR_REF);
-   public static final Keyword DEREF = new Keyword(STR_DEREF);
-
-   public static final Keyword TRUE = new Keyword(STR_TRUE);
-   public static final Keyword FALSE = new Keyword(STR_FALSE);
-   public static final Keyword NULL = new Keyword(STR_NULL);
-
-   public static final Keyword IF = new Keyword(STR_IF);
-   public static final Keyword EL = new Keyword(STR_EL);
-   public static final Keyword ITER = new Keyword(STR_ITER);
-   public static final Keyword TO = new Keyword(STR_TO);
-   public static final Keyword BY = new Keyword(STR_BY);
-   public static final Keyword EACH = new Keyword(STR_EACH);
-   public static final Keyword IN = new Keyword(STR_IN);
-   public static final Keyword WHILE = new Keyword(STR_WHILE);
-   public static final Keyword TAKE = new Keyword(STR_TAKE);
-   public static final Keyword MATCH = new Keyword(STR_MATCH);
-
-   public static final Keyword EXIT = new Keyword(STR_EXIT);
-   public static final Keyword RET = new Keyword(STR_RET);
-   public static final Keyword CONT = new Keyword(STR_CONT);
-   public static final Keyword BREAK = new Keyword(STR_BREAK);
-   public static final Keyword RESUME = new Keyword(STR_RESUME);
-   public static final Keyword YIELD = new Keyword(STR_YIELD);
-
-   public static final Keyword VAR = new Keyword(STR_VAR);
-   public static final Keyword THIS = new Keyword(STR_THIS);
-   public static final Keyword SELF = new Keyword(STR_SELF);
-   public static final Keyword BASE = new Keyword(STR_BASE);
-
-   public static final Keyword FN = new Keyword(STR_FN);
-   public static final Keyword TYPE = new Keyword(STR_TYPE);
-   public static final Keyword USE = new Keyword(STR_USE);
-   public static final Keyword FROM = new Keyword(STR_FROM);
-   public static final Keyword IMPORT = new Keyword(STR_IMPORT);
+   // ===== Perfect hash table, for lookups straight from source characters
+   
+   private static final int PERFECT_TABLE_BITS = 8;
+   private static final Keyword[] perfectTable = new Keyword[1 << PERFECT_TABLE_BITS];
+   private static final int perfectSeed;
+   
+   static
+   {
+      // Look for a multiplier that sends every keyword to its own slot. With this many keywords
+      // and this table size, a few tries are enough.
+      int seed = 0x9E3779B1;
+      while (!fillPerfectTable(seed))
+      {
+         seed += 2;
+      }
+      perfectSeed = seed;
+   }
+   
+   private static boolean fillPerfectTable(int seed)
+   {
+      Arrays.fill(perfectTable, null);
+      for (Keyword keyword : keywords.values())
+      {
+         final int slot = perfectSlot(keyword.image.hashCode(), seed);
+         if (perfectTable[slot] != null)
+         {
+            return false;
+         }
+         perfectTable[slot] = keyword;
+      }
+      return true;
+   }
+   
+   private static int perfectSlot(int hash, int seed)
+   {
+      return (hash * seed) >>> (32 - PERFECT_TABLE_BITS);
+   }
+   
+   /**
+    * Finds the keyword whose image is the given range of characters, without creating a
+    * string.
+    * @param chars
+    * @param offset
+    * @param length
+    * @param hash The hash of the characters, computed the same way as {@link String#hashCode()}.
+    * @return The keyword, or <code>null</code> if the characters aren't a keyword.
+    */
+   public static Keyword get(char[] chars, int offset, int length, int hash)
+   {
+      final Keyword keyword = perfectTable[perfectSlot(hash, perfectSeed)];
+      if (keyword == null)
+      {
+         return null;
+      }
+      final String image = keyword.image;
+      if (image.length() != length)
+      {
+         return null;
+      }
+      for (int i = 0; i < length; i++)
+      {
+         if (image.charAt(i) != chars[offset + i])
+         {
+            return null;
+         }
+      }
+      return keyword;
+   }
 
    public static boolean exists(String image)
    {
@@ -130,9 +210,8 @@ public class Keyword
    
    private Keyword(String image)
    {
-      assert(image != null && !keywords.containsKey(image));
+      assert(image != null);
       this.image = image;
-      keywords.put(image, this);
    }
    
    @Override
@@ -140,43 +219,4 @@ public class Keyword
    {
       return image;
    }
-
-   @Override
-   public int hashCode()
-   {
-      final int prime = 31;
-      int result = 1;
-      result = prime * result + ((image == null) ? 0 : image.hashCode());
-      return result;
-   }
-
-   @Override
-   public boolean equals(Object obj)
-   {
-      if (this == obj)
-      {
-         return true;
-      }
-      if (obj == null)
-      {
-         return false;
-      }
-      if (!(obj instanceof Keyword))
-      {
-         return false;
-      }
-      Keyword other = (Keyword) obj;
-      if (image == null)
-      {
-         if (other.image != null)
-         {
-            return false;
-         }
-      }
-      else if (!image.equals(other.image))
-      {
-         return false;
-      }
-      return true;
-   }
 }
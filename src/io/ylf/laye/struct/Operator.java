@@ -23,15 +23,17 @@
  */
 package io.ylf.laye.struct;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Sekai Kyoretsuna
  */
 public final class Operator
 {
-   private static final Map<String, Operator> operators = new HashMap<String, Operator>();
+   private static final ConcurrentHashMap<String, Operator> operators =
+         new ConcurrentHashMap<String, Operator>();
+   private static final AtomicInteger count = new AtomicInteger();
    
    public static final int DEFAULT_PRECEDENCE = 7;
    
@@ -64,6 +66,7 @@ public final class Operator
    
    /**
     * If an operator with the given image already exists, the precedence is ignored.
+    * This is safe to call from multiple threads.
     * @param image
     * @param precedence
     * @return
@@ -78,12 +81,20 @@ public final class Operator
       Operator result = operators.get(image);
       if (result == null)
       {
-         result = new Operator(image, precedence);
-         operators.put(image, result);
+         result = operators.computeIfAbsent(image,
+               key -> new Operator(key, precedence, count.getAndIncrement()));
       }
       return result;
    }
    
+   /**
+    * @return The number of operators that exist, all of whose ids are less than it.
+    */
+   public static int getCount()
+   {
+      return count.get();
+   }
+   
    public static boolean isOperatorImage(String image)
    {
       if (image == null || image.equals("="))
@@ -112,10 +123,17 @@ public final class Operator
     */
    public final int precedence;
    
-   private Operator(String image, int precedence)
+   /**
+    * The index of this operator in the order operators were created, so that tables can be
+    * indexed by operator.
+    */
+   public final int id;
+   
+   private Operator(String image, int precedence, int id)
    {
       this.image = image;
       this.precedence = precedence;
+      this.id = id;
    }
    
    @Override
@@ -23,24 +23,99 @@
  */
 package io.ylf.laye.symbol;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 import io.ylf.laye.struct.Identifier;
 import net.fudev.faxlib.collections.List;
 
 /**
  * Represents any code block in Laye, even local scopes.
  * 
+ * The symbols of each scope are kept in an open addressed table keyed by identifier. Each
+ * scope also remembers what names resolved to from it, including names that weren't found.
+ * Remembered results are checked against the version of their name, which changes whenever a
+ * symbol with that name is added anywhere in the tree of scopes, so lookups are never stale.
+ * Since a lookup that reaches a parent scope uses the parent's remembered results too, names
+ * resolve in constant time no matter how deeply scopes are nested.
+ * 
+ * Scopes are not thread safe, a tree of scopes should only be used by one thread at a time.
+ * 
  * @author Sekai Kyoretsuna
  */
 public class LexicalScope
 {
+   /**
+    * Versions of names, shared by all scopes of a tree.
+    */
+   private static final class NameVersions
+   {
+      int generation = 0;
+      int[] versions = new int[64];
+      
+      int get(Identifier name)
+      {
+         return name.id < versions.length ? versions[name.id] : 0;
+      }
+      
+      void update(Identifier name)
+      {
+         if (name.id >= versions.length)
+         {
+            versions = Arrays.copyOf(versions,
+                  Math.max(versions.length * 2, Identifier.getIdLimit()));
+         }
+         versions[name.id] = ++generation;
+      }
+   }
+   
+   private static final int INITIAL_CAPACITY = 8;
+   
+   private static int slot(Identifier name, int mask)
+   {
+      final int hash = name.id * 0x9E3779B9;
+      return (hash ^ (hash >>> 16)) & mask;
+   }
+   
    public final LexicalScope parent;
    private final List<LexicalScope> children = new List<LexicalScope>();
+   private final Iterable<LexicalScope> childrenView = () -> new Iterator<LexicalScope>()
+   {
+      private int index = 0;
+      
+      @Override
+      public boolean hasNext()
+      {
+         return index < children.size();
+      }
+      
+      @Override
+      public LexicalScope next()
+      {
+         if (index >= children.size())
+         {
+            throw new NoSuchElementException();
+         }
+         return children.get(index++);
+      }
+   };
+   
+   private final NameVersions nameVersions;
+   
+   private Symbol[] symbols = null;
+   private int symbolCount = 0;
    
-   private final List<Symbol> symbols = new List<Symbol>();
+   // Remembered lookups. A null symbol with a name means the name wasn't found.
+   private Identifier[] resolvedNames = null;
+   private Symbol[] resolvedSymbols = null;
+   private int[] resolvedGenerations = null;
+   private int resolvedCount = 0;
    
    public LexicalScope(LexicalScope parent)
    {
       this.parent = parent;
+      this.nameVersions = parent == null ? new NameVersions() : parent.nameVersions;
    }
    
    /**
@@ -54,32 +129,214 @@ public class LexicalScope
    }
    
    /**
-    * @return A copy of the children list.
+    * @return A read only view of the children of this scope, which doesn't copy them.
     */
-   public List<LexicalScope> getChildren()
+   public Iterable<LexicalScope> getChildren()
    {
-      return new List<LexicalScope>(children);
+      return childrenView;
    }
    
-   public void addSymbol(Symbol.Type type, Identifier name, int index)
+   public int getChildCount()
    {
-      symbols.append(new Symbol(type, name, index));
+      return children.size();
    }
    
+   public LexicalScope getChild(int index)
+   {
+      return children.get(index);
+   }
+   
+   /**
+    * Defines a symbol in this scope.
+    * @param type
+    * @param name
+    * @param index
+    * @return <code>false</code> if this scope already has a symbol with the given name, in
+    *         which case that symbol is kept.
+    */
+   public boolean addSymbol(Symbol.Type type, Identifier name, int index)
+   {
+      return addSymbol(new Symbol(type, name, index));
+   }
+   
+   /**
+    * Defines a symbol in this scope.
+    * @param newSymbol
+    * @return <code>false</code> if this scope already has a symbol with the same name, in
+    *         which case that symbol is kept.
+    */
+   public boolean addSymbol(Symbol newSymbol)
+   {
+      final Identifier name = newSymbol.name;
+      if (symbols == null)
+      {
+         symbols = new Symbol[INITIAL_CAPACITY];
+      }
+      final int mask = symbols.length - 1;
+      int slot = slot(name, mask);
+      Symbol symbol;
+      while ((symbol = symbols[slot]) != null)
+      {
+         if (symbol.name == name)
+         {
+            return false;
+         }
+         slot = (slot + 1) & mask;
+      }
+      symbols[slot] = newSymbol;
+      if (++symbolCount * 2 > symbols.length)
+      {
+         symbols = rehash(symbols);
+      }
+      nameVersions.update(name);
+      return true;
+   }
+   
+   private static Symbol[] rehash(Symbol[] symbols)
+   {
+      final Symbol[] result = new Symbol[symbols.length * 2];
+      final int mask = result.length - 1;
+      for (final Symbol symbol : symbols)
+      {
+         if (symbol != null)
+         {
+            int slot = slot(symbol.name, mask);
+            while (result[slot] != null)
+            {
+               slot = (slot + 1) & mask;
+            }
+            result[slot] = symbol;
+         }
+      }
+      return result;
+   }
+   
+   /**
+    * @param name
+    * @return The symbol with the given name defined in this scope only, or <code>null</code>.
+    */
+   public Symbol getLocalSymbol(Identifier name)
+   {
+      if (symbols == null)
+      {
+         return null;
+      }
+      final int mask = symbols.length - 1;
+      Symbol symbol;
+      for (int slot = slot(name, mask); (symbol = symbols[slot]) != null;
+            slot = (slot + 1) & mask)
+      {
+         if (symbol.name == name)
+         {
+            return symbol;
+         }
+      }
+      return null;
+   }
+   
+   /**
+    * @param name
+    * @return The symbol the given name refers to in this scope, which is the one defined in
+    *         the closest scope from this one up, or <code>null</code> if there is none.
+    */
    public Symbol getSymbol(Identifier name)
    {
+      final int version = nameVersions.get(name);
+      
       LexicalScope scope = this;
+      Symbol result = null;
       while (scope != null)
       {
-         for (Symbol symbol : symbols)
+         result = scope.getLocalSymbol(name);
+         if (result != null)
+         {
+            break;
+         }
+         final int slot = scope.findResolved(name);
+         if (slot >= 0 && scope.resolvedGenerations[slot] >= version)
+         {
+            result = scope.resolvedSymbols[slot];
+            break;
+         }
+         scope = scope.parent;
+      }
+      
+      if (scope != this)
+      {
+         remember(name, result);
+      }
+      return result;
+   }
+   
+   private int findResolved(Identifier name)
+   {
+      if (resolvedNames == null)
+      {
+         return -1;
+      }
+      final int mask = resolvedNames.length - 1;
+      Identifier resolvedName;
+      for (int slot = slot(name, mask); (resolvedName = resolvedNames[slot]) != null;
+            slot = (slot + 1) & mask)
+      {
+         if (resolvedName == name)
+         {
+            return slot;
+         }
+      }
+      return -1;
+   }
+   
+   private void remember(Identifier name, Symbol symbol)
+   {
+      if (resolvedNames == null)
+      {
+         resolvedNames = new Identifier[INITIAL_CAPACITY];
+         resolvedSymbols = new Symbol[INITIAL_CAPACITY];
+         resolvedGenerations = new int[INITIAL_CAPACITY];
+      }
+      int slot = findResolved(name);
+      if (slot < 0)
+      {
+         if ((resolvedCount + 1) * 2 > resolvedNames.length)
+         {
+            growResolved();
+         }
+         final int mask = resolvedNames.length - 1;
+         slot = slot(name, mask);
+         while (resolvedNames[slot] != null)
          {
-            if (symbol.name == name)
+            slot = (slot + 1) & mask;
+         }
+         resolvedNames[slot] = name;
+         resolvedCount++;
+      }
+      resolvedSymbols[slot] = symbol;
+      resolvedGenerations[slot] = nameVersions.generation;
+   }
+   
+   private void growResolved()
+   {
+      final Identifier[] oldNames = resolvedNames;
+      final Symbol[] oldSymbols = resolvedSymbols;
+      final int[] oldGenerations = resolvedGenerations;
+      resolvedNames = new Identifier[oldNames.length * 2];
+      resolvedSymbols = new Symbol[oldNames.length * 2];
+      resolvedGenerations = new int[oldNames.length * 2];
+      final int mask = resolvedNames.length - 1;
+      for (int i = 0; i < oldNames.length; i++)
+      {
+         if (oldNames[i] != null)
+         {
+            int slot = slot(oldNames[i], mask);
+            while (resolvedNames[slot] != null)
             {
-               return symbol;
+               slot = (slot + 1) & mask;
             }
+            resolvedNames[slot] = oldNames[i];
+            resolvedSymbols[slot] = oldSymbols[i];
+            resolvedGenerations[slot] = oldGenerations[i];
          }
-         scope = scope.parent;
       }
-      return null;
    }
 }
@@ -47,11 +47,66 @@ public class Symbol
     */
    public final int index;
    
+   /**
+    * The depth of the scope this symbol is defined in, where the outermost scope is 0.
+    */
+   public final int depth;
+   
+   // Found while names are resolved, see SymbolTable.
+   private boolean captured = false;
+   private boolean assigned = false;
+   
    public Symbol(Type type, Identifier name, int index)
    {
-      assert(type != null && name != null && index >= 0);
+      this(type, name, index, 0);
+   }
+   
+   public Symbol(Type type, Identifier name, int index, int depth)
+   {
+      assert(type != null && name != null && index >= 0 && depth >= 0);
       this.type = type;
       this.name = name;
       this.index = index;
+      this.depth = depth;
+   }
+   
+   void markCaptured()
+   {
+      captured = true;
+   }
+   
+   void markAssigned()
+   {
+      assigned = true;
+   }
+   
+   /**
+    * @return <code>true</code> if this is a local referenced from a function nested in the
+    *         one it's defined in.
+    */
+   public boolean isCaptured()
+   {
+      return captured;
+   }
+   
+   /**
+    * @return <code>true</code> if this is assigned to anywhere other than its definition.
+    */
+   public boolean isAssigned()
+   {
+      return assigned;
+   }
+   
+   /**
+    * Locals that are captured and assigned to have to live in a heap cell shared by their
+    * frame and the closures capturing them. Everything else lives in a frame slot, and closures
+    * take a copy of its value when they're created.
+    * 
+    * This is only final once the function that defines the local has ended in the symbol table.
+    * @return
+    */
+   public boolean needsCell()
+   {
+      return captured && assigned;
    }
 }
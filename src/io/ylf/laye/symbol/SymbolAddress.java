@@ -0,0 +1,127 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.symbol;
+
+/**
+ * Where the value of a symbol is found at run time.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class SymbolAddress
+{
+   public static enum Kind
+   {
+      /**
+       * A slot in the frame of the running function.
+       */
+      LOCAL,
+      /**
+       * An upvalue of the running closure.
+       */
+      UPVALUE,
+      /**
+       * A global slot of the module.
+       */
+      GLOBAL,
+   }
+   
+   public static SymbolAddress local(Symbol symbol, int depth, int slot)
+   {
+      return new SymbolAddress(symbol, Kind.LOCAL, depth, slot);
+   }
+   
+   public static SymbolAddress upvalue(Symbol symbol, int index)
+   {
+      return new SymbolAddress(symbol, Kind.UPVALUE, 0, index);
+   }
+   
+   public static SymbolAddress global(Symbol symbol, int slot)
+   {
+      return new SymbolAddress(symbol, Kind.GLOBAL, 0, slot);
+   }
+   
+   /**
+    * The symbol found at this address. For locals and upvalues, this tells whether the value
+    * is held in a cell.
+    */
+   public final Symbol symbol;
+   
+   public final Kind kind;
+   
+   /**
+    * For locals, the depth of the scope the local is defined in, counted from the scope of
+    * its function. Zero for anything else.
+    */
+   public final int depth;
+   
+   /**
+    * The frame slot, upvalue index or global slot.
+    */
+   public final int index;
+   
+   private SymbolAddress(Symbol symbol, Kind kind, int depth, int index)
+   {
+      assert(symbol != null && kind != null && depth >= 0 && index >= 0);
+      this.symbol = symbol;
+      this.kind = kind;
+      this.depth = depth;
+      this.index = index;
+   }
+   
+   @Override
+   public String toString()
+   {
+      if (kind == Kind.LOCAL)
+      {
+         return "LOCAL(" + depth + ", " + index + ")";
+      }
+      return kind + "(" + index + ")";
+   }
+
+   @Override
+   public int hashCode()
+   {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + depth;
+      result = prime * result + index;
+      result = prime * result + kind.hashCode();
+      return result;
+   }
+
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+      {
+         return true;
+      }
+      if (!(obj instanceof SymbolAddress))
+      {
+         return false;
+      }
+      SymbolAddress other = (SymbolAddress) obj;
+      return kind == other.kind && depth == other.depth && index == other.index;
+   }
+}
@@ -23,12 +23,380 @@
  */
 package io.ylf.laye.symbol;
 
+import java.util.IdentityHashMap;
+
+import io.ylf.laye.struct.Identifier;
+import net.fudev.faxlib.collections.List;
+
 /**
+ * Resolves names to addresses while a module is compiled, so that nothing is looked up by
+ * name at run time.
+ * 
+ * The compiler tells the table where functions and block scopes begin and end and where names
+ * are defined, in the order they appear in the source, and resolves every reference as it
+ * reaches it:
+ * <ul>
+ * <li>Names defined in the running function are locals, at a slot in its frame. Slots of a
+ * block scope are reused once it ends.</li>
+ * <li>Locals of enclosing functions are upvalues. The first reference to one from a function
+ * adds it to the upvalues of that function and of every function between it and the one that
+ * defines the local.</li>
+ * <li>Anything defined outside of all functions is a global, at a slot of the module. A name
+ * that isn't defined at all becomes a global too, so that globals can be referenced before
+ * they are defined. Once the module is resolved, {@link #isGlobalDefined(int)} tells which of
+ * them never were.</li>
+ * </ul>
+ * 
+ * Resolving also finds which locals are captured by nested functions and which are assigned
+ * after their definition. Only locals that are both need a heap cell (see
+ * {@link Symbol#needsCell()}), all others stay in frame slots and are copied into the closures
+ * that capture them. Since a local can be assigned after a closure captured it, code should
+ * only be generated once everything has been resolved.
+ * 
  * @author Sekai Kyoretsuna
  */
 public class SymbolTable
 {
+   /**
+    * Where a closure takes one of its upvalues from when it's created.
+    */
+   public static final class Upvalue
+   {
+      /**
+       * The captured local.
+       */
+      public final Symbol symbol;
+      public final Identifier name;
+      /**
+       * If <code>true</code>, the index is a frame slot of the enclosing function, otherwise
+       * it's one of the enclosing function's upvalues.
+       */
+      public final boolean isLocal;
+      public final int index;
+      
+      Upvalue(Symbol symbol, boolean isLocal, int index)
+      {
+         this.symbol = symbol;
+         this.name = symbol.name;
+         this.isLocal = isLocal;
+         this.index = index;
+      }
+      
+      /**
+       * @return <code>true</code> if the closure holds a copy of the local's value, rather than
+       *         the cell holding it. This is only final once the function defining the local
+       *         has ended.
+       */
+      public boolean isByValue()
+      {
+         return !symbol.needsCell();
+      }
+   }
+   
+   /**
+    * What the table worked out about a function once it ends.
+    */
+   public static final class FunctionLayout
+   {
+      /**
+       * The number of frame slots the function needs.
+       */
+      public final int frameSize;
+      private final Upvalue[] upvalues;
+      
+      FunctionLayout(int frameSize, Upvalue[] upvalues)
+      {
+         this.frameSize = frameSize;
+         this.upvalues = upvalues;
+      }
+      
+      public int getUpvalueCount()
+      {
+         return upvalues.length;
+      }
+      
+      public Upvalue getUpvalue(int index)
+      {
+         return upvalues[index];
+      }
+   }
+   
+   private static final class Function
+   {
+      final Function enclosing;
+      /**
+       * The depth of the function's own scope, where its parameters are defined.
+       */
+      final int scopeDepth;
+      
+      int slotCount = 0;
+      int frameSize = 0;
+      // The slot count when each open block scope began.
+      int[] blockSlotCounts = new int[8];
+      int blockCount = 0;
+      
+      final List<Upvalue> upvalues = new List<Upvalue>();
+      final IdentityHashMap<Symbol, Integer> upvalueIndices = new IdentityHashMap<>();
+      
+      Function(Function enclosing, int scopeDepth)
+      {
+         this.enclosing = enclosing;
+         this.scopeDepth = scopeDepth;
+      }
+   }
+   
+   private final LexicalScope globalScope = new LexicalScope(null);
+   private final List<Identifier> globals = new List<Identifier>();
+   // Whether each global is defined or assigned anywhere, rather than only read.
+   private boolean[] definedGlobals = new boolean[16];
+   
+   private LexicalScope scope = globalScope;
+   private int scopeDepth = 0;
+   private Function function = null;
+   
    public SymbolTable()
    {
    }
+   
+   /**
+    * @return The outermost scope, which holds the globals.
+    */
+   public LexicalScope getGlobalScope()
+   {
+      return globalScope;
+   }
+   
+   public int getGlobalCount()
+   {
+      return globals.size();
+   }
+   
+   public Identifier getGlobalName(int slot)
+   {
+      return globals.get(slot);
+   }
+   
+   /**
+    * @param slot
+    * @return <code>true</code> if the global is defined or assigned to anywhere resolved so
+    *         far, <code>false</code> if it's only read.
+    */
+   public boolean isGlobalDefined(int slot)
+   {
+      assert(slot >= 0 && slot < globals.size());
+      return definedGlobals[slot];
+   }
+   
+   private void pushScope()
+   {
+      final LexicalScope child = new LexicalScope(scope);
+      scope.addChildScope(child);
+      scope = child;
+      scopeDepth++;
+   }
+   
+   private void popScope()
+   {
+      scope = scope.parent;
+      scopeDepth--;
+   }
+   
+   /**
+    * Begins a block scope in the current function, or outside of all functions.
+    */
+   public void beginScope()
+   {
+      pushScope();
+      if (function != null)
+      {
+         final Function function = this.function;
+         if (function.blockCount == function.blockSlotCounts.length)
+         {
+            final int[] counts = new int[function.blockCount * 2];
+            System.arraycopy(function.blockSlotCounts, 0, counts, 0, function.blockCount);
+            function.blockSlotCounts = counts;
+         }
+         function.blockSlotCounts[function.blockCount++] = function.slotCount;
+      }
+   }
+   
+   public void endScope()
+   {
+      if (scope == globalScope || (function != null && scopeDepth == function.scopeDepth))
+      {
+         throw new IllegalStateException("There is no block scope to end.");
+      }
+      popScope();
+      if (function != null)
+      {
+         function.slotCount = function.blockSlotCounts[--function.blockCount];
+      }
+   }
+   
+   /**
+    * Begins a function inside of the current scope. Its parameters should be defined right
+    * after this.
+    */
+   public void beginFunction()
+   {
+      pushScope();
+      function = new Function(function, scopeDepth);
+   }
+   
+   public FunctionLayout endFunction()
+   {
+      if (function == null || scopeDepth != function.scopeDepth)
+      {
+         throw new IllegalStateException("There is no function to end, or it has open scopes.");
+      }
+      final Upvalue[] upvalues = new Upvalue[function.upvalues.size()];
+      for (int i = 0; i < upvalues.length; i++)
+      {
+         upvalues[i] = function.upvalues.get(i);
+      }
+      final FunctionLayout result = new FunctionLayout(function.frameSize, upvalues);
+      function = function.enclosing;
+      popScope();
+      return result;
+   }
+   
+   /**
+    * Defines a name in the current scope. Inside of a function this is a new local, outside
+    * of all functions it's a global.
+    * @param name
+    * @return The address of the name, which is the existing one if it was already defined in
+    *         the current scope.
+    */
+   public SymbolAddress define(Identifier name)
+   {
+      if (function == null)
+      {
+         return defineGlobal(name);
+      }
+      final Symbol existing = scope.getLocalSymbol(name);
+      if (existing != null)
+      {
+         return SymbolAddress.local(existing, scopeDepth - function.scopeDepth, existing.index);
+      }
+      final int slot = function.slotCount++;
+      function.frameSize = Math.max(function.frameSize, function.slotCount);
+      final Symbol symbol = new Symbol(Symbol.Type.LOCAL, name, slot, scopeDepth);
+      scope.addSymbol(symbol);
+      return SymbolAddress.local(symbol, scopeDepth - function.scopeDepth, slot);
+   }
+   
+   /**
+    * Defines a global, no matter what the current scope is.
+    * @param name
+    * @return The address of the global, which is the existing one if it was already defined.
+    */
+   public SymbolAddress defineGlobal(Identifier name)
+   {
+      final SymbolAddress result = getGlobal(name);
+      definedGlobals[result.index] = true;
+      return result;
+   }
+   
+   private SymbolAddress getGlobal(Identifier name)
+   {
+      final Symbol existing = globalScope.getLocalSymbol(name);
+      if (existing != null)
+      {
+         return SymbolAddress.global(existing, existing.index);
+      }
+      final int slot = globals.size();
+      globals.append(name);
+      if (slot == definedGlobals.length)
+      {
+         final boolean[] defined = new boolean[slot * 2];
+         System.arraycopy(definedGlobals, 0, defined, 0, slot);
+         definedGlobals = defined;
+      }
+      final Symbol symbol = new Symbol(Symbol.Type.GLOBAL, name, slot, 0);
+      globalScope.addSymbol(symbol);
+      return SymbolAddress.global(symbol, slot);
+   }
+   
+   /**
+    * Resolves a reference to a name from the current scope which reads it.
+    * @param name
+    * @return
+    */
+   public SymbolAddress resolve(Identifier name)
+   {
+      return resolve(name, false);
+   }
+   
+   /**
+    * Resolves a reference to a name from the current scope which assigns to it. Locals
+    * assigned to this way are held in cells if they're captured.
+    * @param name
+    * @return
+    */
+   public SymbolAddress resolveAssignment(Identifier name)
+   {
+      return resolve(name, true);
+   }
+   
+   private SymbolAddress resolve(Identifier name, boolean isAssignment)
+   {
+      final Symbol symbol = scope.getSymbol(name);
+      if (symbol == null)
+      {
+         return isAssignment ? defineGlobal(name) : getGlobal(name);
+      }
+      switch (symbol.type)
+      {
+         case GLOBAL:
+            if (isAssignment)
+            {
+               definedGlobals[symbol.index] = true;
+            }
+            return SymbolAddress.global(symbol, symbol.index);
+         case LOCAL:
+         {
+            if (isAssignment)
+            {
+               symbol.markAssigned();
+            }
+            // Only functions define locals, so there is a function here.
+            if (symbol.depth >= function.scopeDepth)
+            {
+               return SymbolAddress.local(symbol, symbol.depth - function.scopeDepth,
+                     symbol.index);
+            }
+            symbol.markCaptured();
+            return SymbolAddress.upvalue(symbol, capture(function, symbol));
+         }
+         default:
+            throw new IllegalStateException(symbol.type + " symbols have no address.");
+      }
+   }
+   
+   /**
+    * @return The index of the upvalue of the given function which holds the given local of an
+    *         enclosing function.
+    */
+   private static int capture(Function function, Symbol symbol)
+   {
+      final Integer existing = function.upvalueIndices.get(symbol);
+      if (existing != null)
+      {
+         return existing;
+      }
+      final Function enclosing = function.enclosing;
+      final Upvalue upvalue;
+      if (symbol.depth >= enclosing.scopeDepth)
+      {
+         upvalue = new Upvalue(symbol, true, symbol.index);
+      }
+      else
+      {
+         upvalue = new Upvalue(symbol, false, capture(enclosing, symbol));
+      }
+      final int index = function.upvalues.size();
+      function.upvalues.append(upvalue);
+      function.upvalueIndices.put(symbol, index);
+      return index;
+   }
 }
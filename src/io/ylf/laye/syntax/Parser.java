@@ -0,0 +1,788 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.syntax;
+
+import static io.ylf.laye.LogMessageID.*;
+
+import io.ylf.laye.lexical.Location;
+import io.ylf.laye.lexical.Token;
+import io.ylf.laye.lexical.TokenCursor;
+import io.ylf.laye.log.DetailLogger;
+import io.ylf.laye.struct.Identifier;
+import io.ylf.laye.struct.Keyword;
+import io.ylf.laye.struct.Operator;
+
+/**
+ * Parses tokens into a {@link SyntaxTree}.
+ * 
+ * Expressions are parsed by precedence climbing. Infix operators bind by their
+ * {@link Operator#precedence}, so operators defined by users parse like the built in ones, all
+ * of them left associative. The keywords <code>or</code>, <code>xor</code> and
+ * <code>and</code> bind looser than any operator, in that order, and <code>not</code> applies
+ * to everything up to them. Prefix operators, <code>typeof</code>, <code>ref</code> and
+ * <code>deref</code> bind tighter than any infix operator. Calls, indexing and fields bind
+ * tightest.
+ * 
+ * Statements need no separators. A statement ends where the next token can't continue it, and
+ * semicolons may be used between statements anyway. The bodies of functions and statements are
+ * single statements, which may be blocks.
+ * 
+ * <pre>
+ * from Kit import Name, Name
+ * var name = value, name
+ * fn name(parameter, parameter) body
+ * if condition body el body
+ * while condition body
+ * iter name = start to end by step body
+ * each name in collection body
+ * ret value
+ * yield value
+ * break
+ * cont
+ * target = value
+ * </pre>
+ * 
+ * Errors are logged and parsing goes on, leaving {@link SyntaxTree.Kind#ERROR} nodes where
+ * something couldn't be parsed.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class Parser
+{
+   // Binding powers, operators bind with their precedence above these.
+   private static final int OR_POWER = 1;
+   private static final int XOR_POWER = 2;
+   private static final int AND_POWER = 3;
+   private static final int OPERATOR_POWER = 3;
+   /** Only calls, indexing and fields bind tighter than prefix operations. */
+   private static final int PREFIX_POWER = Integer.MAX_VALUE;
+   
+   private final DetailLogger logger;
+   
+   private TokenCursor tokens = null;
+   private SyntaxTree tree = null;
+   /**
+    * The type of the current token, or <code>null</code> at the end. The rest of it is read
+    * from the cursor only when it's needed, and its location only for nodes and errors.
+    */
+   private Token.Type current = null;
+   /** The location of the last token, once the end has been reached. */
+   private Location lastLocation = null;
+   
+   public Parser(DetailLogger logger)
+   {
+      this.logger = logger;
+   }
+   
+   /**
+    * Parses all of the given tokens as a module.
+    * @param tokens
+    * @return
+    */
+   public SyntaxTree parse(TokenCursor tokens)
+   {
+      this.tokens = tokens;
+      this.tree = new SyntaxTree();
+      this.current = tokens.currentType();
+      this.lastLocation = null;
+      
+      final Location location = current == null ? null : getLocation();
+      final int first = parseStatements(false);
+      tree.setRoot(tree.add(SyntaxTree.Kind.MODULE, null, location, first));
+      tree.trimToSize();
+      
+      final SyntaxTree result = tree;
+      this.tokens = null;
+      this.tree = null;
+      return result;
+   }
+   
+   // ===== Tokens
+   
+   private void advance()
+   {
+      if (tokens.peekType(1) == null)
+      {
+         // Whatever is missing at the end of the file is reported at the last token.
+         lastLocation = tokens.currentLocation();
+      }
+      tokens.next();
+      current = tokens.currentType();
+   }
+   
+   private boolean check(Token.Type type)
+   {
+      return current != null && current == type;
+   }
+   
+   private boolean checkKeyword(Keyword keyword)
+   {
+      return current == Token.Type.KEYWORD && tokens.currentData() == keyword;
+   }
+   
+   /**
+    * @return The location of the current token, or of the last one at the end.
+    */
+   private Location getLocation()
+   {
+      return current == null ? lastLocation : tokens.currentLocation();
+   }
+   
+   /**
+    * Reads a token of the given type, or logs an error without reading anything.
+    */
+   private boolean expect(Token.Type type, String description)
+   {
+      if (check(type))
+      {
+         advance();
+         return true;
+      }
+      logger.logErrorf(getLocation(), ERROR_EXPECTED_TOKEN, "Expected %s but found %s.\n",
+            description, current == null ? "the end of the file" :
+                  "'" + tokens.currentData() + "'");
+      return false;
+   }
+   
+   private boolean expectKeyword(Keyword keyword)
+   {
+      if (checkKeyword(keyword))
+      {
+         advance();
+         return true;
+      }
+      return expect(null, "'" + keyword + "'");
+   }
+   
+   /**
+    * @return The identifier read, or <code>null</code> after logging an error.
+    */
+   private Identifier expectIdentifier()
+   {
+      if (check(Token.Type.IDENTIFIER))
+      {
+         final Identifier result = (Identifier) tokens.currentData();
+         advance();
+         return result;
+      }
+      expect(Token.Type.IDENTIFIER, "an identifier");
+      return null;
+   }
+   
+   private int error(String message)
+   {
+      logger.logErrorf(getLocation(), ERROR_UNEXPECTED_TOKEN, "%s\n", message);
+      final Location location = getLocation();
+      if (current != null)
+      {
+         advance();
+      }
+      return tree.add(SyntaxTree.Kind.ERROR, null, location, SyntaxTree.NONE);
+   }
+   
+   // ===== Node construction
+   
+   /**
+    * Reads the current token as a leaf of the given kind.
+    */
+   private int readLeaf(SyntaxTree.Kind kind, Object datum)
+   {
+      final Location location = getLocation();
+      advance();
+      return leaf(kind, datum, location);
+   }
+   
+   private int leaf(SyntaxTree.Kind kind, Object datum, Location location)
+   {
+      return tree.add(kind, datum, location, SyntaxTree.NONE);
+   }
+   
+   private int node(SyntaxTree.Kind kind, Object datum, Location location, int first, int second)
+   {
+      tree.setNextSibling(first, second);
+      return tree.add(kind, datum, location, first);
+   }
+   
+   // ===== Statements
+   
+   /**
+    * Parses statements up to the end of a block, or of the file.
+    * @return The first statement, linked to the rest.
+    */
+   private int parseStatements(boolean inBlock)
+   {
+      int first = SyntaxTree.NONE, last = SyntaxTree.NONE;
+      while (current != null && !(inBlock && current == Token.Type.CLOSE_CURLY_BRACE))
+      {
+         if (current == Token.Type.SEMI_COLON)
+         {
+            advance();
+            continue;
+         }
+         final int statement = parseStatement();
+         if (first == SyntaxTree.NONE)
+         {
+            first = statement;
+         }
+         else
+         {
+            tree.setNextSibling(last, statement);
+         }
+         last = statement;
+      }
+      return first;
+   }
+   
+   private int parseStatement()
+   {
+      switch (current)
+      {
+         case OPEN_CURLY_BRACE:
+            return parseBlock();
+         case KEYWORD:
+         {
+            final Location location;
+            switch ((Keyword) tokens.currentData())
+            {
+               case VAR:
+                  return parseVar();
+               case FN:
+               {
+                  final int function = parseFunction();
+                  if (tree.getData(function) != null)
+                  {
+                     return function;
+                  }
+                  // An anonymous function starts an expression.
+                  return parseExpressionStatement(parseInfix(function, 0));
+               }
+               case IF:
+               {
+                  location = getLocation();
+                  advance();
+                  final int condition = parseExpression(0);
+                  final int body = parseBody();
+                  tree.setNextSibling(condition, body);
+                  if (checkKeyword(Keyword.EL))
+                  {
+                     advance();
+                     tree.setNextSibling(body, parseBody());
+                  }
+                  return tree.add(SyntaxTree.Kind.IF, null, location, condition);
+               }
+               case WHILE:
+               {
+                  location = getLocation();
+                  advance();
+                  final int condition = parseExpression(0);
+                  return node(SyntaxTree.Kind.WHILE, null, location, condition,
+                        parseBody());
+               }
+               case ITER:
+                  return parseIter();
+               case EACH:
+               {
+                  location = getLocation();
+                  advance();
+                  final Identifier name = expectIdentifier();
+                  expectKeyword(Keyword.IN);
+                  final int collection = parseExpression(0);
+                  return node(SyntaxTree.Kind.EACH, name, location, collection,
+                        parseBody());
+               }
+               case RET:
+                  return parseValueStatement(SyntaxTree.Kind.RETURN);
+               case YIELD:
+                  return parseValueStatement(SyntaxTree.Kind.YIELD);
+               case BREAK:
+                  location = getLocation();
+                  advance();
+                  return leaf(SyntaxTree.Kind.BREAK, null, location);
+               case CONT:
+                  location = getLocation();
+                  advance();
+                  return leaf(SyntaxTree.Kind.CONTINUE, null, location);
+               case FROM:
+                  return parseImport();
+               default:
+                  break;
+            }
+         } break;
+         default:
+            break;
+      }
+      return parseExpressionStatement(parseExpression(0));
+   }
+   
+   /**
+    * Parses the body of a function or statement.
+    */
+   private int parseBody()
+   {
+      if (current == null)
+      {
+         return error("Expected a statement but found the end of the file.");
+      }
+      return parseStatement();
+   }
+   
+   private int parseBlock()
+   {
+      final Location location = getLocation();
+      advance();
+      final int first = parseStatements(true);
+      expect(Token.Type.CLOSE_CURLY_BRACE, "'}'");
+      return tree.add(SyntaxTree.Kind.BLOCK, null, location, first);
+   }
+   
+   private int parseVar()
+   {
+      final Location location = getLocation();
+      advance();
+      int first = SyntaxTree.NONE, last = SyntaxTree.NONE;
+      do
+      {
+         if (first != SyntaxTree.NONE)
+         {
+            // Read ','
+            advance();
+         }
+         final Location declarationLocation = getLocation();
+         final Identifier name = expectIdentifier();
+         int value = SyntaxTree.NONE;
+         if (check(Token.Type.ASSIGN))
+         {
+            advance();
+            value = parseExpression(0);
+         }
+         final int declaration =
+               tree.add(SyntaxTree.Kind.DECLARATION, name, declarationLocation, value);
+         if (first == SyntaxTree.NONE)
+         {
+            first = declaration;
+         }
+         else
+         {
+            tree.setNextSibling(last, declaration);
+         }
+         last = declaration;
+      }
+      while (check(Token.Type.COMMA));
+      return tree.add(SyntaxTree.Kind.VAR, null, location, first);
+   }
+   
+   private int parseFunction()
+   {
+      final Location location = getLocation();
+      // Read 'fn'
+      advance();
+      Identifier name = null;
+      if (check(Token.Type.IDENTIFIER))
+      {
+         name = (Identifier) tokens.currentData();
+         advance();
+      }
+      
+      final Location parametersLocation = getLocation();
+      int first = SyntaxTree.NONE, last = SyntaxTree.NONE;
+      if (expect(Token.Type.OPEN_BRACE, "'('"))
+      {
+         while (check(Token.Type.IDENTIFIER))
+         {
+            final int parameter =
+                  leaf(SyntaxTree.Kind.PARAMETER, tokens.currentData(), getLocation());
+            advance();
+            if (first == SyntaxTree.NONE)
+            {
+               first = parameter;
+            }
+            else
+            {
+               tree.setNextSibling(last, parameter);
+            }
+            last = parameter;
+            if (!check(Token.Type.COMMA))
+            {
+               break;
+            }
+            advance();
+         }
+         expect(Token.Type.CLOSE_BRACE, "')'");
+      }
+      final int parameters =
+            tree.add(SyntaxTree.Kind.PARAMETERS, null, parametersLocation, first);
+      return node(SyntaxTree.Kind.FUNCTION, name, location, parameters,
+            parseBody());
+   }
+   
+   private int parseIter()
+   {
+      final Location location = getLocation();
+      advance();
+      final Identifier name = expectIdentifier();
+      expect(Token.Type.ASSIGN, "'='");
+      final int start = parseExpression(0);
+      expectKeyword(Keyword.TO);
+      final int end = parseExpression(0);
+      tree.setNextSibling(start, end);
+      int last = end;
+      if (checkKeyword(Keyword.BY))
+      {
+         advance();
+         final int step = parseExpression(0);
+         tree.setNextSibling(last, step);
+         last = step;
+      }
+      tree.setNextSibling(last, parseBody());
+      return tree.add(SyntaxTree.Kind.ITER, name, location, start);
+   }
+   
+   private int parseValueStatement(SyntaxTree.Kind kind)
+   {
+      final Location location = getLocation();
+      advance();
+      final int value = canStartExpression() ? parseExpression(0) : SyntaxTree.NONE;
+      return tree.add(kind, null, location, value);
+   }
+   
+   private int parseImport()
+   {
+      final Location location = getLocation();
+      advance();
+      final Identifier kit = expectIdentifier();
+      expectKeyword(Keyword.IMPORT);
+      int first = SyntaxTree.NONE, last = SyntaxTree.NONE;
+      do
+      {
+         if (first != SyntaxTree.NONE)
+         {
+            // Read ','
+            advance();
+         }
+         final Location nameLocation = getLocation();
+         final Identifier name = expectIdentifier();
+         if (name == null)
+         {
+            break;
+         }
+         final int node = leaf(SyntaxTree.Kind.NAME, name, nameLocation);
+         if (first == SyntaxTree.NONE)
+         {
+            first = node;
+         }
+         else
+         {
+            tree.setNextSibling(last, node);
+         }
+         last = node;
+      }
+      while (check(Token.Type.COMMA));
+      return tree.add(SyntaxTree.Kind.IMPORT, kit, location, first);
+   }
+   
+   /**
+    * Finishes a statement starting with the given expression, which may be the target of an
+    * assignment.
+    */
+   private int parseExpressionStatement(int expression)
+   {
+      if (!check(Token.Type.ASSIGN))
+      {
+         return expression;
+      }
+      final Location location = getLocation();
+      switch (tree.getKind(expression))
+      {
+         case NAME:
+         case INDEX:
+         case FIELD:
+         case ERROR:
+            break;
+         default:
+            logger.logError(location, ERROR_INVALID_ASSIGNMENT,
+                  "Only names, indices and fields can be assigned to.");
+            break;
+      }
+      advance();
+      return node(SyntaxTree.Kind.ASSIGN, null, location, expression, parseExpression(0));
+   }
+   
+   // ===== Expressions
+   
+   private boolean canStartExpression()
+   {
+      if (current == null)
+      {
+         return false;
+      }
+      switch (current)
+      {
+         case IDENTIFIER:
+         case OPERATOR:
+         case INT_LITERAL:
+         case FLOAT_LITERAL:
+         case STRING_LITERAL:
+         case WILDCARD:
+         case OPEN_BRACE:
+         case OPEN_SQUARE_BRACE:
+            return true;
+         case KEYWORD:
+         {
+            switch ((Keyword) tokens.currentData())
+            {
+               case TRUE:
+               case FALSE:
+               case NULL:
+               case THIS:
+               case SELF:
+               case BASE:
+               case NOT:
+               case TYPEOF:
+               case REF:
+               case DEREF:
+               case FN:
+                  return true;
+               default:
+                  return false;
+            }
+         }
+         default:
+            return false;
+      }
+   }
+   
+   /**
+    * Parses an expression made of operations which bind tighter than the given power.
+    */
+   private int parseExpression(int minPower)
+   {
+      return parseInfix(parsePrefix(), minPower);
+   }
+   
+   private int parsePrefix()
+   {
+      if (current == null)
+      {
+         return error("Expected an expression but found the end of the file.");
+      }
+      final Object data = tokens.currentData();
+      switch (current)
+      {
+         case IDENTIFIER:
+            return readLeaf(SyntaxTree.Kind.NAME, data);
+         case INT_LITERAL:
+            return readLeaf(SyntaxTree.Kind.INT_LITERAL, data);
+         case FLOAT_LITERAL:
+            return readLeaf(SyntaxTree.Kind.FLOAT_LITERAL, data);
+         case STRING_LITERAL:
+            return readLeaf(SyntaxTree.Kind.STRING_LITERAL, data);
+         case WILDCARD:
+            return readLeaf(SyntaxTree.Kind.WILDCARD, null);
+         case OPEN_BRACE:
+         {
+            advance();
+            final int result = parseExpression(0);
+            expect(Token.Type.CLOSE_BRACE, "')'");
+            return result;
+         }
+         case OPEN_SQUARE_BRACE:
+         {
+            final Location location = getLocation();
+            advance();
+            final int first = parseArguments(Token.Type.CLOSE_SQUARE_BRACE, "']'");
+            return tree.add(SyntaxTree.Kind.LIST, null, location, first);
+         }
+         case OPERATOR:
+         {
+            final Location location = getLocation();
+            advance();
+            return tree.add(SyntaxTree.Kind.PREFIX, data, location,
+                  parseExpression(PREFIX_POWER));
+         }
+         case KEYWORD:
+         {
+            switch ((Keyword) data)
+            {
+               case TRUE:
+                  return readLeaf(SyntaxTree.Kind.TRUE, null);
+               case FALSE:
+                  return readLeaf(SyntaxTree.Kind.FALSE, null);
+               case NULL:
+                  return readLeaf(SyntaxTree.Kind.NULL, null);
+               case THIS:
+                  return readLeaf(SyntaxTree.Kind.THIS, null);
+               case SELF:
+                  return readLeaf(SyntaxTree.Kind.SELF, null);
+               case BASE:
+                  return readLeaf(SyntaxTree.Kind.BASE, null);
+               case NOT:
+               {
+                  final Location location = getLocation();
+                  advance();
+                  return tree.add(SyntaxTree.Kind.NOT, null, location,
+                        parseExpression(AND_POWER));
+               }
+               case TYPEOF:
+               {
+                  final Location location = getLocation();
+                  advance();
+                  return tree.add(SyntaxTree.Kind.TYPEOF, null, location,
+                        parseExpression(PREFIX_POWER));
+               }
+               case REF:
+               {
+                  final Location location = getLocation();
+                  advance();
+                  return tree.add(SyntaxTree.Kind.REF, null, location,
+                        parseExpression(PREFIX_POWER));
+               }
+               case DEREF:
+               {
+                  final Location location = getLocation();
+                  advance();
+                  return tree.add(SyntaxTree.Kind.DEREF, null, location,
+                        parseExpression(PREFIX_POWER));
+               }
+               case FN:
+                  return parseFunction();
+               default:
+                  break;
+            }
+         } break;
+         default:
+            break;
+      }
+      return error("Unexpected '" + data + "', expected an expression.");
+   }
+   
+   /**
+    * Parses the operations following the given operand which bind tighter than the given
+    * power. Operations of equal power are gathered here, from left to right.
+    */
+   private int parseInfix(int left, int minPower)
+   {
+      while (current != null)
+      {
+         switch (current)
+         {
+            case OPEN_BRACE:
+            {
+               final Location location = getLocation();
+               advance();
+               final int arguments = parseArguments(Token.Type.CLOSE_BRACE, "')'");
+               tree.setNextSibling(left, arguments);
+               left = tree.add(SyntaxTree.Kind.CALL, null, location, left);
+            } continue;
+            case OPEN_SQUARE_BRACE:
+            {
+               final Location location = getLocation();
+               advance();
+               final int index = parseExpression(0);
+               expect(Token.Type.CLOSE_SQUARE_BRACE, "']'");
+               left = node(SyntaxTree.Kind.INDEX, null, location, left, index);
+            } continue;
+            case DOT:
+            {
+               final Location location = getLocation();
+               advance();
+               left = tree.add(SyntaxTree.Kind.FIELD, expectIdentifier(), location, left);
+            } continue;
+            case OPERATOR:
+            {
+               final Operator operator = (Operator) tokens.currentData();
+               final int power = OPERATOR_POWER + operator.precedence;
+               if (power <= minPower)
+               {
+                  return left;
+               }
+               final Location location = getLocation();
+               advance();
+               left = node(SyntaxTree.Kind.INFIX, operator, location, left,
+                     parseExpression(power));
+            } continue;
+            case KEYWORD:
+            {
+               final SyntaxTree.Kind kind;
+               final int power;
+               switch ((Keyword) tokens.currentData())
+               {
+                  case AND:
+                     kind = SyntaxTree.Kind.AND;
+                     power = AND_POWER;
+                     break;
+                  case OR:
+                     kind = SyntaxTree.Kind.OR;
+                     power = OR_POWER;
+                     break;
+                  case XOR:
+                     kind = SyntaxTree.Kind.XOR;
+                     power = XOR_POWER;
+                     break;
+                  default:
+                     return left;
+               }
+               if (power <= minPower)
+               {
+                  return left;
+               }
+               final Location location = getLocation();
+               advance();
+               left = node(kind, null, location, left, parseExpression(power));
+            } continue;
+            default:
+               return left;
+         }
+      }
+      return left;
+   }
+   
+   /**
+    * Parses expressions separated by commas, up to and including the given closing token.
+    * @return The first expression, linked to the rest.
+    */
+   private int parseArguments(Token.Type close, String description)
+   {
+      int first = SyntaxTree.NONE, last = SyntaxTree.NONE;
+      while (current != null && current != close)
+      {
+         final int argument = parseExpression(0);
+         if (first == SyntaxTree.NONE)
+         {
+            first = argument;
+         }
+         else
+         {
+            tree.setNextSibling(last, argument);
+         }
+         last = argument;
+         if (!check(Token.Type.COMMA))
+         {
+            break;
+         }
+         advance();
+      }
+      expect(close, description);
+      return first;
+   }
+}
@@ -0,0 +1,296 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.syntax;
+
+import java.util.Arrays;
+
+import io.ylf.laye.lexical.Location;
+
+/**
+ * A syntax tree stored as parallel arrays instead of as node objects.
+ * 
+ * Nodes are ints indexing the arrays. Each node has a kind, an optional datum, a location, its
+ * first child and its next sibling, so walking the children of a node is following
+ * {@link #getNextSibling(int)} from {@link #getFirstChild(int)} until {@link #NONE}. Data are
+ * the objects tokens hold: identifiers, operators and literal constants.
+ * 
+ * Children of each kind of node are listed with the kind. Optional children are told apart by
+ * how many children there are.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class SyntaxTree
+{
+   public static enum Kind
+   {
+      /** Statements. */
+      MODULE,
+      /** Statements. */
+      BLOCK,
+      /** Declarations. */
+      VAR,
+      /** The declared identifier as data, and optionally the initial value. */
+      DECLARATION,
+      /** The name as data if it has one, then parameters and the body. */
+      FUNCTION,
+      /** Parameters. */
+      PARAMETERS,
+      /** The parameter's identifier as data. */
+      PARAMETER,
+      /** The condition, the body, and optionally the body of el. */
+      IF,
+      /** The condition and the body. */
+      WHILE,
+      /**
+       * The counter's identifier as data, then the start, the end, optionally the step, and
+       * the body.
+       */
+      ITER,
+      /** The element's identifier as data, then the collection and the body. */
+      EACH,
+      /** Optionally the returned value. */
+      RETURN,
+      /** Optionally the yielded value. */
+      YIELD,
+      BREAK,
+      CONTINUE,
+      /** The kit's identifier as data, then imported names. */
+      IMPORT,
+      /** The target, which is a name, an index or a field, and the value. */
+      ASSIGN,
+      
+      /** The constant as data. */
+      INT_LITERAL,
+      /** The constant as data. */
+      FLOAT_LITERAL,
+      /** The constant as data. */
+      STRING_LITERAL,
+      TRUE,
+      FALSE,
+      NULL,
+      THIS,
+      SELF,
+      BASE,
+      WILDCARD,
+      /** The identifier as data. */
+      NAME,
+      /** Elements. */
+      LIST,
+      /** The operator as data, and the operand. */
+      PREFIX,
+      /** The operator as data, then the left and right operands. */
+      INFIX,
+      /** The left and right operands. */
+      AND,
+      /** The left and right operands. */
+      OR,
+      /** The left and right operands. */
+      XOR,
+      /** The operand. */
+      NOT,
+      /** The operand. */
+      TYPEOF,
+      /** The operand. */
+      REF,
+      /** The operand. */
+      DEREF,
+      /** The called value, then arguments. */
+      CALL,
+      /** The indexed value and the index. */
+      INDEX,
+      /** The field's identifier as data, and the value it's taken from. */
+      FIELD,
+      /** Takes the place of something that couldn't be parsed. */
+      ERROR,
+   }
+   
+   public static final int NONE = -1;
+   
+   private static final Kind[] KINDS = Kind.values();
+   
+   private static final int INITIAL_CAPACITY = 64;
+   
+   private byte[] kinds = new byte[INITIAL_CAPACITY];
+   private int[] firstChildren = new int[INITIAL_CAPACITY];
+   private int[] nextSiblings = new int[INITIAL_CAPACITY];
+   private Object[] data = new Object[INITIAL_CAPACITY];
+   private Location[] locations = new Location[INITIAL_CAPACITY];
+   private int size = 0;
+   
+   private int root = NONE;
+   
+   public SyntaxTree()
+   {
+   }
+   
+   /**
+    * Adds a node. Its children must have been added already, and linked as siblings.
+    * @param kind
+    * @param datum
+    * @param location
+    * @param firstChild
+    * @return The new node.
+    */
+   int add(Kind kind, Object datum, Location location, int firstChild)
+   {
+      if (size == kinds.length)
+      {
+         grow();
+      }
+      kinds[size] = (byte) kind.ordinal();
+      firstChildren[size] = firstChild;
+      nextSiblings[size] = NONE;
+      data[size] = datum;
+      locations[size] = location;
+      return size++;
+   }
+   
+   void setNextSibling(int node, int sibling)
+   {
+      nextSiblings[node] = sibling;
+   }
+   
+   void setRoot(int root)
+   {
+      this.root = root;
+   }
+   
+   private void grow()
+   {
+      final int capacity = Math.max(size * 2, INITIAL_CAPACITY);
+      kinds = Arrays.copyOf(kinds, capacity);
+      firstChildren = Arrays.copyOf(firstChildren, capacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+      data = Arrays.copyOf(data, capacity);
+      locations = Arrays.copyOf(locations, capacity);
+   }
+   
+   /**
+    * Releases unused capacity, once no more nodes will be added.
+    */
+   public void trimToSize()
+   {
+      if (size < kinds.length)
+      {
+         kinds = Arrays.copyOf(kinds, size);
+         firstChildren = Arrays.copyOf(firstChildren, size);
+         nextSiblings = Arrays.copyOf(nextSiblings, size);
+         data = Arrays.copyOf(data, size);
+         locations = Arrays.copyOf(locations, size);
+      }
+   }
+   
+   /**
+    * @return The module node, or {@link #NONE} if nothing was parsed.
+    */
+   public int getRoot()
+   {
+      return root;
+   }
+   
+   public int size()
+   {
+      return size;
+   }
+   
+   public Kind getKind(int node)
+   {
+      return KINDS[kinds[node]];
+   }
+   
+   public Object getData(int node)
+   {
+      return data[node];
+   }
+   
+   public Location getLocation(int node)
+   {
+      return locations[node];
+   }
+   
+   public int getFirstChild(int node)
+   {
+      return firstChildren[node];
+   }
+   
+   public int getNextSibling(int node)
+   {
+      return nextSiblings[node];
+   }
+   
+   public int getChildCount(int node)
+   {
+      int count = 0;
+      for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child])
+      {
+         count++;
+      }
+      return count;
+   }
+   
+   /**
+    * @param node
+    * @param index
+    * @return The child at the given index, or {@link #NONE} if there are fewer children.
+    */
+   public int getChild(int node, int index)
+   {
+      int child = firstChildren[node];
+      for (int i = 0; i < index && child != NONE; i++)
+      {
+         child = nextSiblings[child];
+      }
+      return child;
+   }
+   
+   /**
+    * @return The tree as nested lists, for debugging.
+    */
+   @Override
+   public String toString()
+   {
+      if (root == NONE)
+      {
+         return "";
+      }
+      final StringBuilder result = new StringBuilder();
+      append(result, root);
+      return result.toString();
+   }
+   
+   private void append(StringBuilder result, int node)
+   {
+      result.append('(').append(getKind(node));
+      if (data[node] != null)
+      {
+         result.append(' ').append(data[node]);
+      }
+      for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child])
+      {
+         result.append(' ');
+         append(result, child);
+      }
+      result.append(')');
+   }
+}
@@ -0,0 +1,48 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.vm;
+
+/**
+ * Holds a local that is both captured by closures and assigned, so that the frame defining it
+ * and the closures share it. Cells only ever appear in frame slots and upvalues.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+final class Cell extends LayeObject
+{
+   // The value as the machine holds it on its stack, so numbers stay unboxed.
+   long payload;
+   LayeObject ref;
+   
+   Cell()
+   {
+      super(TYPE_INTERNAL);
+   }
+   
+   @Override
+   public String toString()
+   {
+      return "cell(" + VirtualMachine.box(payload, ref) + ")";
+   }
+}
@@ -0,0 +1,188 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.vm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds one object for each distinct literal value in a compilation, shared by all of the
+ * files in it.
+ * 
+ * Every constant gets an index, in the order constants are first added, which never changes
+ * and which {@link #get(int)} loads it by. Since equal strings are the same constant, string
+ * constants from the same pool can be compared by identity.
+ * 
+ * Floats are told apart by their bits, so 0.0 and -0.0 are different constants. A pool can be
+ * shared between threads.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class ConstantPool
+{
+   private final ConcurrentHashMap<Long, Integer> ints = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Long, Integer> floats = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Integer> strings = new ConcurrentHashMap<>();
+   
+   /**
+    * Written only while holding the lock on this pool. Readers find indices through the maps,
+    * which publish the constant stored before the index was put.
+    */
+   private volatile LayeObject[] constants = new LayeObject[64];
+   private int count = 0;
+   
+   public ConstantPool()
+   {
+   }
+   
+   public LayeInt internInt(long value)
+   {
+      return (LayeInt) get(addInt(value));
+   }
+   
+   public LayeFloat internFloat(double value)
+   {
+      return (LayeFloat) get(addFloat(value));
+   }
+   
+   public LayeString internString(String value)
+   {
+      return (LayeString) get(addString(value));
+   }
+   
+   /**
+    * @param value
+    * @return The index of the int constant with the given value, added if it didn't exist.
+    */
+   public int addInt(long value)
+   {
+      final Integer index = ints.get(value);
+      if (index != null)
+      {
+         return index;
+      }
+      synchronized (this)
+      {
+         return ints.computeIfAbsent(value, key -> append(LayeInt.valueOf(value)));
+      }
+   }
+   
+   /**
+    * @param value
+    * @return The index of the float constant with the given value, added if it didn't exist.
+    */
+   public int addFloat(double value)
+   {
+      final long bits = Double.doubleToRawLongBits(value);
+      final Integer index = floats.get(bits);
+      if (index != null)
+      {
+         return index;
+      }
+      synchronized (this)
+      {
+         return floats.computeIfAbsent(bits, key -> append(LayeFloat.valueOf(value)));
+      }
+   }
+   
+   /**
+    * @param value
+    * @return The index of the string constant with the given value, added if it didn't exist.
+    */
+   public int addString(String value)
+   {
+      final Integer index = strings.get(value);
+      if (index != null)
+      {
+         return index;
+      }
+      synchronized (this)
+      {
+         return strings.computeIfAbsent(value, key -> append(new LayeString(value)));
+      }
+   }
+   
+   private int append(LayeObject constant)
+   {
+      LayeObject[] constants = this.constants;
+      if (count == constants.length)
+      {
+         constants = Arrays.copyOf(constants, count * 2);
+      }
+      constants[count] = constant;
+      this.constants = constants;
+      return count++;
+   }
+   
+   /**
+    * @param constant
+    * @return The index of the given constant, or -1 if it's not a constant of this pool.
+    */
+   public int indexOf(LayeObject constant)
+   {
+      final Integer index;
+      if (constant instanceof LayeInt)
+      {
+         index = ints.get(((LayeInt) constant).value);
+      }
+      else if (constant instanceof LayeFloat)
+      {
+         index = floats.get(Double.doubleToRawLongBits(((LayeFloat) constant).value));
+      }
+      else if (constant instanceof LayeString)
+      {
+         index = strings.get(((LayeString) constant).value);
+      }
+      else
+      {
+         return -1;
+      }
+      if (index == null || constants[index] != constant)
+      {
+         return -1;
+      }
+      return index;
+   }
+   
+   public LayeObject get(int index)
+   {
+      return constants[index];
+   }
+   
+   /**
+    * @return A copy of the constants added so far, at their indices.
+    */
+   public synchronized LayeObject[] toArray()
+   {
+      return Arrays.copyOf(constants, count);
+   }
+   
+   /**
+    * @return The number of constants in this pool. Indices of those constants are less than it.
+    */
+   public synchronized int size()
+   {
+      return count;
+   }
+}
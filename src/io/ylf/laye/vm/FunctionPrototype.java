@@ -0,0 +1,96 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.vm;
+
+import io.ylf.laye.struct.Operator;
+
+/**
+ * The compiled code of a function, shared by all of its closures.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class FunctionPrototype
+{
+   /**
+    * The name of the function, or <code>null</code> if it has none.
+    */
+   public final String name;
+   
+   /**
+    * The instructions of the function, see {@link Instruction}. Machines quicken them in
+    * place as they run them.
+    */
+   public final int[] code;
+   
+   public final int parameterCount;
+   
+   /**
+    * The number of frame slots the function needs, starting with its parameters.
+    */
+   public final int frameSize;
+   
+   /**
+    * The most values the function has on its operand stack at once.
+    */
+   public final int maxStackSize;
+   
+   /**
+    * The functions that {@link Instruction#CLOSURE} creates closures of.
+    */
+   public final FunctionPrototype[] functions;
+   
+   /**
+    * Where each upvalue is taken from when a closure is created: the index of a frame slot of
+    * the enclosing function shifted left once and or'd with 1, or the index of one of the
+    * enclosing function's upvalues shifted left once.
+    */
+   public final int[] upvalues;
+   
+   /**
+    * The operators that {@link Instruction#UNARY_OP} and {@link Instruction#BINARY_OP}
+    * apply.
+    */
+   public final Operator[] operators;
+   
+   public FunctionPrototype(String name, int[] code, int parameterCount, int frameSize,
+         int maxStackSize, FunctionPrototype[] functions, int[] upvalues, Operator[] operators)
+   {
+      assert(code != null && functions != null && upvalues != null && operators != null);
+      assert(parameterCount >= 0 && frameSize >= parameterCount && maxStackSize >= 0);
+      this.name = name;
+      this.code = code;
+      this.parameterCount = parameterCount;
+      this.frameSize = frameSize;
+      this.maxStackSize = maxStackSize;
+      this.functions = functions;
+      this.upvalues = upvalues;
+      this.operators = operators;
+   }
+   
+   @Override
+   public String toString()
+   {
+      return name == null ? "fn" : "fn " + name;
+   }
+}
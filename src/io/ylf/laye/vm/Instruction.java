@@ -24,11 +24,487 @@
 package io.ylf.laye.vm;
 
 /**
+ * The instruction set of the {@link VirtualMachine}.
+ * 
+ * An instruction is packed into an int. The low 8 bits hold its opcode and the high 24 bits
+ * its operand, read as unsigned by {@link #getA(int)} or as signed by {@link #getSA(int)}.
+ * Instructions with two operands split the high bits into two unsigned 12 bit operands,
+ * read by {@link #getB(int)} and {@link #getC(int)}.
+ * 
+ * <pre>
+ *  31                     8 7      0
+ * +-----------------------+--------+
+ * |           A           | opcode |
+ * +-----------+-----------+--------+
+ * |     C     |     B     | opcode |
+ * +-----------+-----------+--------+
+ * </pre>
+ * 
+ * The instructions of a function are stored in the <code>int[]</code> code of its
+ * {@link FunctionPrototype}. Jump offsets are relative to the instruction after the jump.
+ * 
+ * The effect of each instruction on the operand stack is given as
+ * <code>[before] -&gt; [after]</code>, with the top of the stack on the right.
+ * 
  * @author Sekai Kyoretsuna
  */
-public class Instruction
+public final class Instruction
 {
-   public Instruction()
+   /** The largest operand A can hold. */
+   public static final int MAX_A = 0xFFFFFF;
+   /** The smallest and largest offsets a jump can hold. */
+   public static final int MIN_SA = -0x800000, MAX_SA = 0x7FFFFF;
+   /** The largest operand B or C can hold. */
+   public static final int MAX_B = 0xFFF;
+   
+   // ===== Stack
+   
+   /** <code>[] -&gt; []</code> */
+   public static final int NOP = 0;
+   /** <code>[value] -&gt; []</code> */
+   public static final int POP = 1;
+   /** <code>[value] -&gt; [value, value]</code> */
+   public static final int DUP = 2;
+   
+   // ===== Values
+   
+   /** <code>[] -&gt; [null]</code> */
+   public static final int LOAD_NULL = 3;
+   /** <code>[] -&gt; [true]</code> */
+   public static final int LOAD_TRUE = 4;
+   /** <code>[] -&gt; [false]</code> */
+   public static final int LOAD_FALSE = 5;
+   /** <code>[] -&gt; [constants[A]]</code> */
+   public static final int LOAD_CONST = 6;
+   
+   // ===== Variables
+   
+   /** <code>[] -&gt; [frame[A]]</code> */
+   public static final int LOAD_LOCAL = 7;
+   /** <code>[value] -&gt; []</code>, frame[A] = value */
+   public static final int STORE_LOCAL = 8;
+   /** <code>[value] -&gt; []</code>, frame[A] = a new cell holding value */
+   public static final int NEW_CELL = 9;
+   /** <code>[] -&gt; [the value in the cell at frame[A]]</code> */
+   public static final int LOAD_CELL = 10;
+   /** <code>[value] -&gt; []</code>, stores value in the cell at frame[A] */
+   public static final int STORE_CELL = 11;
+   /** <code>[] -&gt; [upvalues[A]]</code> */
+   public static final int LOAD_UPVALUE = 12;
+   /** <code>[] -&gt; [the value in the cell at upvalues[A]]</code> */
+   public static final int LOAD_UPVALUE_CELL = 13;
+   /** <code>[value] -&gt; []</code>, stores value in the cell at upvalues[A] */
+   public static final int STORE_UPVALUE_CELL = 14;
+   /** <code>[] -&gt; [globals[A]]</code> */
+   public static final int LOAD_GLOBAL = 15;
+   /** <code>[value] -&gt; []</code>, globals[A] = value */
+   public static final int STORE_GLOBAL = 16;
+   
+   // ===== Operators
+   
+   /** <code>[left, right] -&gt; [left + right]</code> */
+   public static final int ADD = 17;
+   /** <code>[left, right] -&gt; [left - right]</code> */
+   public static final int SUB = 18;
+   /** <code>[left, right] -&gt; [left * right]</code> */
+   public static final int MUL = 19;
+   /** <code>[left, right] -&gt; [left / right]</code>, always a float */
+   public static final int DIV = 20;
+   /** <code>[left, right] -&gt; [left // right]</code>, rounded towards negative infinity */
+   public static final int IDIV = 21;
+   /** <code>[left, right] -&gt; [left % right]</code>, with the sign of right */
+   public static final int MOD = 22;
+   /** <code>[left, right] -&gt; [left ^ right]</code> */
+   public static final int POW = 23;
+   /** <code>[left, right] -&gt; [left &amp; right]</code> */
+   public static final int BAND = 24;
+   /** <code>[left, right] -&gt; [left | right]</code> */
+   public static final int BOR = 25;
+   /** <code>[left, right] -&gt; [left ~ right]</code> */
+   public static final int BXOR = 26;
+   /** <code>[left, right] -&gt; [left &lt;&lt; right]</code> */
+   public static final int SHL = 27;
+   /** <code>[left, right] -&gt; [left &gt;&gt; right]</code> */
+   public static final int SHR = 28;
+   /** <code>[left, right] -&gt; [left &gt;&gt;&gt; right]</code> */
+   public static final int USHR = 29;
+   /** <code>[left, right] -&gt; [left &lt;&gt; right]</code> */
+   public static final int CONCAT = 30;
+   /** <code>[left, right] -&gt; [left == right]</code> */
+   public static final int EQ = 31;
+   /** <code>[left, right] -&gt; [left != right]</code> */
+   public static final int NE = 32;
+   /** <code>[left, right] -&gt; [left &lt; right]</code> */
+   public static final int LT = 33;
+   /** <code>[left, right] -&gt; [left &lt;= right]</code> */
+   public static final int LE = 34;
+   /** <code>[left, right] -&gt; [left &gt; right]</code> */
+   public static final int GT = 35;
+   /** <code>[left, right] -&gt; [left &gt;= right]</code> */
+   public static final int GE = 36;
+   /** <code>[left, right] -&gt; [left &lt;=&gt; right]</code>, -1, 0 or 1 */
+   public static final int CMP3 = 37;
+   /** <code>[value] -&gt; [-value]</code> */
+   public static final int NEG = 38;
+   /** <code>[value] -&gt; [~value]</code> */
+   public static final int BNOT = 39;
+   /** <code>[value] -&gt; [not value]</code> */
+   public static final int NOT = 40;
+   /** <code>[left, right] -&gt; [left xor right]</code>, of their truth */
+   public static final int XOR = 41;
+   /** <code>[value] -&gt; [operators[A] value]</code> */
+   public static final int UNARY_OP = 42;
+   /** <code>[left, right] -&gt; [left operators[A] right]</code> */
+   public static final int BINARY_OP = 43;
+   
+   // ===== Control
+   
+   /** <code>[] -&gt; []</code>, jumps by SA */
+   public static final int JUMP = 44;
+   /** <code>[value] -&gt; []</code>, jumps by SA if value is false */
+   public static final int JUMP_IF_FALSE = 45;
+   /** <code>[value] -&gt; []</code>, jumps by SA if value is true */
+   public static final int JUMP_IF_TRUE = 46;
+   /**
+    * <code>[start, end, step] -&gt; [end, step, start]</code>, begins an <code>iter</code>
+    * loop. The step can't be zero.
+    */
+   public static final int ITER_PREP = 47;
+   /**
+    * <code>[end, step, counter] -&gt; [end, step, counter]</code>, jumps by SA if the counter
+    * is past the end.
+    */
+   public static final int ITER_TEST = 48;
+   /** <code>[end, step, counter] -&gt; [end, step, counter + step]</code> */
+   public static final int ITER_STEP = 49;
+   
+   // ===== Functions
+   
+   /**
+    * <code>[] -&gt; [closure]</code>, creates a closure of functions[A], taking its upvalues
+    * from the frame and upvalues of the running function.
+    */
+   public static final int CLOSURE = 50;
+   /** <code>[function, arguments...] -&gt; [result]</code>, with A arguments */
+   public static final int CALL = 51;
+   /** <code>[value] -&gt; []</code>, returns value from the running function */
+   public static final int RETURN = 52;
+   
+   // ===== Superinstructions
+   
+   // These each do the work of a pair of the instructions above, as fused by
+   // io.ylf.laye.codegen.InstructionFuser.
+   
+   /** LOAD_LOCAL B, LOAD_CONST C */
+   public static final int LOAD_LOCAL_CONST = 53;
+   /** LOAD_LOCAL B, LOAD_LOCAL C */
+   public static final int LOAD_LOCAL_LOCAL = 54;
+   /** STORE_LOCAL B, LOAD_LOCAL C */
+   public static final int STORE_LOAD_LOCAL = 55;
+   /** ADD, STORE_LOCAL B */
+   public static final int ADD_STORE_LOCAL = 56;
+   /** DUP, STORE_LOCAL A */
+   public static final int DUP_STORE_LOCAL = 57;
+   /** ITER_STEP, JUMP SA */
+   public static final int ITER_STEP_JUMP = 58;
+   
+   // ===== Quickened instructions
+   
+   // These are never compiled. The machine rewrites a generic instruction in place to one of
+   // these once it has seen its operands, see VirtualMachine. Each is its generic instruction
+   // for two ints (_II), two floats (_FF) or two strings (_SS), and rewrites itself back to the
+   // generic instruction when its operands turn out to be anything else. Instructions that
+   // can be quickened keep C for the machine, which counts there how often the instruction was
+   // rewritten back.
+   
+   public static final int ADD_II = 59;
+   public static final int ADD_FF = 60;
+   public static final int SUB_II = 61;
+   public static final int SUB_FF = 62;
+   public static final int MUL_II = 63;
+   public static final int MUL_FF = 64;
+   public static final int DIV_FF = 65;
+   public static final int IDIV_II = 66;
+   public static final int MOD_II = 67;
+   public static final int CONCAT_SS = 68;
+   public static final int EQ_II = 69;
+   public static final int EQ_FF = 70;
+   public static final int EQ_SS = 71;
+   public static final int NE_II = 72;
+   public static final int NE_FF = 73;
+   public static final int NE_SS = 74;
+   public static final int LT_II = 75;
+   public static final int LT_FF = 76;
+   public static final int LT_SS = 77;
+   public static final int LE_II = 78;
+   public static final int LE_FF = 79;
+   public static final int LE_SS = 80;
+   public static final int GT_II = 81;
+   public static final int GT_FF = 82;
+   public static final int GT_SS = 83;
+   public static final int GE_II = 84;
+   public static final int GE_FF = 85;
+   public static final int GE_SS = 86;
+   public static final int ADD_STORE_LOCAL_II = 87;
+   public static final int POW_II = 88;
+   public static final int BAND_II = 89;
+   public static final int BOR_II = 90;
+   public static final int BXOR_II = 91;
+   public static final int SHL_II = 92;
+   public static final int SHR_II = 93;
+   public static final int USHR_II = 94;
+   public static final int CMP3_II = 95;
+   
+   /** The number of opcodes, all of which are less than it. */
+   public static final int OPCODE_COUNT = 96;
+   
+   private static final String[] NAMES =
+   {
+      "NOP", "POP", "DUP",
+      "LOAD_NULL", "LOAD_TRUE", "LOAD_FALSE", "LOAD_CONST",
+      "LOAD_LOCAL", "STORE_LOCAL", "NEW_CELL", "LOAD_CELL", "STORE_CELL",
+      "LOAD_UPVALUE", "LOAD_UPVALUE_CELL", "STORE_UPVALUE_CELL", "LOAD_GLOBAL", "STORE_GLOBAL",
+      "ADD", "SUB", "MUL", "DIV", "IDIV", "MOD", "POW", "BAND", "BOR", "BXOR", "SHL", "SHR",
+      "USHR", "CONCAT", "EQ", "NE", "LT", "LE", "GT", "GE", "CMP3", "NEG", "BNOT", "NOT", "XOR",
+      "UNARY_OP", "BINARY_OP",
+      "JUMP", "JUMP_IF_FALSE", "JUMP_IF_TRUE", "ITER_PREP", "ITER_TEST", "ITER_STEP",
+      "CLOSURE", "CALL", "RETURN",
+      "LOAD_LOCAL_CONST", "LOAD_LOCAL_LOCAL", "STORE_LOAD_LOCAL", "ADD_STORE_LOCAL",
+      "DUP_STORE_LOCAL", "ITER_STEP_JUMP",
+      "ADD_II", "ADD_FF", "SUB_II", "SUB_FF", "MUL_II", "MUL_FF", "DIV_FF", "IDIV_II",
+      "MOD_II", "CONCAT_SS", "EQ_II", "EQ_FF", "EQ_SS", "NE_II", "NE_FF", "NE_SS", "LT_II",
+      "LT_FF", "LT_SS", "LE_II", "LE_FF", "LE_SS", "GT_II", "GT_FF", "GT_SS", "GE_II", "GE_FF",
+      "GE_SS", "ADD_STORE_LOCAL_II", "POW_II", "BAND_II", "BOR_II", "BXOR_II", "SHL_II",
+      "SHR_II", "USHR_II", "CMP3_II",
+   };
+   
+   /**
+    * What the operands of each opcode are.
+    */
+   private static final byte NO_OPERAND = 0, A_OPERAND = 1, SA_OPERAND = 2, BC_OPERANDS = 3;
+   
+   private static final byte[] OPERANDS = new byte[OPCODE_COUNT];
+   
+   /**
+    * The quickened variants of each opcode for two ints, two floats and two strings, and the
+    * generic opcode of each quickened one. An opcode without a variant maps to itself.
+    */
+   private static final int[] INT_VARIANTS = new int[OPCODE_COUNT];
+   private static final int[] FLOAT_VARIANTS = new int[OPCODE_COUNT];
+   private static final int[] STRING_VARIANTS = new int[OPCODE_COUNT];
+   private static final int[] GENERICS = new int[OPCODE_COUNT];
+   
+   static
+   {
+      assert(NAMES.length == OPCODE_COUNT);
+      for (int opcode : new int[] { LOAD_CONST, LOAD_LOCAL, STORE_LOCAL, NEW_CELL, LOAD_CELL,
+            STORE_CELL, LOAD_UPVALUE, LOAD_UPVALUE_CELL, STORE_UPVALUE_CELL, LOAD_GLOBAL,
+            STORE_GLOBAL, UNARY_OP, BINARY_OP, CLOSURE, CALL, DUP_STORE_LOCAL })
+      {
+         OPERANDS[opcode] = A_OPERAND;
+      }
+      for (int opcode : new int[] { JUMP, JUMP_IF_FALSE, JUMP_IF_TRUE, ITER_TEST,
+            ITER_STEP_JUMP })
+      {
+         OPERANDS[opcode] = SA_OPERAND;
+      }
+      for (int opcode : new int[] { LOAD_LOCAL_CONST, LOAD_LOCAL_LOCAL, STORE_LOAD_LOCAL,
+            ADD_STORE_LOCAL, ADD_STORE_LOCAL_II })
+      {
+         OPERANDS[opcode] = BC_OPERANDS;
+      }
+      
+      for (int opcode = 0; opcode < OPCODE_COUNT; opcode++)
+      {
+         INT_VARIANTS[opcode] = FLOAT_VARIANTS[opcode] = STRING_VARIANTS[opcode] =
+               GENERICS[opcode] = opcode;
+      }
+      setVariants(ADD, ADD_II, ADD_FF, ADD);
+      setVariants(SUB, SUB_II, SUB_FF, SUB);
+      setVariants(MUL, MUL_II, MUL_FF, MUL);
+      setVariants(DIV, DIV, DIV_FF, DIV);
+      setVariants(IDIV, IDIV_II, IDIV, IDIV);
+      setVariants(MOD, MOD_II, MOD, MOD);
+      setVariants(CONCAT, CONCAT, CONCAT, CONCAT_SS);
+      setVariants(EQ, EQ_II, EQ_FF, EQ_SS);
+      setVariants(NE, NE_II, NE_FF, NE_SS);
+      setVariants(LT, LT_II, LT_FF, LT_SS);
+      setVariants(LE, LE_II, LE_FF, LE_SS);
+      setVariants(GT, GT_II, GT_FF, GT_SS);
+      setVariants(GE, GE_II, GE_FF, GE_SS);
+      setVariants(ADD_STORE_LOCAL, ADD_STORE_LOCAL_II, ADD_STORE_LOCAL, ADD_STORE_LOCAL);
+      setVariants(POW, POW_II, POW, POW);
+      setVariants(BAND, BAND_II, BAND, BAND);
+      setVariants(BOR, BOR_II, BOR, BOR);
+      setVariants(BXOR, BXOR_II, BXOR, BXOR);
+      setVariants(SHL, SHL_II, SHL, SHL);
+      setVariants(SHR, SHR_II, SHR, SHR);
+      setVariants(USHR, USHR_II, USHR, USHR);
+      setVariants(CMP3, CMP3_II, CMP3, CMP3);
+   }
+   
+   private static void setVariants(int generic, int ints, int floats, int strings)
+   {
+      INT_VARIANTS[generic] = ints;
+      FLOAT_VARIANTS[generic] = floats;
+      STRING_VARIANTS[generic] = strings;
+      GENERICS[ints] = GENERICS[floats] = GENERICS[strings] = generic;
+   }
+   
+   public static int make(int opcode)
+   {
+      assert(opcode >= 0 && opcode < OPCODE_COUNT);
+      return opcode;
+   }
+   
+   public static int make(int opcode, int a)
+   {
+      assert(opcode >= 0 && opcode < OPCODE_COUNT && a >= 0 && a <= MAX_A);
+      return opcode | a << 8;
+   }
+   
+   public static int makeJump(int opcode, int offset)
+   {
+      assert(opcode >= 0 && opcode < OPCODE_COUNT && offset >= MIN_SA && offset <= MAX_SA);
+      return opcode | offset << 8;
+   }
+   
+   public static int make(int opcode, int b, int c)
+   {
+      assert(opcode >= 0 && opcode < OPCODE_COUNT);
+      assert(b >= 0 && b <= MAX_B && c >= 0 && c <= MAX_B);
+      return opcode | b << 8 | c << 20;
+   }
+   
+   public static int getOpcode(int insn)
+   {
+      return insn & 0xFF;
+   }
+   
+   public static int getA(int insn)
+   {
+      return insn >>> 8;
+   }
+   
+   public static int getSA(int insn)
+   {
+      return insn >> 8;
+   }
+   
+   public static int getB(int insn)
+   {
+      return insn >>> 8 & 0xFFF;
+   }
+   
+   public static int getC(int insn)
+   {
+      return insn >>> 20;
+   }
+   
+   /**
+    * @param opcode
+    * @return <code>true</code> if instructions with the given opcode can jump, by their
+    *         signed operand.
+    */
+   public static boolean isJump(int opcode)
+   {
+      return OPERANDS[opcode] == SA_OPERAND;
+   }
+   
+   /**
+    * @param opcode
+    * @return <code>true</code> if instructions with the given opcode have an operand A.
+    */
+   public static boolean hasA(int opcode)
+   {
+      return OPERANDS[opcode] == A_OPERAND;
+   }
+   
+   /**
+    * @param opcode
+    * @return <code>true</code> if instructions with the given opcode have operands B and C.
+    */
+   public static boolean hasBC(int opcode)
+   {
+      return OPERANDS[opcode] == BC_OPERANDS;
+   }
+   
+   /**
+    * @param opcode
+    * @return The quickened variant of the given opcode for two int operands, or the opcode
+    *         itself if it has none.
+    */
+   public static int getIntVariant(int opcode)
+   {
+      return INT_VARIANTS[opcode];
+   }
+   
+   /**
+    * @param opcode
+    * @return The quickened variant of the given opcode for two float operands, or the opcode
+    *         itself if it has none.
+    */
+   public static int getFloatVariant(int opcode)
+   {
+      return FLOAT_VARIANTS[opcode];
+   }
+   
+   /**
+    * @param opcode
+    * @return The quickened variant of the given opcode for two string operands, or the opcode
+    *         itself if it has none.
+    */
+   public static int getStringVariant(int opcode)
+   {
+      return STRING_VARIANTS[opcode];
+   }
+   
+   /**
+    * @param opcode
+    * @return The generic opcode the given quickened opcode is a variant of, or the opcode
+    *         itself if it isn't quickened.
+    */
+   public static int getGeneric(int opcode)
+   {
+      return GENERICS[opcode];
+   }
+   
+   public static String getName(int opcode)
+   {
+      return NAMES[opcode];
+   }
+   
+   public static String toString(int insn)
+   {
+      final int opcode = getOpcode(insn);
+      switch (OPERANDS[opcode])
+      {
+         case A_OPERAND:
+            return NAMES[opcode] + " " + getA(insn);
+         case SA_OPERAND:
+            return NAMES[opcode] + " " + getSA(insn);
+         case BC_OPERANDS:
+            return NAMES[opcode] + " " + getB(insn) + " " + getC(insn);
+         default:
+            return NAMES[opcode];
+      }
+   }
+   
+   /**
+    * @param code
+    * @return The instructions of the given code, one per line, each after its index.
+    */
+   public static String disassemble(int[] code)
+   {
+      final StringBuilder result = new StringBuilder();
+      for (int pc = 0; pc < code.length; pc++)
+      {
+         result.append(pc).append('\t').append(toString(code[pc])).append('\n');
+      }
+      return result.toString();
+   }
+   
+   private Instruction()
    {
    }
 }
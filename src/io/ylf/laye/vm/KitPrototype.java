@@ -0,0 +1,89 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.vm;
+
+/**
+ * A compiled kit: the code run when it's loaded and what it needs to run it.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class KitPrototype
+{
+   /**
+    * The code outside of all functions, which takes no arguments.
+    */
+   public final FunctionPrototype body;
+   
+   /**
+    * The name of each global slot.
+    */
+   private final String[] globalNames;
+   
+   /**
+    * The constants {@link Instruction#LOAD_CONST} loads, as the machine holds them on its
+    * stack: see {@link VirtualMachine}.
+    */
+   final LayeObject[] constantRefs;
+   final long[] constantPayloads;
+   
+   public KitPrototype(FunctionPrototype body, String[] globalNames, LayeObject[] constants)
+   {
+      assert(body != null && globalNames != null && constants != null);
+      this.body = body;
+      this.globalNames = globalNames;
+      this.constantRefs = new LayeObject[constants.length];
+      this.constantPayloads = new long[constants.length];
+      for (int i = 0; i < constants.length; i++)
+      {
+         constantRefs[i] = VirtualMachine.getRef(constants[i]);
+         constantPayloads[i] = VirtualMachine.getPayload(constants[i]);
+      }
+   }
+   
+   public int getGlobalCount()
+   {
+      return globalNames.length;
+   }
+   
+   public String getGlobalName(int slot)
+   {
+      return globalNames[slot];
+   }
+   
+   /**
+    * @param name
+    * @return The slot of the global with the given name, or -1 if there is none.
+    */
+   public int getGlobalSlot(String name)
+   {
+      for (int i = 0; i < globalNames.length; i++)
+      {
+         if (globalNames[i].equals(name))
+         {
+            return i;
+         }
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,55 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.vm;
+
+/**
+ * The values of the <code>true</code> and <code>false</code> keywords. There are only ever the
+ * two instances, so bools can be compared by reference.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class LayeBool extends LayeObject
+{
+   public static final LayeBool TRUE = new LayeBool(true);
+   public static final LayeBool FALSE = new LayeBool(false);
+   
+   public static LayeBool valueOf(boolean value)
+   {
+      return value ? TRUE : FALSE;
+   }
+   
+   public final boolean value;
+   
+   private LayeBool(boolean value)
+   {
+      super(TYPE_BOOL);
+      this.value = value;
+   }
+   
+   @Override
+   public String toString()
+   {
+      return Boolean.toString(value);
+   }
+}
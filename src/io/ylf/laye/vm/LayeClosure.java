@@ -0,0 +1,65 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.vm;
+
+/**
+ * A function value: a prototype and the upvalues it captured.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class LayeClosure extends LayeObject
+{
+   public final FunctionPrototype prototype;
+   
+   /**
+    * The values or cells (see {@link Cell}) captured from enclosing functions.
+    */
+   final LayeObject[] upvalues;
+   
+   /**
+    * The globals of the kit the function was defined in.
+    */
+   final LayeObject[] globals;
+   
+   /**
+    * The kit the function was defined in, which holds its constants.
+    */
+   final KitPrototype kit;
+   
+   LayeClosure(FunctionPrototype prototype, LayeObject[] upvalues, LayeObject[] globals,
+         KitPrototype kit)
+   {
+      super(TYPE_FUNCTION);
+      this.prototype = prototype;
+      this.upvalues = upvalues;
+      this.globals = globals;
+      this.kit = kit;
+   }
+   
+   @Override
+   public String toString()
+   {
+      return prototype.toString();
+   }
+}
@@ -37,6 +37,7 @@ public final class LayeFloat extends LayeObject
    
    public LayeFloat(double value)
    {
+      super(TYPE_FLOAT);
       this.value = value;
    }
    
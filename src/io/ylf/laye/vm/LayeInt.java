@@ -61,6 +61,7 @@ public final class LayeInt extends LayeObject
     */
    public LayeInt(long value)
    {
+      super(TYPE_INT);
       this.value = value;
    }
    
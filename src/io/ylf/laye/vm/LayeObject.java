@@ -28,8 +28,28 @@ package io.ylf.laye.vm;
  */
 public abstract class LayeObject
 {
-   public LayeObject()
+   // The type tags of the built in types. They're small and dense, so that switching over
+   // them (or over a pair of them, see VirtualMachine) compiles to a tableswitch.
+   public static final byte TYPE_NULL = 0;
+   public static final byte TYPE_BOOL = 1;
+   public static final byte TYPE_INT = 2;
+   public static final byte TYPE_FLOAT = 3;
+   public static final byte TYPE_STRING = 4;
+   public static final byte TYPE_FUNCTION = 5;
+   /** Values only the machine sees, such as cells. */
+   public static final byte TYPE_INTERNAL = 6;
+   
+   public static final int TYPE_COUNT = 7;
+   
+   /**
+    * Which built in type this value is, one of the <code>TYPE_</code> constants.
+    */
+   public final byte typeTag;
+   
+   public LayeObject(byte typeTag)
    {
+      assert(typeTag >= 0 && typeTag < TYPE_COUNT);
+      this.typeTag = typeTag;
    }
    
    public abstract String toString();
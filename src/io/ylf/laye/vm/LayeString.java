@@ -32,6 +32,7 @@ public class LayeString extends LayeObject
    
    public LayeString(String value)
    {
+      super(TYPE_STRING);
       this.value = value;
    }
    
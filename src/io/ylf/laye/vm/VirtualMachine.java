@@ -23,17 +23,1685 @@
  */
 package io.ylf.laye.vm;
 
+import static io.ylf.laye.vm.LayeObject.*;
+
+import java.util.Arrays;
+
+import io.ylf.laye.struct.Operator;
+
 /**
+ * Runs compiled kits.
+ * 
+ * All frames of a machine share one value stack. A frame holds the function being called,
+ * then its frame slots (parameters first), then its operand stack. Calls between Laye
+ * functions don't recurse in Java: the state of the calling frames is saved in arrays and
+ * a single loop runs the innermost frame.
+ * 
+ * The stack is kept in two parallel arrays, so that numbers on it are never boxed. A slot
+ * holding an int or a float has {@link #INT} or {@link #FLOAT} as its reference and the bits
+ * of the number as its payload. Any other slot holds its object as its reference, which is
+ * never a LayeInt or a LayeFloat, nor <code>null</code>: null is {@link LayeNull#NULL}.
+ * Numbers are only boxed when they leave the stack for the heap, by being stored to a global,
+ * captured by a closure or returned from the machine. Cells hold their value unboxed too.
+ * 
+ * Every reference on the stack has a type tag, so operators switch over the tags of their
+ * operands (see {@link #pair}) rather than testing their classes. Only <code>null</code> and
+ * <code>false</code> are false.
+ * 
+ * The machine quickens code as it runs it: the first time a generic arithmetic or comparison
+ * instruction runs, it's rewritten in place to its variant for the operands it saw, if it has
+ * one (see {@link Instruction#ADD_II}). A variant only checks its operands are what it expects
+ * before doing its work, and otherwise rewrites itself back to the generic instruction and
+ * runs that, which quickens again for the operands it sees. Each rewrite back is counted in the
+ * instruction, and after {@link #MAX_DEOPTS} of them the generic instruction stays, so a site
+ * whose operands keep changing type stops writing to the code.
+ * 
+ * Operators without instructions of their own are applied by calling the function that
+ * overloads them for the type of their first operand, see {@link #setOverload}. The overloads
+ * are kept in a table indexed by {@link Operator#id} and then type tag, so applying one finds
+ * its function without looking anything up by name.
+ * 
+ * A machine must only be used by one thread at a time. Machines on different threads may run
+ * the same kit, since each rewrite stores a whole instruction that works for any operands.
+ * 
  * @author Sekai Kyoretsuna
  */
 public class VirtualMachine
 {
+   /**
+    * The reference of a slot whose payload is a number.
+    */
+   private static final class Unboxed extends LayeObject
+   {
+      Unboxed(byte typeTag)
+      {
+         super(typeTag);
+      }
+      
+      @Override
+      public String toString()
+      {
+         return typeTag == TYPE_INT ? "unboxed int" : "unboxed float";
+      }
+   }
+   
+   static final LayeObject INT = new Unboxed(TYPE_INT), FLOAT = new Unboxed(TYPE_FLOAT);
+   
+   // The pairs of type tags the operators handle, see pair.
+   private static final int INT_INT = TYPE_INT << 3 | TYPE_INT;
+   private static final int INT_FLOAT = TYPE_INT << 3 | TYPE_FLOAT;
+   private static final int FLOAT_INT = TYPE_FLOAT << 3 | TYPE_INT;
+   private static final int FLOAT_FLOAT = TYPE_FLOAT << 3 | TYPE_FLOAT;
+   private static final int STRING_STRING = TYPE_STRING << 3 | TYPE_STRING;
+   
+   /**
+    * How many times an instruction may be rewritten back to its generic instruction before it
+    * isn't quickened anymore. The count is kept in its operand C.
+    */
+   private static final int MAX_DEOPTS = 4;
+   
+   private static final LayeObject[] NO_UPVALUES = new LayeObject[0];
+   
+   public static final int DEFAULT_MAX_CALL_DEPTH = 100_000;
+   
+   /**
+    * Whether machines count the instructions they dispatch, set by the system property
+    * <code>io.ylf.laye.countDispatches</code>. Counting is compiled away when it's off.
+    */
+   private static final boolean COUNT_DISPATCHES =
+         Boolean.getBoolean("io.ylf.laye.countDispatches");
+   
+   private final int maxCallDepth;
+   
+   // The stack.
+   private long[] payloads = new long[256];
+   private LayeObject[] refs = new LayeObject[256];
+   
+   // The saved state of each calling frame.
+   private LayeClosure[] callers = new LayeClosure[16];
+   private int[] callerPcs = new int[16];
+   private int[] callerBases = new int[16];
+   private int callDepth = 0;
+   
+   private boolean running = false;
+   
+   private boolean quickening = true;
+   
+   /**
+    * The functions overloading each operator for each type, indexed by operator id and then
+    * type tag. Rows are created when an operator is first overloaded.
+    */
+   private LayeClosure[][] overloads = new LayeClosure[0][];
+   
+   private long dispatchCount = 0;
+   
    public VirtualMachine()
    {
+      this(DEFAULT_MAX_CALL_DEPTH);
+   }
+   
+   /**
+    * @param maxCallDepth The most calls that may be running at once.
+    */
+   public VirtualMachine(int maxCallDepth)
+   {
+      this.maxCallDepth = maxCallDepth;
+   }
+   
+   /**
+    * Loads a kit: runs its body, then calls its <code>Main</code> function if it defined one.
+    * @param kit
+    * @return The value returned by <code>Main</code>, or by the body if there is no
+    *         <code>Main</code>.
+    */
+   public LayeObject run(KitPrototype kit)
+   {
+      final LayeObject[] globals = new LayeObject[kit.getGlobalCount()];
+      Arrays.fill(globals, LayeNull.NULL);
+      final LayeClosure body = new LayeClosure(kit.body, NO_UPVALUES, globals, kit);
+      LayeObject result = call(body);
+      final int main = kit.getGlobalSlot("Main");
+      if (main >= 0 && globals[main].typeTag == TYPE_FUNCTION)
+      {
+         result = call((LayeClosure) globals[main]);
+      }
+      return result;
+   }
+   
+   /**
+    * Calls a function from outside of the machine.
+    * @param function
+    * @param arguments
+    * @return The value the function returned.
+    */
+   public LayeObject call(LayeClosure function, LayeObject... arguments)
+   {
+      if (running)
+      {
+         throw new IllegalStateException("The machine is already running.");
+      }
+      running = true;
+      try
+      {
+         ensureStack(1 + arguments.length);
+         refs[0] = function;
+         for (int i = 0; i < arguments.length; i++)
+         {
+            payloads[1 + i] = getPayload(arguments[i]);
+            refs[1 + i] = getRef(arguments[i]);
+         }
+         execute(function, arguments.length);
+         return box(payloads[0], refs[0]);
+      }
+      finally
+      {
+         Arrays.fill(refs, null);
+         Arrays.fill(callers, 0, callDepth, null);
+         callDepth = 0;
+         running = false;
+      }
+   }
+   
+   /**
+    * Sets whether this machine quickens the instructions it runs. It does by default.
+    * @param quickening
+    */
+   public void setQuickening(boolean quickening)
+   {
+      this.quickening = quickening;
+   }
+   
+   public boolean isQuickening()
+   {
+      return quickening;
+   }
+   
+   /**
+    * Overloads an operator for values of a type, replacing any overload it had for it. The
+    * overload is called when the operator is applied to a value of the type, or with one as
+    * its left operand, with the operands as its arguments. Operators that have instructions
+    * of their own, such as <code>+</code>, can't be overloaded.
+    * @param typeTag One of the type tags of {@link LayeObject}.
+    * @param operator
+    * @param overload The function to call, or <code>null</code> to remove the overload.
+    */
+   public void setOverload(byte typeTag, Operator operator, LayeClosure overload)
+   {
+      assert(typeTag >= 0 && typeTag < TYPE_COUNT && operator != null);
+      if (operator.id >= overloads.length)
+      {
+         overloads = Arrays.copyOf(overloads, Operator.getCount());
+      }
+      if (overloads[operator.id] == null)
+      {
+         overloads[operator.id] = new LayeClosure[TYPE_COUNT];
+      }
+      overloads[operator.id][typeTag] = overload;
+   }
+   
+   /**
+    * @param typeTag One of the type tags of {@link LayeObject}.
+    * @param operator
+    * @return The function overloading the given operator for values of the given type, or
+    *         <code>null</code> if there is none.
+    */
+   public LayeClosure getOverload(byte typeTag, Operator operator)
+   {
+      final LayeClosure[] row = operator.id < overloads.length ? overloads[operator.id] : null;
+      return row == null ? null : row[typeTag];
+   }
+   
+   /**
+    * @return The number of instructions this machine has dispatched, which is only counted
+    *         if the system property <code>io.ylf.laye.countDispatches</code> is
+    *         <code>true</code>.
+    */
+   public long getDispatchCount()
+   {
+      return dispatchCount;
+   }
+   
+   private void ensureStack(int size)
+   {
+      if (size > refs.length)
+      {
+         final int length = Math.max(size, refs.length * 2);
+         payloads = Arrays.copyOf(payloads, length);
+         refs = Arrays.copyOf(refs, length);
+      }
+   }
+   
+   /**
+    * Saves the state of a frame that is about to call another.
+    */
+   private void saveCaller(LayeClosure caller, int pc, int base)
+   {
+      if (callDepth == maxCallDepth)
+      {
+         throw new LayeException("The call stack overflowed.");
+      }
+      if (callDepth == callers.length)
+      {
+         callers = Arrays.copyOf(callers, callDepth * 2);
+         callerPcs = Arrays.copyOf(callerPcs, callDepth * 2);
+         callerBases = Arrays.copyOf(callerBases, callDepth * 2);
+      }
+      callers[callDepth] = caller;
+      callerPcs[callDepth] = pc;
+      callerBases[callDepth] = base;
+      callDepth++;
+   }
+   
+   /**
+    * Sets the frame slots at the given base that the arguments didn't fill, and any arguments
+    * beyond the parameters, to null.
+    */
+   private static void enterFrame(LayeObject[] refs, int base, FunctionPrototype prototype,
+         int argumentCount)
+   {
+      Arrays.fill(refs, base + Math.min(argumentCount, prototype.parameterCount),
+            base + Math.max(argumentCount, prototype.frameSize), LayeNull.NULL);
+   }
+   
+   /**
+    * Runs the given function, which is at the bottom of the stack followed by its arguments,
+    * until it returns. Its result is left at the bottom of the stack.
+    */
+   private void execute(LayeClosure closure, int argumentCount)
+   {
+      int[] code = closure.prototype.code;
+      KitPrototype kit = closure.kit;
+      final boolean quickening = this.quickening;
+      
+      int base = 1;
+      ensureStack(base + closure.prototype.frameSize + closure.prototype.maxStackSize);
+      long[] payloads = this.payloads;
+      LayeObject[] refs = this.refs;
+      enterFrame(refs, base, closure.prototype, argumentCount);
+      int sp = base + closure.prototype.frameSize;
+      int pc = 0;
+      
+      for (;;)
+      {
+         final int insn = code[pc++];
+         if (COUNT_DISPATCHES)
+         {
+            dispatchCount++;
+         }
+         switch (insn & 0xFF)
+         {
+            case Instruction.NOP:
+               continue;
+            case Instruction.POP:
+               refs[--sp] = null;
+               continue;
+            case Instruction.DUP:
+               payloads[sp] = payloads[sp - 1];
+               refs[sp] = refs[sp - 1];
+               sp++;
+               continue;
+               
+            case Instruction.LOAD_NULL:
+               refs[sp++] = LayeNull.NULL;
+               continue;
+            case Instruction.LOAD_TRUE:
+               refs[sp++] = LayeBool.TRUE;
+               continue;
+            case Instruction.LOAD_FALSE:
+               refs[sp++] = LayeBool.FALSE;
+               continue;
+            case Instruction.LOAD_CONST:
+               payloads[sp] = kit.constantPayloads[insn >>> 8];
+               refs[sp++] = kit.constantRefs[insn >>> 8];
+               continue;
+               
+            case Instruction.LOAD_LOCAL:
+            {
+               final int slot = base + (insn >>> 8);
+               payloads[sp] = payloads[slot];
+               refs[sp++] = refs[slot];
+            } continue;
+            case Instruction.STORE_LOCAL:
+            {
+               final int slot = base + (insn >>> 8);
+               payloads[slot] = payloads[--sp];
+               refs[slot] = refs[sp];
+               refs[sp] = null;
+            } continue;
+            case Instruction.NEW_CELL:
+            {
+               final Cell cell = new Cell();
+               cell.payload = payloads[--sp];
+               cell.ref = refs[sp];
+               refs[sp] = null;
+               refs[base + (insn >>> 8)] = cell;
+            } continue;
+            case Instruction.LOAD_CELL:
+            {
+               final Cell cell = (Cell) refs[base + (insn >>> 8)];
+               payloads[sp] = cell.payload;
+               refs[sp++] = cell.ref;
+            } continue;
+            case Instruction.STORE_CELL:
+            {
+               final Cell cell = (Cell) refs[base + (insn >>> 8)];
+               cell.payload = payloads[--sp];
+               cell.ref = refs[sp];
+               refs[sp] = null;
+            } continue;
+            case Instruction.LOAD_UPVALUE:
+            {
+               final LayeObject value = closure.upvalues[insn >>> 8];
+               payloads[sp] = getPayload(value);
+               refs[sp++] = getRef(value);
+            } continue;
+            case Instruction.LOAD_UPVALUE_CELL:
+            {
+               final Cell cell = (Cell) closure.upvalues[insn >>> 8];
+               payloads[sp] = cell.payload;
+               refs[sp++] = cell.ref;
+            } continue;
+            case Instruction.STORE_UPVALUE_CELL:
+            {
+               final Cell cell = (Cell) closure.upvalues[insn >>> 8];
+               cell.payload = payloads[--sp];
+               cell.ref = refs[sp];
+               refs[sp] = null;
+            } continue;
+            case Instruction.LOAD_GLOBAL:
+            {
+               final LayeObject value = closure.globals[insn >>> 8];
+               payloads[sp] = getPayload(value);
+               refs[sp++] = getRef(value);
+            } continue;
+            case Instruction.STORE_GLOBAL:
+               closure.globals[insn >>> 8] = box(payloads[--sp], refs[sp]);
+               refs[sp] = null;
+               continue;
+               
+            case Instruction.ADD:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               add(payloads, refs, sp - 1);
+               continue;
+            case Instruction.SUB:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               subtract(payloads, refs, sp - 1);
+               continue;
+            case Instruction.MUL:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               multiply(payloads, refs, sp - 1);
+               continue;
+            case Instruction.IDIV:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               intDivide(payloads, refs, sp - 1);
+               continue;
+            case Instruction.MOD:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               modulo(payloads, refs, sp - 1);
+               continue;
+            case Instruction.DIV:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               arithmetic(Instruction.DIV, payloads, refs, sp - 1);
+               continue;
+            case Instruction.POW:
+            case Instruction.BAND:
+            case Instruction.BOR:
+            case Instruction.BXOR:
+            case Instruction.SHL:
+            case Instruction.SHR:
+            case Instruction.USHR:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               arithmetic(insn & 0xFF, payloads, refs, sp - 1);
+               continue;
+            case Instruction.CONCAT:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = new LayeString(toString(payloads[sp - 1], refs[sp - 1]) +
+                     toString(payloads[sp], refs[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.EQ:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = LayeBool.valueOf(valueEquals(payloads, refs, sp - 1));
+               refs[sp] = null;
+               continue;
+            case Instruction.NE:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = LayeBool.valueOf(!valueEquals(payloads, refs, sp - 1));
+               refs[sp] = null;
+               continue;
+            case Instruction.LT:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = LayeBool.valueOf(isLess(payloads, refs, sp - 1, sp, false, "<"));
+               refs[sp] = null;
+               continue;
+            case Instruction.LE:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = LayeBool.valueOf(isLess(payloads, refs, sp - 1, sp, true, "<="));
+               refs[sp] = null;
+               continue;
+            case Instruction.GT:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = LayeBool.valueOf(isLess(payloads, refs, sp, sp - 1, false, ">"));
+               refs[sp] = null;
+               continue;
+            case Instruction.GE:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               refs[sp - 1] = LayeBool.valueOf(isLess(payloads, refs, sp, sp - 1, true, ">="));
+               refs[sp] = null;
+               continue;
+            case Instruction.CMP3:
+               sp--;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp - 1], refs[sp]);
+               }
+               payloads[sp - 1] = compare(payloads, refs, sp - 1);
+               refs[sp - 1] = INT;
+               refs[sp] = null;
+               continue;
+            case Instruction.NEG:
+               switch (refs[sp - 1].typeTag)
+               {
+                  case TYPE_INT:
+                     payloads[sp - 1] = -payloads[sp - 1];
+                     continue;
+                  case TYPE_FLOAT:
+                     payloads[sp - 1] ^= Long.MIN_VALUE;
+                     continue;
+                  default:
+                     throw operandError(Operator.MINUS.image, refs[sp - 1]);
+               }
+            case Instruction.BNOT:
+               if (refs[sp - 1].typeTag != TYPE_INT)
+               {
+                  throw operandError(Operator.XOR_COMPL.image, refs[sp - 1]);
+               }
+               payloads[sp - 1] = ~payloads[sp - 1];
+               continue;
+            case Instruction.NOT:
+               refs[sp - 1] = LayeBool.valueOf(!isTrue(refs[sp - 1]));
+               continue;
+            case Instruction.XOR:
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(isTrue(refs[sp - 1]) != isTrue(refs[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.UNARY_OP:
+            case Instruction.BINARY_OP:
+            {
+               final int operands = (insn & 0xFF) == Instruction.UNARY_OP ? 1 : 2;
+               final int receiver = sp - operands;
+               final Operator operator = closure.prototype.operators[insn >>> 8];
+               final LayeClosure overload = getOverload(refs[receiver].typeTag, operator);
+               if (overload == null)
+               {
+                  throw operands == 1 ? operandError(operator.image, refs[receiver]) :
+                        operandError(operator.image, refs[receiver], refs[sp - 1]);
+               }
+               saveCaller(closure, pc, base);
+               
+               // Call the overload as CALL would, moving the operands up to make room for it.
+               if (sp == refs.length)
+               {
+                  ensureStack(sp + 1);
+                  payloads = this.payloads;
+                  refs = this.refs;
+               }
+               System.arraycopy(payloads, receiver, payloads, receiver + 1, operands);
+               System.arraycopy(refs, receiver, refs, receiver + 1, operands);
+               refs[receiver] = overload;
+               
+               closure = overload;
+               code = closure.prototype.code;
+               kit = closure.kit;
+               
+               final FunctionPrototype prototype = closure.prototype;
+               base = receiver + 1;
+               final int size = base + prototype.frameSize + prototype.maxStackSize;
+               if (size > refs.length)
+               {
+                  ensureStack(size);
+                  payloads = this.payloads;
+                  refs = this.refs;
+               }
+               enterFrame(refs, base, prototype, operands);
+               sp = base + prototype.frameSize;
+               pc = 0;
+            } continue;
+               
+            case Instruction.JUMP:
+               pc += insn >> 8;
+               continue;
+            case Instruction.JUMP_IF_FALSE:
+               if (!isTrue(refs[--sp]))
+               {
+                  pc += insn >> 8;
+               }
+               refs[sp] = null;
+               continue;
+            case Instruction.JUMP_IF_TRUE:
+               if (isTrue(refs[--sp]))
+               {
+                  pc += insn >> 8;
+               }
+               refs[sp] = null;
+               continue;
+            case Instruction.ITER_PREP:
+               iterPrep(payloads, refs, sp);
+               continue;
+            case Instruction.ITER_TEST:
+            {
+               final boolean isPast;
+               if (refs[sp - 3].typeTag == TYPE_INT && refs[sp - 2].typeTag == TYPE_INT &&
+                     refs[sp - 1].typeTag == TYPE_INT)
+               {
+                  isPast = payloads[sp - 2] > 0 ? payloads[sp - 1] >= payloads[sp - 3]
+                        : payloads[sp - 1] <= payloads[sp - 3];
+               }
+               else
+               {
+                  final double counter = toFloat(payloads[sp - 1], refs[sp - 1]);
+                  final double end = toFloat(payloads[sp - 3], refs[sp - 3]);
+                  isPast = getSign(payloads[sp - 2], refs[sp - 2]) > 0 ? !(counter < end)
+                        : !(counter > end);
+               }
+               if (isPast)
+               {
+                  pc += insn >> 8;
+               }
+            } continue;
+            case Instruction.ITER_STEP:
+               iterStep(payloads, refs, sp);
+               continue;
+               
+            case Instruction.CLOSURE:
+            {
+               final FunctionPrototype function = closure.prototype.functions[insn >>> 8];
+               final int[] sources = function.upvalues;
+               final LayeObject[] captured =
+                     sources.length == 0 ? NO_UPVALUES : new LayeObject[sources.length];
+               for (int i = 0; i < sources.length; i++)
+               {
+                  final int source = sources[i];
+                  if ((source & 1) != 0)
+                  {
+                     final int slot = base + (source >>> 1);
+                     captured[i] = box(payloads[slot], refs[slot]);
+                  }
+                  else
+                  {
+                     captured[i] = closure.upvalues[source >>> 1];
+                  }
+               }
+               refs[sp++] = new LayeClosure(function, captured, closure.globals, kit);
+            } continue;
+            case Instruction.CALL:
+            {
+               final int arguments = insn >>> 8;
+               final int calleeIndex = sp - arguments - 1;
+               final LayeObject callee = refs[calleeIndex];
+               if (callee.typeTag != TYPE_FUNCTION)
+               {
+                  throw new LayeException("Cannot call " + typeName(callee) + ".");
+               }
+               saveCaller(closure, pc, base);
+               
+               closure = (LayeClosure) callee;
+               code = closure.prototype.code;
+               kit = closure.kit;
+               
+               final FunctionPrototype prototype = closure.prototype;
+               base = calleeIndex + 1;
+               final int size = base + prototype.frameSize + prototype.maxStackSize;
+               if (size > refs.length)
+               {
+                  ensureStack(size);
+                  payloads = this.payloads;
+                  refs = this.refs;
+               }
+               enterFrame(refs, base, prototype, arguments);
+               sp = base + prototype.frameSize;
+               pc = 0;
+            } continue;
+            case Instruction.RETURN:
+            {
+               payloads[base - 1] = payloads[sp - 1];
+               refs[base - 1] = refs[sp - 1];
+               Arrays.fill(refs, base, sp, null);
+               if (callDepth == 0)
+               {
+                  return;
+               }
+               sp = base;
+               
+               callDepth--;
+               closure = callers[callDepth];
+               callers[callDepth] = null;
+               pc = callerPcs[callDepth];
+               base = callerBases[callDepth];
+               code = closure.prototype.code;
+               kit = closure.kit;
+            } continue;
+               
+            case Instruction.LOAD_LOCAL_CONST:
+            {
+               final int slot = base + (insn >>> 8 & 0xFFF);
+               payloads[sp] = payloads[slot];
+               refs[sp] = refs[slot];
+               payloads[sp + 1] = kit.constantPayloads[insn >>> 20];
+               refs[sp + 1] = kit.constantRefs[insn >>> 20];
+               sp += 2;
+            } continue;
+            case Instruction.LOAD_LOCAL_LOCAL:
+            {
+               final int first = base + (insn >>> 8 & 0xFFF), second = base + (insn >>> 20);
+               payloads[sp] = payloads[first];
+               refs[sp] = refs[first];
+               payloads[sp + 1] = payloads[second];
+               refs[sp + 1] = refs[second];
+               sp += 2;
+            } continue;
+            case Instruction.STORE_LOAD_LOCAL:
+            {
+               final int store = base + (insn >>> 8 & 0xFFF), load = base + (insn >>> 20);
+               payloads[store] = payloads[sp - 1];
+               refs[store] = refs[sp - 1];
+               payloads[sp - 1] = payloads[load];
+               refs[sp - 1] = refs[load];
+            } continue;
+            case Instruction.ADD_STORE_LOCAL:
+            {
+               sp -= 2;
+               if (quickening && insn >>> 20 < MAX_DEOPTS)
+               {
+                  code[pc - 1] = quicken(insn, refs[sp], refs[sp + 1]);
+               }
+               add(payloads, refs, sp);
+               final int slot = base + (insn >>> 8 & 0xFFF);
+               payloads[slot] = payloads[sp];
+               refs[slot] = refs[sp];
+               refs[sp] = null;
+            } continue;
+            case Instruction.DUP_STORE_LOCAL:
+            {
+               final int slot = base + (insn >>> 8);
+               payloads[slot] = payloads[sp - 1];
+               refs[slot] = refs[sp - 1];
+            } continue;
+            case Instruction.ITER_STEP_JUMP:
+               iterStep(payloads, refs, sp);
+               pc += insn >> 8;
+               continue;
+               
+            // Each quickened instruction checks its operands are what it was quickened for before
+            // touching the stack, and otherwise rewrites itself back to its generic instruction
+            // and runs that instead. Leaving the generic work to the generic instruction keeps
+            // this method small enough for C2 to inline the helpers the hot instructions call.
+               
+            case Instruction.ADD_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] += payloads[sp];
+               continue;
+            case Instruction.ADD_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Double.doubleToRawLongBits(
+                     Double.longBitsToDouble(payloads[sp - 1]) +
+                     Double.longBitsToDouble(payloads[sp]));
+               continue;
+            case Instruction.SUB_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] -= payloads[sp];
+               continue;
+            case Instruction.SUB_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Double.doubleToRawLongBits(
+                     Double.longBitsToDouble(payloads[sp - 1]) -
+                     Double.longBitsToDouble(payloads[sp]));
+               continue;
+            case Instruction.MUL_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] *= payloads[sp];
+               continue;
+            case Instruction.MUL_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Double.doubleToRawLongBits(
+                     Double.longBitsToDouble(payloads[sp - 1]) *
+                     Double.longBitsToDouble(payloads[sp]));
+               continue;
+            case Instruction.DIV_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Double.doubleToRawLongBits(
+                     Double.longBitsToDouble(payloads[sp - 1]) /
+                     Double.longBitsToDouble(payloads[sp]));
+               continue;
+            case Instruction.IDIV_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Math.floorDiv(payloads[sp - 1], checkDivisor(payloads[sp]));
+               continue;
+            case Instruction.MOD_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Math.floorMod(payloads[sp - 1], checkDivisor(payloads[sp]));
+               continue;
+            case Instruction.CONCAT_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = new LayeString(((LayeString) refs[sp - 1]).value +
+                     ((LayeString) refs[sp]).value);
+               refs[sp] = null;
+               continue;
+            case Instruction.EQ_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(payloads[sp - 1] == payloads[sp]);
+               refs[sp] = null;
+               continue;
+            case Instruction.EQ_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(Double.longBitsToDouble(payloads[sp - 1]) ==
+                     Double.longBitsToDouble(payloads[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.EQ_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(((LayeString) refs[sp - 1]).value.equals(
+                     ((LayeString) refs[sp]).value));
+               refs[sp] = null;
+               continue;
+            case Instruction.NE_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(payloads[sp - 1] != payloads[sp]);
+               refs[sp] = null;
+               continue;
+            case Instruction.NE_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(Double.longBitsToDouble(payloads[sp - 1]) !=
+                     Double.longBitsToDouble(payloads[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.NE_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(!((LayeString) refs[sp - 1]).value.equals(
+                     ((LayeString) refs[sp]).value));
+               refs[sp] = null;
+               continue;
+            case Instruction.LT_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(payloads[sp - 1] < payloads[sp]);
+               refs[sp] = null;
+               continue;
+            case Instruction.LT_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(Double.longBitsToDouble(payloads[sp - 1]) <
+                     Double.longBitsToDouble(payloads[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.LT_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(((LayeString) refs[sp - 1]).value.compareTo(
+                     ((LayeString) refs[sp]).value) < 0);
+               refs[sp] = null;
+               continue;
+            case Instruction.LE_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(payloads[sp - 1] <= payloads[sp]);
+               refs[sp] = null;
+               continue;
+            case Instruction.LE_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(Double.longBitsToDouble(payloads[sp - 1]) <=
+                     Double.longBitsToDouble(payloads[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.LE_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(((LayeString) refs[sp - 1]).value.compareTo(
+                     ((LayeString) refs[sp]).value) <= 0);
+               refs[sp] = null;
+               continue;
+            case Instruction.GT_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(payloads[sp - 1] > payloads[sp]);
+               refs[sp] = null;
+               continue;
+            case Instruction.GT_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(Double.longBitsToDouble(payloads[sp - 1]) >
+                     Double.longBitsToDouble(payloads[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.GT_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(((LayeString) refs[sp - 1]).value.compareTo(
+                     ((LayeString) refs[sp]).value) > 0);
+               refs[sp] = null;
+               continue;
+            case Instruction.GE_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(payloads[sp - 1] >= payloads[sp]);
+               refs[sp] = null;
+               continue;
+            case Instruction.GE_FF:
+               if (refs[sp - 2] != FLOAT || refs[sp - 1] != FLOAT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(Double.longBitsToDouble(payloads[sp - 1]) >=
+                     Double.longBitsToDouble(payloads[sp]));
+               refs[sp] = null;
+               continue;
+            case Instruction.GE_SS:
+               if (pair(refs[sp - 2], refs[sp - 1]) != STRING_STRING)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               refs[sp - 1] = LayeBool.valueOf(((LayeString) refs[sp - 1]).value.compareTo(
+                     ((LayeString) refs[sp]).value) >= 0);
+               refs[sp] = null;
+               continue;
+            case Instruction.ADD_STORE_LOCAL_II:
+            {
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp -= 2;
+               payloads[sp] += payloads[sp + 1];
+               final int slot = base + (insn >>> 8 & 0xFFF);
+               payloads[slot] = payloads[sp];
+               refs[slot] = refs[sp];
+               refs[sp] = null;
+            } continue;
+            case Instruction.POW_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               if (payloads[sp] < 0)
+               {
+                  setFloat(payloads, refs, sp - 1, Math.pow(payloads[sp - 1], payloads[sp]));
+               }
+               else
+               {
+                  payloads[sp - 1] = power(payloads[sp - 1], payloads[sp]);
+               }
+               continue;
+            case Instruction.BAND_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] &= payloads[sp];
+               continue;
+            case Instruction.BOR_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] |= payloads[sp];
+               continue;
+            case Instruction.BXOR_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] ^= payloads[sp];
+               continue;
+            case Instruction.SHL_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] <<= payloads[sp];
+               continue;
+            case Instruction.SHR_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] >>= payloads[sp];
+               continue;
+            case Instruction.USHR_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] >>>= payloads[sp];
+               continue;
+            case Instruction.CMP3_II:
+               if (refs[sp - 2] != INT || refs[sp - 1] != INT)
+               {
+                  code[--pc] = unquicken(insn);
+                  continue;
+               }
+               sp--;
+               payloads[sp - 1] = Long.compare(payloads[sp - 1], payloads[sp]);
+               refs[sp] = null;
+               continue;
+               
+            default:
+               throw new IllegalStateException(
+                     "Invalid instruction " + Instruction.toString(insn));
+         }
+      }
+   }
+   
+   // ===== Values
+   
+   /**
+    * @return The reference of a slot holding the given object.
+    */
+   static LayeObject getRef(LayeObject value)
+   {
+      if (value == null)
+      {
+         return LayeNull.NULL;
+      }
+      switch (value.typeTag)
+      {
+         case TYPE_INT:
+            return INT;
+         case TYPE_FLOAT:
+            return FLOAT;
+         default:
+            return value;
+      }
+   }
+   
+   /**
+    * @return The payload of a slot holding the given object.
+    */
+   static long getPayload(LayeObject value)
+   {
+      if (value == null)
+      {
+         return 0;
+      }
+      switch (value.typeTag)
+      {
+         case TYPE_INT:
+            return ((LayeInt) value).value;
+         case TYPE_FLOAT:
+            return Double.doubleToRawLongBits(((LayeFloat) value).value);
+         default:
+            return 0;
+      }
+   }
+   
+   /**
+    * @return The object held by a slot with the given payload and reference, boxing numbers.
+    */
+   static LayeObject box(long payload, LayeObject ref)
+   {
+      switch (ref.typeTag)
+      {
+         case TYPE_INT:
+            return LayeInt.valueOf(payload);
+         case TYPE_FLOAT:
+            return LayeFloat.valueOf(Double.longBitsToDouble(payload));
+         default:
+            return ref;
+      }
+   }
+   
+   /**
+    * @return The type tags of the given references packed into one int, so that operators can
+    *         switch over both at once.
+    */
+   private static int pair(LayeObject left, LayeObject right)
+   {
+      return left.typeTag << 3 | right.typeTag;
+   }
+   
+   private static boolean isNumber(LayeObject ref)
+   {
+      switch (ref.typeTag)
+      {
+         case TYPE_INT:
+         case TYPE_FLOAT:
+            return true;
+         default:
+            return false;
+      }
+   }
+   
+   private static boolean isTrue(LayeObject ref)
+   {
+      // Null and the bools are singletons, so this doesn't need to load the type tag.
+      return ref != LayeBool.FALSE && ref != LayeNull.NULL;
+   }
+   
+   /**
+    * @param ref The reference of a slot holding a number.
+    */
+   private static double toFloat(long payload, LayeObject ref)
+   {
+      return ref.typeTag == TYPE_INT ? payload : Double.longBitsToDouble(payload);
+   }
+   
+   /**
+    * @param ref The reference of a slot holding a number.
+    * @return -1, 0 or 1 as the number is negative, zero or positive.
+    */
+   private static int getSign(long payload, LayeObject ref)
+   {
+      return ref.typeTag == TYPE_INT ? Long.signum(payload)
+            : (int) Math.signum(Double.longBitsToDouble(payload));
+   }
+   
+   private static String toString(long payload, LayeObject ref)
+   {
+      return box(payload, ref).toString();
+   }
+   
+   private static String typeName(LayeObject value)
+   {
+      switch (value.typeTag)
+      {
+         case TYPE_NULL:
+            return "null";
+         case TYPE_BOOL:
+            return "a bool";
+         case TYPE_INT:
+            return "an int";
+         case TYPE_FLOAT:
+            return "a float";
+         case TYPE_STRING:
+            return "a string";
+         case TYPE_FUNCTION:
+            return "a function";
+         default:
+            return value.getClass().getSimpleName();
+      }
+   }
+   
+   private static LayeException operandError(String operator, LayeObject operand)
+   {
+      return new LayeException("Cannot apply " + operator + " to " + typeName(operand) + ".");
+   }
+   
+   private static LayeException operandError(String operator, LayeObject left,
+         LayeObject right)
+   {
+      return new LayeException("Cannot apply " + operator + " to " + typeName(left) + " and " +
+            typeName(right) + ".");
+   }
+   
+   // ===== Operators
+   
+   /**
+    * @return The given generic instruction with the opcode of its variant for the given
+    *         operands, or unchanged if it has none.
+    */
+   private static int quicken(int insn, LayeObject left, LayeObject right)
+   {
+      final int opcode = insn & 0xFF;
+      switch (pair(left, right))
+      {
+         case INT_INT:
+            return insn & ~0xFF | Instruction.getIntVariant(opcode);
+         case FLOAT_FLOAT:
+            return insn & ~0xFF | Instruction.getFloatVariant(opcode);
+         case STRING_STRING:
+            return insn & ~0xFF | Instruction.getStringVariant(opcode);
+         default:
+            return insn;
+      }
+   }
+   
+   /**
+    * @return The given quickened instruction with the opcode of its generic instruction, and
+    *         one more rewrite counted in its operand C.
+    */
+   private static int unquicken(int insn)
+   {
+      return (insn & ~0xFF | Instruction.getGeneric(insn & 0xFF)) + (1 << 20);
+   }
+   
+   // Each binary operator takes the slot of its left operand, the one below its right operand,
+   // and leaves its result there. Operators handle two ints or two floats themselves, and
+   // leave anything else to arithmetic.
+   
+   private static void add(long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      switch (pair(refs[left], refs[right]))
+      {
+         case INT_INT:
+            payloads[left] += payloads[right];
+            return;
+         case FLOAT_FLOAT:
+            payloads[left] = Double.doubleToRawLongBits(Double.longBitsToDouble(payloads[left]) +
+                  Double.longBitsToDouble(payloads[right]));
+            return;
+         default:
+            arithmetic(Instruction.ADD, payloads, refs, left);
+      }
+   }
+   
+   private static void subtract(long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      switch (pair(refs[left], refs[right]))
+      {
+         case INT_INT:
+            payloads[left] -= payloads[right];
+            return;
+         case FLOAT_FLOAT:
+            payloads[left] = Double.doubleToRawLongBits(Double.longBitsToDouble(payloads[left]) -
+                  Double.longBitsToDouble(payloads[right]));
+            return;
+         default:
+            arithmetic(Instruction.SUB, payloads, refs, left);
+      }
+   }
+   
+   private static void multiply(long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      switch (pair(refs[left], refs[right]))
+      {
+         case INT_INT:
+            payloads[left] *= payloads[right];
+            return;
+         case FLOAT_FLOAT:
+            payloads[left] = Double.doubleToRawLongBits(Double.longBitsToDouble(payloads[left]) *
+                  Double.longBitsToDouble(payloads[right]));
+            return;
+         default:
+            arithmetic(Instruction.MUL, payloads, refs, left);
+      }
+   }
+   
+   private static void intDivide(long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      if (pair(refs[left], refs[right]) == INT_INT && payloads[right] != 0)
+      {
+         payloads[left] = Math.floorDiv(payloads[left], payloads[right]);
+      }
+      else
+      {
+         arithmetic(Instruction.IDIV, payloads, refs, left);
+      }
+   }
+   
+   private static void modulo(long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      if (pair(refs[left], refs[right]) == INT_INT && payloads[right] != 0)
+      {
+         payloads[left] = Math.floorMod(payloads[left], payloads[right]);
+      }
+      else
+      {
+         arithmetic(Instruction.MOD, payloads, refs, left);
+      }
+   }
+   
+   /**
+    * Applies an arithmetic or bitwise instruction to any operands.
+    */
+   private static void arithmetic(int opcode, long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      final LayeObject leftRef = refs[left], rightRef = refs[right];
+      switch (pair(leftRef, rightRef))
+      {
+         case INT_INT:
+         {
+            final long a = payloads[left], b = payloads[right];
+            switch (opcode)
+            {
+               case Instruction.ADD: payloads[left] = a + b; return;
+               case Instruction.SUB: payloads[left] = a - b; return;
+               case Instruction.MUL: payloads[left] = a * b; return;
+               case Instruction.DIV: setFloat(payloads, refs, left, (double) a / b); return;
+               case Instruction.IDIV:
+                  payloads[left] = Math.floorDiv(a, checkDivisor(b));
+                  return;
+               case Instruction.MOD:
+                  payloads[left] = Math.floorMod(a, checkDivisor(b));
+                  return;
+               case Instruction.POW:
+                  if (b < 0)
+                  {
+                     setFloat(payloads, refs, left, Math.pow(a, b));
+                  }
+                  else
+                  {
+                     payloads[left] = power(a, b);
+                  }
+                  return;
+               case Instruction.BAND: payloads[left] = a & b; return;
+               case Instruction.BOR: payloads[left] = a | b; return;
+               case Instruction.BXOR: payloads[left] = a ^ b; return;
+               case Instruction.SHL: payloads[left] = a << b; return;
+               case Instruction.SHR: payloads[left] = a >> b; return;
+               default: payloads[left] = a >>> b; return;
+            }
+         }
+         case INT_FLOAT:
+         case FLOAT_INT:
+         case FLOAT_FLOAT:
+         {
+            final double a = toFloat(payloads[left], leftRef);
+            final double b = toFloat(payloads[right], rightRef);
+            switch (opcode)
+            {
+               case Instruction.ADD: setFloat(payloads, refs, left, a + b); return;
+               case Instruction.SUB: setFloat(payloads, refs, left, a - b); return;
+               case Instruction.MUL: setFloat(payloads, refs, left, a * b); return;
+               case Instruction.DIV: setFloat(payloads, refs, left, a / b); return;
+               case Instruction.IDIV: setFloat(payloads, refs, left, Math.floor(a / b)); return;
+               case Instruction.MOD:
+                  setFloat(payloads, refs, left, a - Math.floor(a / b) * b);
+                  return;
+               case Instruction.POW: setFloat(payloads, refs, left, Math.pow(a, b)); return;
+               default: break;
+            }
+         } break;
+         default:
+            break;
+      }
+      throw operandError(getImage(opcode), leftRef, rightRef);
+   }
+   
+   private static void setFloat(long[] payloads, LayeObject[] refs, int slot, double value)
+   {
+      payloads[slot] = Double.doubleToRawLongBits(value);
+      refs[slot] = FLOAT;
+   }
+   
+   private static long checkDivisor(long divisor)
+   {
+      if (divisor == 0)
+      {
+         throw new LayeException("Division by zero.");
+      }
+      return divisor;
+   }
+   
+   private static long power(long base, long exponent)
+   {
+      long result = 1;
+      while (exponent != 0)
+      {
+         if ((exponent & 1) != 0)
+         {
+            result *= base;
+         }
+         base *= base;
+         exponent >>>= 1;
+      }
+      return result;
+   }
+   
+   private static String getImage(int opcode)
+   {
+      switch (opcode)
+      {
+         case Instruction.ADD: return Operator.PLUS.image;
+         case Instruction.SUB: return Operator.MINUS.image;
+         case Instruction.MUL: return Operator.TIMES.image;
+         case Instruction.DIV: return Operator.DIVIDE.image;
+         case Instruction.IDIV: return Operator.INT_DIVIDE.image;
+         case Instruction.MOD: return Operator.MODULO.image;
+         case Instruction.POW: return Operator.POWER.image;
+         case Instruction.BAND: return Operator.AND.image;
+         case Instruction.BOR: return Operator.OR.image;
+         case Instruction.BXOR: return Operator.XOR_COMPL.image;
+         case Instruction.SHL: return Operator.LSHIFT.image;
+         case Instruction.SHR: return Operator.RSHIFT.image;
+         default: return Operator.URSHIFT.image;
+      }
+   }
+   
+   /**
+    * Checks the start, end and step of an iter loop at the top of the stack, and rotates them
+    * to the end, step and counter the loop keeps there.
+    */
+   private static void iterPrep(long[] payloads, LayeObject[] refs, int sp)
+   {
+      final int start = sp - 3, end = sp - 2, step = sp - 1;
+      if (!isNumber(refs[start]) || !isNumber(refs[end]) || !isNumber(refs[step]))
+      {
+         throw new LayeException("An iter loop needs numbers, not " +
+               typeName(refs[start]) + ", " +
+               typeName(refs[end]) + " and " +
+               typeName(refs[step]) + ".");
+      }
+      if (getSign(payloads[step], refs[step]) == 0)
+      {
+         throw new LayeException("An iter loop can't step by 0.");
+      }
+      // Rotate to end, step, start.
+      final long startPayload = payloads[start];
+      final LayeObject startRef = refs[start];
+      payloads[start] = payloads[end];
+      refs[start] = refs[end];
+      payloads[end] = payloads[step];
+      refs[end] = refs[step];
+      payloads[step] = startPayload;
+      refs[step] = startRef;
+   }
+   
+   /**
+    * Adds the step of an iter loop to its counter, at the top of the stack.
+    */
+   private static void iterStep(long[] payloads, LayeObject[] refs, int sp)
+   {
+      final int counter = sp - 1, step = sp - 2;
+      if (pair(refs[counter], refs[step]) == INT_INT)
+      {
+         payloads[counter] += payloads[step];
+      }
+      else
+      {
+         setFloat(payloads, refs, counter, toFloat(payloads[counter], refs[counter]) +
+               toFloat(payloads[step], refs[step]));
+      }
+   }
+   
+   /**
+    * @return Whether the given slot and the one above it hold equal values.
+    */
+   private static boolean valueEquals(long[] payloads, LayeObject[] refs, int left)
+   {
+      final int right = left + 1;
+      final LayeObject leftRef = refs[left], rightRef = refs[right];
+      switch (pair(leftRef, rightRef))
+      {
+         case INT_INT:
+            return payloads[left] == payloads[right];
+         case INT_FLOAT:
+         case FLOAT_INT:
+         case FLOAT_FLOAT:
+            return toFloat(payloads[left], leftRef) == toFloat(payloads[right], rightRef);
+         case STRING_STRING:
+            return ((LayeString) leftRef).value.equals(((LayeString) rightRef).value);
+         default:
+            return leftRef == rightRef;
+      }
+   }
+   
+   /**
+    * Orders the values in two slots. Ints and floats compare as numbers, floats as IEEE 754
+    * says: nothing is ordered with NaN, and 0.0 and -0.0 are equal.
+    * @param a The slot of the value that should be less.
+    * @param b The slot of the value that should be greater.
+    * @param orEqual Whether equal values count as less.
+    * @param operator The operator, for errors. Its left operand is in the lower slot.
+    * @return Whether the value in slot a is less than, or with orEqual less than or equal to,
+    *         the one in slot b.
+    */
+   private static boolean isLess(long[] payloads, LayeObject[] refs, int a, int b,
+         boolean orEqual, String operator)
+   {
+      final LayeObject aRef = refs[a], bRef = refs[b];
+      switch (pair(aRef, bRef))
+      {
+         case INT_INT:
+            return orEqual ? payloads[a] <= payloads[b] : payloads[a] < payloads[b];
+         case INT_FLOAT:
+         case FLOAT_INT:
+         case FLOAT_FLOAT:
+         {
+            final double x = toFloat(payloads[a], aRef), y = toFloat(payloads[b], bRef);
+            return orEqual ? x <= y : x < y;
+         }
+         case STRING_STRING:
+         {
+            final int order = ((LayeString) aRef).value.compareTo(((LayeString) bRef).value);
+            return orEqual ? order <= 0 : order < 0;
+         }
+         default:
+            throw a < b ? operandError(operator, aRef, bRef) : operandError(operator, bRef, aRef);
+      }
    }
    
-   private void executeInstruction(Instruction insn)
+   /**
+    * The three way comparison of <code>&lt;=&gt;</code>, which agrees with the other
+    * comparisons wherever they order values. To keep it a total order, NaN is equal to itself
+    * and greater than every other number.
+    * @return -1, 0 or 1 if the value in the given slot is less than, equal to or greater than
+    *         the one above it.
+    */
+   private static int compare(long[] payloads, LayeObject[] refs, int left)
    {
-      assert(insn != null);
+      final int right = left + 1;
+      final LayeObject leftRef = refs[left], rightRef = refs[right];
+      switch (pair(leftRef, rightRef))
+      {
+         case INT_INT:
+            return Long.compare(payloads[left], payloads[right]);
+         case INT_FLOAT:
+         case FLOAT_INT:
+         case FLOAT_FLOAT:
+         {
+            final double x = toFloat(payloads[left], leftRef);
+            final double y = toFloat(payloads[right], rightRef);
+            if (x < y)
+            {
+               return -1;
+            }
+            if (x > y)
+            {
+               return 1;
+            }
+            if (x == y)
+            {
+               return 0;
+            }
+            return Boolean.compare(Double.isNaN(x), Double.isNaN(y));
+         }
+         case STRING_STRING:
+            return Integer.signum(
+                  ((LayeString) leftRef).value.compareTo(((LayeString) rightRef).value));
+         default:
+            throw operandError("<=>", leftRef, rightRef);
+      }
    }
 }
@@ -0,0 +1,208 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye;
+
+import io.ylf.laye.codegen.CodeGenerator;
+import io.ylf.laye.file.CharArraySource;
+import io.ylf.laye.file.ScriptFile;
+import io.ylf.laye.lexical.FileLexer;
+import io.ylf.laye.log.DetailLogger;
+import io.ylf.laye.syntax.Parser;
+import io.ylf.laye.vm.ConstantPool;
+import io.ylf.laye.vm.KitPrototype;
+import io.ylf.laye.vm.LayeException;
+import io.ylf.laye.vm.VirtualMachine;
+
+/**
+ * Runs small programs on the {@link VirtualMachine} compiled plainly, compiled with
+ * superinstructions, and compiled with superinstructions on a machine that quickens them, and
+ * checks that each returns what it should every way.
+ * 
+ * Each kit is run several times, so that code quickened by one run is run again by the next.
+ * The programs whose operands change type do so more often than a site is requickened, so
+ * that both the rewrites back to generic instructions and the sites left generic are run.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class VirtualMachineTest
+{
+   /** How many times each kit is run. */
+   private static final int RUNS = 3;
+   
+   /**
+    * Each program, and what it returns. A result starting with <code>!</code> is the message
+    * of the error it throws instead.
+    */
+   private static final String[][] PROGRAMS =
+   {
+      // Recursion.
+      { "fn Fib(n) if n < 2 ret n el ret Fib(n - 1) + Fib(n - 2)\nfn Main() ret Fib(20)",
+            "6765" },
+      { "fn Main() { fn Fact(n) { if n <= 1 ret 1; ret n * Fact(n - 1) }; ret Fact(20) }",
+            "2432902008176640000" },
+      { "fn F() F()\nfn Main() F()", "! The call stack overflowed." },
+      
+      // Local functions calling each other before both are defined.
+      { "fn Main() { fn IsEven(n) { if n == 0 ret true; ret IsOdd(n - 1) }; " +
+            "fn IsOdd(n) { if n == 0 ret false; ret IsEven(n - 1) }; " +
+            "ret IsEven(10) <> \",\" <> IsOdd(7) <> \",\" <> IsEven(7) }", "true,true,false" },
+      { "fn Main() { var total = 0; iter i = 0 to 3 { fn Inc(x) x + Step(); fn Step() 2; " +
+            "total = Inc(total) }; ret total }", "6" },
+      
+      // Captures, by value and through cells.
+      { "var g = 5\nfn Add(x) fn(y) x + y + g\nfn Main() ret Add(1)(2)", "8" },
+      { "fn MakeCounter() { var count = 0; ret fn() { count = count + 1; ret count } }\n" +
+            "fn Main() { var c = MakeCounter(); c(); c(); ret c() }", "3" },
+      { "fn Main() { var i = 0; var a = fn() i; i = 9; ret a() }", "9" },
+      { "fn Main() { var f = 0; iter i = 0 to 3 { var j = i; f = fn() j }; ret f() }", "2" },
+      { "fn Main() { var n = 1.5; var get = fn() n; var set = fn(v) { n = v }; set(2.5); " +
+            "ret get() + n }", "5.0" },
+      
+      // Superinstructions.
+      { "fn Main() { var sum = 0; iter i = 0 to 10 { if i == 5 cont; sum = sum + i }; " +
+            "ret sum }", "40" },
+      { "fn Main() { var sum = 0; iter j = 10 to 0 by -3 sum = sum + j; ret sum }", "22" },
+      { "fn Main() { var a = 1, b = 2; a = b; b = a + 3; ret a <> \",\" <> b }", "2,5" },
+      { "fn Main() { var s = 0.5; iter i = 0 to 4 s = s + i; ret s }", "6.5" },
+      
+      // NaN and negative zero.
+      { "fn Compare(x, y) ret (x < y) <> (x <= y) <> (x > y) <> (x >= y) <> (x == y) <> " +
+            "(x != y) <> (x <=> y) <> \",\"\n" +
+            "fn Main() { var nan = 0.0 / 0.0, r = \"\"; iter i = 0 to 2 " +
+            "r = r <> Compare(nan, 1.0) <> Compare(1.0, nan) <> Compare(nan, nan) <> " +
+            "Compare(0.0, -0.0) <> Compare(-0.0, 0.0); ret r }",
+            "falsefalsefalsefalsefalsetrue1,falsefalsefalsefalsefalsetrue-1," +
+            "falsefalsefalsefalsefalsetrue0,falsetruefalsetruetruefalse0," +
+            "falsetruefalsetruetruefalse0," +
+            "falsefalsefalsefalsefalsetrue1,falsefalsefalsefalsefalsetrue-1," +
+            "falsefalsefalsefalsefalsetrue0,falsetruefalsetruetruefalse0," +
+            "falsetruefalsetruetruefalse0," },
+      { "fn Main() { var z = -0.0; ret (1.0 / z) <> \",\" <> (z == 0.0) }",
+            "-Infinity,true" },
+      
+      // Sites whose operands change type.
+      { "fn Add(x, y) ret x + y\n" +
+            "fn Main() { var r = \"\"; iter i = 0 to 8 r = r <> Add(i, 1) <> \" \" <> " +
+            "Add(i * 0.5, 0.25) <> \" \" <> Add(i, 0.5) <> \",\"; ret r }",
+            "1 0.25 0.5,2 0.75 1.5,3 1.25 2.5,4 1.75 3.5,5 2.25 4.5,6 2.75 5.5,7 3.25 6.5," +
+            "8 3.75 7.5," },
+      { "fn Less(x, y) ret x < y\n" +
+            "fn Main() { var r = \"\"; iter i = 0 to 6 r = r <> Less(i, 3) <> " +
+            "Less(\"b\", \"a\") <> Less(i * 1.0, 2.5); ret r }",
+            "truefalsetruetruefalsetruetruefalsetruefalsefalsefalsefalsefalsefalse" +
+            "falsefalsefalse" },
+      { "fn Bits(x, y) ret (x & y) <> \",\" <> (x | y) <> \",\" <> (x ~ y) <> \",\" <> " +
+            "(x << y) <> \",\" <> (x >> y) <> \",\" <> (x >>> y) <> \",\" <> (x ^ y) <> " +
+            "\",\" <> (x <=> y) <> \";\"\n" +
+            "fn Main() ret Bits(13, 3) <> Bits(-13, 2) <> Bits(2, -1) <> Bits(2.0, 0.5)",
+            "! Cannot apply & to a float and a float." },
+      { "fn Bits(x, y) ret (x & y) <> \",\" <> (x | y) <> \",\" <> (x ~ y) <> \",\" <> " +
+            "(x << y) <> \",\" <> (x >> y) <> \",\" <> (x >>> y) <> \",\" <> (x ^ y) <> " +
+            "\",\" <> (x <=> y) <> \";\"\n" +
+            "fn Main() ret Bits(13, 3) <> Bits(-13, 2) <> Bits(2, -1)",
+            "1,15,14,104,1,1,2197,1;2,-13,-15,-52,-4,4611686018427387900,169,-1;" +
+            "2,-1,-3,0,0,0,0.5,1;" },
+      { "fn Divide(x, y) ret x // y\nfn Main() { Divide(7, 2); Divide(7.5, 2.0); " +
+            "ret Divide(1, 0) }", "! Division by zero." },
+      { "fn Less(x, y) ret x < y\nfn Main() { Less(1, 2); Less(\"a\", \"b\"); " +
+            "ret Less(1, \"b\") }", "! Cannot apply < to an int and a string." },
+   };
+   
+   private static enum Mode
+   {
+      PLAIN(false, false), FUSED(true, false), QUICKENED(true, true);
+      
+      final boolean fusing, quickening;
+      
+      private Mode(boolean fusing, boolean quickening)
+      {
+         this.fusing = fusing;
+         this.quickening = quickening;
+      }
+   }
+   
+   public static void main(String[] args)
+   {
+      int failures = 0;
+      for (final String[] program : PROGRAMS)
+      {
+         for (final Mode mode : Mode.values())
+         {
+            if (!check(program[0], program[1], mode))
+            {
+               failures++;
+            }
+         }
+      }
+      
+      final int checks = PROGRAMS.length * Mode.values().length;
+      System.out.printf("%d of %d checks passed.\n", checks - failures, checks);
+      if (failures > 0)
+      {
+         System.exit(1);
+      }
+   }
+   
+   private static boolean check(String source, String expected, Mode mode)
+   {
+      final DetailLogger logger = new DetailLogger();
+      final ConstantPool constants = new ConstantPool();
+      final CodeGenerator generator = new CodeGenerator(logger, constants);
+      generator.setFusing(mode.fusing);
+      final KitPrototype kit = generator.generate(new Parser(logger).parse(
+            new FileLexer(logger, constants).getTokens(ScriptFile.fromFile("test.laye"),
+                  new CharArraySource(source.toCharArray(), source.length()))));
+      if (logger.getErrorCount() > 0)
+      {
+         System.out.printf("%s doesn't compile:\n%s\n", mode, source);
+         return false;
+      }
+      
+      final VirtualMachine vm = new VirtualMachine(1000);
+      vm.setQuickening(mode.quickening);
+      for (int run = 1; run <= RUNS; run++)
+      {
+         String result;
+         try
+         {
+            result = String.valueOf(vm.run(kit));
+         }
+         catch (LayeException e)
+         {
+            result = "! " + e.getMessage();
+         }
+         if (!result.equals(expected))
+         {
+            System.out.printf("%s run %d returned %s, not %s:\n%s\n", mode, run, result,
+                  expected, source);
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   private VirtualMachineTest()
+   {
+   }
+}
@@ -0,0 +1,307 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.bench;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import io.ylf.laye.codegen.CodeGenerator;
+import io.ylf.laye.codegen.OpcodeStatistics;
+import io.ylf.laye.file.CharArraySource;
+import io.ylf.laye.file.ScriptFile;
+import io.ylf.laye.lexical.FileLexer;
+import io.ylf.laye.log.DetailLogger;
+import io.ylf.laye.syntax.Parser;
+import io.ylf.laye.vm.ConstantPool;
+import io.ylf.laye.vm.KitPrototype;
+import io.ylf.laye.vm.LayeObject;
+import io.ylf.laye.vm.VirtualMachine;
+
+/**
+ * Measures the {@link VirtualMachine} running small programs with tight loops, compiled with
+ * and without superinstructions, and with superinstructions on a machine that quickens them.
+ * Each speedup is relative to the plain run.
+ * 
+ * Each program is warmed up, then timed over a number of runs, and the median run is
+ * reported. When the system property <code>io.ylf.laye.countDispatches</code> is
+ * <code>true</code> the instructions dispatched are counted too. Without superinstructions
+ * each instruction is one operation of the source, so the fused count over the plain count
+ * is the dispatches per source operation. Counting slows the machine down, so times should
+ * be taken without it.
+ * 
+ * Arguments, all optional and in any order: program names (such as <code>fib</code>) restrict
+ * what is run, and <code>stats</code> prints the most frequent opcode sequences of the
+ * programs instead, see {@link OpcodeStatistics}.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class InterpreterBenchmark
+{
+   public static enum Program
+   {
+      /** Calls and returns. */
+      FIB(
+            "fn Fib(n)\n" +
+            "{\n" +
+            "   if n < 2 ret n\n" +
+            "   ret Fib(n - 1) + Fib(n - 2)\n" +
+            "}\n" +
+            "fn Main() ret Fib(27)\n"),
+      /** Int arithmetic in nested iter loops. */
+      LOOPS(
+            "fn Main()\n" +
+            "{\n" +
+            "   var sum = 0\n" +
+            "   iter i = 0 to 2000\n" +
+            "   {\n" +
+            "      iter j = 0 to 1000\n" +
+            "         sum = sum + i * j % 7\n" +
+            "   }\n" +
+            "   ret sum\n" +
+            "}\n"),
+      /** Branches in while loops. */
+      COLLATZ(
+            "fn Steps(n)\n" +
+            "{\n" +
+            "   var steps = 0\n" +
+            "   while n != 1\n" +
+            "   {\n" +
+            "      if n % 2 == 0 n = n // 2\n" +
+            "      el n = 3 * n + 1\n" +
+            "      steps = steps + 1\n" +
+            "   }\n" +
+            "   ret steps\n" +
+            "}\n" +
+            "fn Main()\n" +
+            "{\n" +
+            "   var longest = 0\n" +
+            "   iter n = 1 to 100000\n" +
+            "   {\n" +
+            "      var steps = Steps(n)\n" +
+            "      if steps > longest longest = steps\n" +
+            "   }\n" +
+            "   ret longest\n" +
+            "}\n"),
+      /** Calls of a closure assigning its upvalue. */
+      CLOSURE(
+            "fn Counter()\n" +
+            "{\n" +
+            "   var count = 0\n" +
+            "   ret fn(step) { count = count + step; ret count }\n" +
+            "}\n" +
+            "fn Main()\n" +
+            "{\n" +
+            "   var next = Counter()\n" +
+            "   var last = 0\n" +
+            "   iter i = 0 to 1000000 last = next(2)\n" +
+            "   ret last\n" +
+            "}\n"),
+      /** Float arithmetic. */
+      MANDELBROT(
+            "fn Escapes(cr, ci)\n" +
+            "{\n" +
+            "   var zr = 0.0, zi = 0.0, n = 0\n" +
+            "   while n < 50 and zr * zr + zi * zi < 4.0\n" +
+            "   {\n" +
+            "      var t = zr * zr - zi * zi + cr\n" +
+            "      zi = 2.0 * zr * zi + ci\n" +
+            "      zr = t\n" +
+            "      n = n + 1\n" +
+            "   }\n" +
+            "   ret n\n" +
+            "}\n" +
+            "fn Main()\n" +
+            "{\n" +
+            "   var total = 0\n" +
+            "   iter y = 0 to 200\n" +
+            "   {\n" +
+            "      iter x = 0 to 300\n" +
+            "         total = total + Escapes(x / 100.0 - 2.0, y / 100.0 - 1.0)\n" +
+            "   }\n" +
+            "   ret total\n" +
+            "}\n");
+      
+      public final String source;
+      
+      private Program(String source)
+      {
+         this.source = source;
+      }
+   }
+   
+   private static final boolean COUNT_DISPATCHES =
+         Boolean.getBoolean("io.ylf.laye.countDispatches");
+   
+   /** Runs for at least this long, and at least {@link #MIN_RUNS} times, when warming up. */
+   private static final long WARMUP_NANOS = 2_000_000_000L;
+   /** Times runs for at least this long, and at least {@link #MIN_RUNS} times. */
+   private static final long MEASURE_NANOS = 3_000_000_000L;
+   private static final int MIN_RUNS = 5;
+   
+   public static void main(String[] args)
+   {
+      final EnumSet<Program> programs = EnumSet.noneOf(Program.class);
+      boolean stats = false;
+      for (final String arg : args)
+      {
+         if (arg.equalsIgnoreCase("stats"))
+         {
+            stats = true;
+         }
+         else
+         {
+            programs.add(Program.valueOf(arg.toUpperCase()));
+         }
+      }
+      if (programs.isEmpty())
+      {
+         programs.addAll(EnumSet.allOf(Program.class));
+      }
+      
+      if (stats)
+      {
+         final OpcodeStatistics statistics = new OpcodeStatistics();
+         for (final Program program : programs)
+         {
+            statistics.add(compile(program, false));
+         }
+         System.out.print(statistics.toString(20));
+         return;
+      }
+      
+      if (COUNT_DISPATCHES)
+      {
+         System.out.printf("%-12s %14s %14s %12s%n", "program", "plain", "fused",
+               "per op");
+      }
+      else
+      {
+         System.out.printf("%-12s %12s %12s %12s %8s %8s%n", "program", "plain ms", "fused ms",
+               "quick ms", "fused x", "quick x");
+      }
+      for (final Program program : programs)
+      {
+         run(program);
+      }
+   }
+   
+   private static KitPrototype compile(Program program, boolean fusing)
+   {
+      final ScriptFile file = ScriptFile.fromFile(program.name().toLowerCase() + ".laye");
+      final DetailLogger logger = new DetailLogger();
+      final ConstantPool constants = new ConstantPool();
+      final CharArraySource source =
+            new CharArraySource(program.source.toCharArray(), program.source.length());
+      
+      final CodeGenerator generator = new CodeGenerator(logger, constants);
+      generator.setFusing(fusing);
+      final KitPrototype result = generator.generate(new Parser(logger).parse(
+            new FileLexer(logger, constants).getTokens(file, source)));
+      if (logger.getErrorCount() > 0 || logger.getWarningCount() > 0)
+      {
+         throw new IllegalStateException("The " + program + " program doesn't compile cleanly.");
+      }
+      return result;
+   }
+   
+   private static void run(Program program)
+   {
+      final KitPrototype plain = compile(program, false);
+      final KitPrototype fused = compile(program, true);
+      // Quickening rewrites the code it runs, so it gets a kit of its own.
+      final KitPrototype quickened = compile(program, true);
+      
+      final VirtualMachine vm = new VirtualMachine();
+      vm.setQuickening(false);
+      final String expected = String.valueOf(vm.run(plain));
+      final long plainDispatches = vm.getDispatchCount();
+      final String result = String.valueOf(vm.run(fused));
+      final long fusedDispatches = vm.getDispatchCount() - plainDispatches;
+      if (!expected.equals(result))
+      {
+         throw new IllegalStateException("The " + program + " program returned " + result +
+               " fused, but " + expected + " plain.");
+      }
+      final VirtualMachine quickVm = new VirtualMachine();
+      final String quickResult = String.valueOf(quickVm.run(quickened));
+      if (!expected.equals(quickResult))
+      {
+         throw new IllegalStateException("The " + program + " program returned " +
+               quickResult + " quickened, but " + expected + " plain.");
+      }
+      
+      if (COUNT_DISPATCHES)
+      {
+         System.out.printf("%-12s %14d %14d %12.3f%n", program.name().toLowerCase(),
+               plainDispatches, fusedDispatches, (double) fusedDispatches / plainDispatches);
+         return;
+      }
+      
+      final double plainTime = time(vm, plain);
+      final double fusedTime = time(vm, fused);
+      final double quickTime = time(quickVm, quickened);
+      System.out.printf("%-12s %12.1f %12.1f %12.1f %8.2f %8.2f%n",
+            program.name().toLowerCase(), plainTime / 1e6, fusedTime / 1e6, quickTime / 1e6,
+            plainTime / fusedTime, plainTime / quickTime);
+   }
+   
+   /**
+    * @return The median time in nanoseconds of running the given kit.
+    */
+   private static double time(VirtualMachine vm, KitPrototype kit)
+   {
+      long start = System.nanoTime();
+      for (int runs = 1; runs < MIN_RUNS || System.nanoTime() - start < WARMUP_NANOS; runs++)
+      {
+         consume(vm.run(kit));
+      }
+      
+      long[] times = new long[16];
+      int runs = 0;
+      start = System.nanoTime();
+      while (runs < MIN_RUNS || System.nanoTime() - start < MEASURE_NANOS)
+      {
+         final long runStart = System.nanoTime();
+         consume(vm.run(kit));
+         if (runs == times.length)
+         {
+            times = Arrays.copyOf(times, runs * 2);
+         }
+         times[runs++] = System.nanoTime() - runStart;
+      }
+      Arrays.sort(times, 0, runs);
+      return times[runs / 2];
+   }
+   
+   private static int sink;
+   
+   private static void consume(LayeObject result)
+   {
+      sink += System.identityHashCode(result);
+   }
+   
+   private InterpreterBenchmark()
+   {
+   }
+}
@@ -0,0 +1,289 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import io.ylf.laye.file.CharArraySource;
+import io.ylf.laye.file.ScriptFile;
+import io.ylf.laye.lexical.FileLexer;
+import io.ylf.laye.lexical.TextEdit;
+import io.ylf.laye.lexical.TokenBuffer;
+import io.ylf.laye.lexical.TokenRope;
+import io.ylf.laye.log.DetailLogger;
+
+/**
+ * Measures {@link FileLexer#getTokens(ScriptFile, io.ylf.laye.file.CharacterSource)} over
+ * generated sources of every {@link LexerCorpus.Kind} and a range of sizes.
+ * 
+ * For each source the lexer is warmed up, then timed over a number of runs. The median run
+ * gives throughput in MB/s (MB being 2^20 characters) and tokens/s. Allocation per token is
+ * measured with the thread allocation counter where the JVM has one.
+ * 
+ * Arguments, all optional and in any order, restrict what is run: kind names (such as
+ * <code>numbers</code>) and sizes (such as <code>64k</code> or <code>16m</code>). The largest
+ * sources need a heap of about 2 GB.
+ * 
+ * With the argument <code>relex</code>, the latency of
+ * {@link FileLexer#relex(TokenRope, io.ylf.laye.file.CharacterSource, TextEdit)} is checked
+ * instead: small random edits are made all over a source of {@link #RELEX_LINES} lines, with
+ * eager and with lazy locations, and the time of each relex is compared against
+ * {@link #RELEX_BUDGET_NANOS}. The tokens are checked against a full lex as it goes.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class LexerBenchmark
+{
+   private static final int[] SIZES = {
+      1 << 10, 64 << 10, 1 << 20, 16 << 20, 100 << 20,
+   };
+   
+   private static final double MB = 1 << 20;
+   
+   /** Runs for at least this long, and at least {@link #MIN_RUNS} times, when warming up. */
+   private static final long WARMUP_NANOS = 2_000_000_000L;
+   /** Times runs for at least this long, and at least {@link #MIN_RUNS} times. */
+   private static final long MEASURE_NANOS = 3_000_000_000L;
+   private static final int MIN_RUNS = 5;
+   
+   private static final int RELEX_LINES = 100_000;
+   /** The number of edits timed, after as many that warm up. */
+   private static final int RELEX_EDITS = 5_000;
+   /** The tokens are compared against a full lex after this many edits. */
+   private static final int RELEX_CHECK_INTERVAL = 1_000;
+   private static final long RELEX_BUDGET_NANOS = 1_000_000L;
+   
+   private static final String[] RELEX_INSERTIONS = {
+      "a", "x", "_", " ", "\n", "(", ")", ".", ",", "=", "var ", "fn ", "value", "\n\n",
+      "var result = Count(left, right)\n",
+   };
+   
+   public static void main(String[] args)
+   {
+      if (args.length == 1 && args[0].equals("relex"))
+      {
+         System.out.printf("%-12s %10s %10s %12s %12s %12s %8s%n", "locations", "lines",
+               "edits", "median us", "p99 us", "max us", "< 1 ms");
+         runRelex(false);
+         runRelex(true);
+         return;
+      }
+      
+      final EnumSet<LexerCorpus.Kind> kinds = EnumSet.noneOf(LexerCorpus.Kind.class);
+      int[] sizes = new int[0];
+      for (final String arg : args)
+      {
+         final char suffix = Character.toLowerCase(arg.charAt(arg.length() - 1));
+         if (suffix == 'k' || suffix == 'm')
+         {
+            final int size = Integer.parseInt(arg.substring(0, arg.length() - 1)) <<
+                  (suffix == 'k' ? 10 : 20);
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+            sizes[sizes.length - 1] = size;
+         }
+         else
+         {
+            kinds.add(LexerCorpus.Kind.valueOf(arg.toUpperCase()));
+         }
+      }
+      if (kinds.isEmpty())
+      {
+         kinds.addAll(EnumSet.allOf(LexerCorpus.Kind.class));
+      }
+      if (sizes.length == 0)
+      {
+         sizes = SIZES;
+      }
+      
+      System.out.printf("%-12s %10s %10s %10s %14s %12s%n", "corpus", "size", "tokens", "MB/s",
+            "tokens/s", "B/token");
+      for (final LexerCorpus.Kind kind : kinds)
+      {
+         for (final int size : sizes)
+         {
+            run(kind, size);
+         }
+      }
+   }
+   
+   private static void run(LexerCorpus.Kind kind, int size)
+   {
+      final CharArraySource source = LexerCorpus.generate(kind, size, LexerCorpus.DEFAULT_SEED);
+      final ScriptFile file = ScriptFile.fromFile(kind.name().toLowerCase() + ".laye");
+      final DetailLogger logger = new DetailLogger();
+      final FileLexer lexer = new FileLexer(logger);
+      
+      final int tokenCount = lexer.getTokens(file, source).size();
+      if (logger.getErrorCount() > 0 || logger.getWarningCount() > 0)
+      {
+         throw new IllegalStateException("The " + kind + " corpus doesn't lex cleanly.");
+      }
+      
+      long start = System.nanoTime();
+      for (int runs = 1; runs < MIN_RUNS || System.nanoTime() - start < WARMUP_NANOS; runs++)
+      {
+         lexer.getTokens(file, source);
+      }
+      
+      long[] times = new long[16];
+      int runs = 0;
+      start = System.nanoTime();
+      while (runs < MIN_RUNS || System.nanoTime() - start < MEASURE_NANOS)
+      {
+         final long runStart = System.nanoTime();
+         lexer.getTokens(file, source);
+         if (runs == times.length)
+         {
+            times = Arrays.copyOf(times, runs * 2);
+         }
+         times[runs++] = System.nanoTime() - runStart;
+      }
+      Arrays.sort(times, 0, runs);
+      final double seconds = times[runs / 2] / 1e9;
+      
+      final long allocated = getAllocatedBytes(lexer, file, source);
+      
+      System.out.printf("%-12s %10s %10d %10.1f %14.0f %12s%n", kind.name().toLowerCase(),
+            formatSize(size), tokenCount, source.length() / MB / seconds, tokenCount / seconds,
+            allocated < 0 ? "n/a" : String.format("%.1f", (double) allocated / tokenCount));
+   }
+   
+   private static void runRelex(boolean lazyLocations)
+   {
+      CharArraySource source = LexerCorpus.generateLines(LexerCorpus.Kind.IDENTIFIERS,
+            RELEX_LINES, LexerCorpus.DEFAULT_SEED);
+      final ScriptFile file = ScriptFile.fromFile("relex.laye");
+      final FileLexer lexer = new FileLexer(new DetailLogger());
+      lexer.setLazyLocations(lazyLocations);
+      TokenRope tokens = new TokenRope(lexer.getTokenBuffer(file, source));
+      
+      final Random random = new Random(LexerCorpus.DEFAULT_SEED);
+      final long[] times = new long[RELEX_EDITS];
+      for (int i = 0; i < RELEX_EDITS * 2; i++)
+      {
+         final TextEdit edit = randomEdit(random, source.length());
+         source = edit.apply(source);
+         
+         final long start = System.nanoTime();
+         tokens = lexer.relex(tokens, source, edit);
+         final long time = System.nanoTime() - start;
+         
+         if (i >= RELEX_EDITS)
+         {
+            times[i - RELEX_EDITS] = time;
+         }
+         if ((i + 1) % RELEX_CHECK_INTERVAL == 0)
+         {
+            checkRelexed(lexer, tokens, source);
+         }
+      }
+      
+      Arrays.sort(times);
+      final long p99 = times[times.length * 99 / 100];
+      System.out.printf("%-12s %10d %10d %12.1f %12.1f %12.1f %8s%n",
+            lazyLocations ? "lazy" : "eager", RELEX_LINES, RELEX_EDITS,
+            times[times.length / 2] / 1e3, p99 / 1e3, times[times.length - 1] / 1e3,
+            p99 < RELEX_BUDGET_NANOS ? "yes" : "NO");
+   }
+   
+   private static TextEdit randomEdit(Random random, int length)
+   {
+      final int offset = random.nextInt(length + 1);
+      if (random.nextInt(3) == 0)
+      {
+         return new TextEdit(offset, Math.min(1 + random.nextInt(4), length - offset), "");
+      }
+      return new TextEdit(offset, 0, RELEX_INSERTIONS[random.nextInt(RELEX_INSERTIONS.length)]);
+   }
+   
+   /**
+    * Compares relexed tokens against the tokens of a full lex of the same source.
+    */
+   private static void checkRelexed(FileLexer relexer, TokenRope tokens,
+         CharArraySource source)
+   {
+      // The same constants make equal literals the same objects. The file is one of its own,
+      // so that a lazy full lex doesn't replace the edited line index.
+      final FileLexer lexer = new FileLexer(new DetailLogger(), relexer.getConstants());
+      lexer.setLazyLocations(relexer.hasLazyLocations());
+      final TokenBuffer expected = lexer.getTokenBuffer(ScriptFile.fromFile("check.laye"),
+            source);
+      
+      boolean same = tokens.size() == expected.size();
+      for (int i = 0; same && i < expected.size(); i++)
+      {
+         same = tokens.getType(i) == expected.getType(i) &&
+               tokens.getData(i) == expected.getData(i) &&
+               tokens.getOffset(i) == expected.getOffset(i) &&
+               tokens.getLine(i) == expected.getLine(i) &&
+               tokens.getColumn(i) == expected.getColumn(i);
+      }
+      if (!same)
+      {
+         throw new IllegalStateException("Relexed tokens differ from a full lex.");
+      }
+   }
+   
+   /**
+    * @return The bytes allocated by one more run, or -1 if that can't be measured.
+    */
+   private static long getAllocatedBytes(FileLexer lexer, ScriptFile file,
+         CharArraySource source)
+   {
+      final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (!(threads instanceof com.sun.management.ThreadMXBean))
+      {
+         return -1;
+      }
+      final com.sun.management.ThreadMXBean allocations =
+            (com.sun.management.ThreadMXBean) threads;
+      if (!allocations.isThreadAllocatedMemorySupported())
+      {
+         return -1;
+      }
+      allocations.setThreadAllocatedMemoryEnabled(true);
+      
+      final long id = Thread.currentThread().getId();
+      final long before = allocations.getThreadAllocatedBytes(id);
+      lexer.getTokens(file, source);
+      return allocations.getThreadAllocatedBytes(id) - before;
+   }
+   
+   private static String formatSize(int size)
+   {
+      if (size >= 1 << 20 && size % (1 << 20) == 0)
+      {
+         return (size >> 20) + " MB";
+      }
+      return (size >> 10) + " KB";
+   }
+   
+   private LexerBenchmark()
+   {
+   }
+}
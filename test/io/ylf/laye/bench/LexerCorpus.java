@@ -0,0 +1,282 @@
+/**
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2015 Sekai Kyoretsuna
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.ylf.laye.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import io.ylf.laye.file.CharArraySource;
+
+/**
+ * Generates Laye sources for benchmarks. The same kind, size and seed always give the same
+ * source, so results can be compared between runs and between machines.
+ * 
+ * Every kind lexes without errors or warnings. Sources are ASCII, so a character is a byte.
+ * 
+ * @author Sekai Kyoretsuna
+ */
+public final class LexerCorpus
+{
+   public static enum Kind
+   {
+      /** Declarations and calls, mostly identifiers and keywords. */
+      IDENTIFIERS,
+      /** Tables of integer and float literals in every radix and notation. */
+      NUMBERS,
+      /** String literals, many of them with escapes. */
+      STRINGS,
+      /** Blocks of line comments between short statements. */
+      COMMENTS,
+      /** Long expressions with operators between short operands. */
+      OPERATORS,
+   }
+   
+   public static final long DEFAULT_SEED = 0x4C617965L;
+   
+   private static final String[] NAMES = {
+      "value", "Count", "index", "Print", "MakeAdder", "left", "right", "result", "buffer",
+      "Sys", "Error", "node", "next", "parent", "x", "y", "_temp", "length", "offset", "self_ref",
+   };
+   
+   private static final String[] OPERATORS = {
+      "+", "-", "*", "/", "//", "%", "^", "&", "|", "~", "<<", ">>", ">>>", "==", "!=", "<",
+      "<=", ">", ">=", "<=>", "<>",
+   };
+   
+   private static final String[] ESCAPES = {
+      "\\n", "\\t", "\\r", "\\0", "\\\"", "\\'", "\\\\", "\\u00e9", "\\u2603",
+   };
+   
+   /**
+    * Generates a source of the given kind with about the given number of characters. The
+    * source ends with the first complete line that reaches the size.
+    * @param kind
+    * @param size
+    * @param seed
+    * @return
+    */
+   public static CharArraySource generate(Kind kind, int size, long seed)
+   {
+      final LexerCorpus corpus = new LexerCorpus(size, seed);
+      while (corpus.length < size)
+      {
+         corpus.appendLines(kind);
+      }
+      return new CharArraySource(corpus.chars, corpus.length);
+   }
+   
+   /**
+    * Generates a source of the given kind with at least the given number of lines. The
+    * source ends with the first complete line that reaches the count.
+    * @param kind
+    * @param lines
+    * @param seed
+    * @return
+    */
+   public static CharArraySource generateLines(Kind kind, int lines, long seed)
+   {
+      final LexerCorpus corpus = new LexerCorpus(lines * 32, seed);
+      while (corpus.lines < lines)
+      {
+         corpus.appendLines(kind);
+      }
+      return new CharArraySource(corpus.chars, corpus.length);
+   }
+   
+   private final Random random;
+   
+   private char[] chars;
+   private int length = 0;
+   private int lines = 0;
+   
+   private LexerCorpus(int size, long seed)
+   {
+      // Room for the last line, so that most sources never grow.
+      this.chars = new char[size + 256];
+      this.random = new Random(seed);
+   }
+   
+   private void appendLines(Kind kind)
+   {
+      final int start = length;
+      switch (kind)
+      {
+         case IDENTIFIERS:
+            identifierLine();
+            break;
+         case NUMBERS:
+            numberLine();
+            break;
+         case STRINGS:
+            stringLine();
+            break;
+         case COMMENTS:
+            commentBlock();
+            break;
+         case OPERATORS:
+            operatorLine();
+            break;
+      }
+      for (int i = start; i < length; i++)
+      {
+         if (chars[i] == '\n')
+         {
+            lines++;
+         }
+      }
+   }
+   
+   private void identifierLine()
+   {
+      switch (random.nextInt(3))
+      {
+         case 0:
+            append("var ").append(name()).append(" = ").append(name()).append('(')
+                  .append(name()).append(", ").append(name()).append(")\n");
+            break;
+         case 1:
+            append("fn ").append(name()).append('(').append(name()).append(") ")
+                  .append(name()).append('.').append(name()).append('\n');
+            break;
+         default:
+            append("if ").append(name()).append(" and not ").append(name()).append(" { ")
+                  .append(name()).append(" = ").append(name()).append(" }\n");
+            break;
+      }
+   }
+   
+   private void numberLine()
+   {
+      append("var ").append(name()).append(" = [");
+      for (int i = 0; i < 8; i++)
+      {
+         if (i > 0)
+         {
+            append(", ");
+         }
+         switch (random.nextInt(5))
+         {
+            case 0:
+               append(Integer.toString(random.nextInt(100000)));
+               break;
+            case 1:
+               append(Integer.toString(random.nextInt(1000))).append('.')
+                     .append(Integer.toString(random.nextInt(1000)));
+               break;
+            case 2:
+               append("0x").append(Integer.toHexString(random.nextInt()).toUpperCase());
+               break;
+            case 3:
+               append("0b").append(Integer.toBinaryString(random.nextInt(1 << 16)));
+               break;
+            default:
+               append(Integer.toString(1 + random.nextInt(9))).append('.')
+                     .append(Integer.toString(random.nextInt(1000000))).append('e')
+                     .append(random.nextBoolean() ? "-" : "")
+                     .append(Integer.toString(random.nextInt(300)));
+               break;
+         }
+      }
+      append("]\n");
+   }
+   
+   private void stringLine()
+   {
+      append(name()).append("(\"");
+      final int parts = 1 + random.nextInt(6);
+      for (int i = 0; i < parts; i++)
+      {
+         append(name()).append(' ');
+         if (random.nextBoolean())
+         {
+            append(ESCAPES[random.nextInt(ESCAPES.length)]);
+         }
+      }
+      append("\", '").append(name()).append("')\n");
+   }
+   
+   private void commentBlock()
+   {
+      final int lines = 1 + random.nextInt(8);
+      for (int i = 0; i < lines; i++)
+      {
+         append("# ");
+         final int words = random.nextInt(12);
+         for (int j = 0; j < words; j++)
+         {
+            append(name()).append(' ');
+         }
+         append('\n');
+      }
+      append(name()).append('(').append(name()).append(")\n");
+   }
+   
+   private void operatorLine()
+   {
+      append(name()).append(" = ").append(name());
+      final int operations = 4 + random.nextInt(8);
+      for (int i = 0; i < operations; i++)
+      {
+         append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ');
+         if (random.nextBoolean())
+         {
+            append(name());
+         }
+         else
+         {
+            append(Integer.toString(random.nextInt(100)));
+         }
+      }
+      append('\n');
+   }
+   
+   private String name()
+   {
+      return NAMES[random.nextInt(NAMES.length)];
+   }
+   
+   private LexerCorpus append(String text)
+   {
+      final int count = text.length();
+      ensureCapacity(count);
+      text.getChars(0, count, chars, length);
+      length += count;
+      return this;
+   }
+   
+   private LexerCorpus append(char c)
+   {
+      ensureCapacity(1);
+      chars[length++] = c;
+      return this;
+   }
+   
+   private void ensureCapacity(int count)
+   {
+      if (length + count > chars.length)
+      {
+         chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + count));
+      }
+   }
+}